@@ -3,6 +3,7 @@ package lux;
 import java.io.IOException;
 import java.io.StringReader;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 
 import javax.xml.transform.stream.StreamSource;
@@ -10,21 +11,30 @@ import javax.xml.transform.stream.StreamSource;
 import lux.exception.LuxException;
 import lux.index.FieldName;
 import lux.index.IndexConfiguration;
+import lux.search.Deadline;
+import lux.xml.TinyBinary;
+import net.sf.saxon.Configuration;
 import net.sf.saxon.s9api.DocumentBuilder;
+import net.sf.saxon.s9api.Processor;
 import net.sf.saxon.s9api.SaxonApiException;
 import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.trans.XPathException;
 import net.sf.saxon.tree.tiny.TinyDocumentImpl;
 
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.DocumentStoredFieldVisitor;
+import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.util.BytesRef;
 
 /**
- * Reads, parses and caches XML documents from a Lucene index. Assigns Lucene
+ * Reads, parses and caches XML documents from a Lucene index.  Documents stored in the binary
+ * format defined by {@link TinyBinary} are rebuilt without parsing. Assigns Lucene
  * docIDs as Saxon document numbers. This reader is intended to survive for a
- * single query only, and is *not thread-safe*. TODO: a nice optimization would be to maintain a global
- * cache, shared across threads, with some tunable resource-based eviction
- * policy.
+ * single query only, and is *not thread-safe*.  Documents are cached for the
+ * duration of the query; if a {@link SharedDocCache} is provided, documents are
+ * also cached there, so they may be shared with other queries, in other threads.
  * 
  * Not threadsafe.
  */
@@ -33,26 +43,53 @@ public class CachingDocReader {
     private final String xmlFieldName;
     private final String uriFieldName;
     private final HashSet<String> fieldsToRetrieve;
+    private final Processor processor;
     private final DocumentBuilder builder;
+    private final Configuration config;
     private final DocIDNumberAllocator docIDNumberAllocator;
+    private final SharedDocCache sharedCache;
     private int cacheHits = 0;
     private int cacheMisses = 0;
     private long buildTime = 0;
+    private long fetchTime = 0;
+    private Deadline deadline;
 
     /**
      * Create a CachingDocReader that will use the provided objects to read and
      * parse XML documents.
      * 
-     * @param builder
+     * @param processor
      *            will be used to construct XML documents as XdmNodes
      * @param docIDNumberAllocator
      *            assigns the proper document ID to each constructed document
      * @param indexConfig
      *            supplies the names of the xml storage and uri fields
      */
-    public CachingDocReader(DocumentBuilder builder, DocIDNumberAllocator docIDNumberAllocator,
+    public CachingDocReader(Processor processor, DocIDNumberAllocator docIDNumberAllocator,
             IndexConfiguration indexConfig) {
-        this.builder = builder;
+        this (processor, docIDNumberAllocator, indexConfig, null);
+    }
+
+    /**
+     * Create a CachingDocReader that will use the provided objects to read and
+     * parse XML documents, and that shares parsed documents with other readers
+     * using the provided cache.
+     * 
+     * @param processor
+     *            will be used to construct XML documents as XdmNodes
+     * @param docIDNumberAllocator
+     *            assigns the proper document ID to each constructed document
+     * @param indexConfig
+     *            supplies the names of the xml storage and uri fields
+     * @param sharedCache
+     *            a cache shared across queries; may be null
+     */
+    public CachingDocReader(Processor processor, DocIDNumberAllocator docIDNumberAllocator,
+            IndexConfiguration indexConfig, SharedDocCache sharedCache) {
+        this.processor = processor;
+        this.builder = processor.newDocumentBuilder();
+        this.config = processor.getUnderlyingConfiguration();
+        this.sharedCache = sharedCache;
         this.docIDNumberAllocator = docIDNumberAllocator;
         this.xmlFieldName = indexConfig.getFieldName(FieldName.XML_STORE);
         this.uriFieldName = indexConfig.getFieldName(FieldName.URI);
@@ -76,7 +113,8 @@ public class CachingDocReader {
      *             if there is some sort of low-level problem with the index
      * @throws LuxException
      *             if there is an error building the document that has been
-     *             retrieved
+     *             retrieved, or if the document is not cached, and the deadline
+     *             has expired
      */
     public XdmNode get(int docID, IndexReader reader) throws IOException {
         XdmNode node= cache.get(docID);
@@ -84,39 +122,148 @@ public class CachingDocReader {
             ++cacheHits;
             return node;
         }
+        checkDeadline ();
+        List<AtomicReaderContext> leaves = reader.leaves();
+        return read (docID, leaves.get(ReaderUtil.subIndex(docID, leaves)));
+    }
 
+    /**
+     * Reads the document with the given id from the given segment (leaf) reader, avoiding the
+     * need to search for the segment containing the document.  Otherwise the same as {@link #get(int, IndexReader)}.
+     * 
+     * @param docID
+     *            the id of the document to read, relative to the top-level reader (not to the segment)
+     * @param leaf
+     *            the context of the segment containing the document
+     * @return the document, as a Saxon XdmNode
+     * @throws IOException
+     *             if there is some sort of low-level problem with the index
+     * @throws LuxException
+     *             if there is an error building the document that has been
+     *             retrieved, or if the document is not cached, and the deadline
+     *             has expired
+     */
+    public XdmNode get(int docID, AtomicReaderContext leaf) throws IOException {
+        XdmNode node= cache.get(docID);
+        if (node != null) {
+            ++cacheHits;
+            return node;
+        }
+        checkDeadline ();
+        return read (docID, leaf);
+    }
+
+    /*
+     * Reads the document without checking the deadline, on behalf of a caller that has already checked it,
+     * and will stop with partial results when it expires.
+     */
+    XdmNode getDocument (int docID, AtomicReaderContext leaf) throws IOException {
+        XdmNode node= cache.get(docID);
+        if (node != null) {
+            ++cacheHits;
+            return node;
+        }
+        return read (docID, leaf);
+    }
+    
+    private void checkDeadline () {
+        if (deadline != null && deadline.isExpired()) {
+            throw new LuxException (deadline.isCancelled() ? "query was cancelled" : "query time limit exceeded");
+        }
+    }
+
+    private XdmNode read (int docID, AtomicReaderContext leaf) throws IOException {
+        return add (load (docID, leaf, builder));
+    }
+
+    /*
+     * Reads and builds a document, consulting and updating the shared cache, but not this reader's own
+     * cache or statistics, so that documents may be loaded by other threads on behalf of this reader.
+     * Each thread must supply its own DocumentBuilder.  The document number is assigned using the
+     * DocIDNumberAllocator, whose next docID is held per-thread.
+     */
+    LoadedDocument load (int docID, AtomicReaderContext leaf, DocumentBuilder docBuilder) throws IOException {
+        XdmNode node = null;
+        int leafDocID = docID - leaf.docBase;
+        if (sharedCache != null) {
+            node = sharedCache.get(leaf.reader(), leaf.docBase, leafDocID);
+            if (node != null) {
+                return new LoadedDocument(docID, leaf, node, true, 0, 0);
+            }
+        }
+
+        long t0 = System.nanoTime();
         DocumentStoredFieldVisitor fieldSelector = new DocumentStoredFieldVisitor(fieldsToRetrieve);
-        reader.document(docID, fieldSelector);
+        leaf.reader().document(leafDocID, fieldSelector);
         Document document = fieldSelector.getDocument();
         
         String xml = document.get(xmlFieldName);
         String uri = "lux:/" + document.get(uriFieldName);
         docIDNumberAllocator.setNextDocID(docID);
-        long t0 = System.nanoTime();
+        long t1 = System.nanoTime();
         byte[] bytes = null;
         if (xml == null) {
-            bytes = document.getBinaryValue(xmlFieldName).bytes;
-            xml = "<binary xmlns=\"http://luxdb.net\" />";
+            BytesRef binaryValue = document.getBinaryValue(xmlFieldName);
+            if (TinyBinary.isTinyBinary(binaryValue.bytes, binaryValue.offset, binaryValue.length)) {
+                // a document stored as a tree, which needn't be parsed
+                try {
+                    node = new XdmNode (new TinyBinary(binaryValue.bytes, binaryValue.offset, binaryValue.length).build(config, uri));
+                } catch (XPathException e) {
+                    throw new LuxException(e);
+                }
+            } else {
+                bytes = binaryValue.bytes;
+                xml = "<binary xmlns=\"http://luxdb.net\" />";
+            }
         }
-        StreamSource source = new StreamSource(new StringReader(xml));
-        source.setSystemId(uri);
-        try {
-            node = builder.build(source);
-        } catch (SaxonApiException e) {
-            // shouldn't normally happen since the document would generally have
-            // been parsed when indexed.
-            throw new LuxException(e);
+        if (xml != null) {
+            StreamSource source = new StreamSource(new StringReader(xml));
+            source.setSystemId(uri);
+            try {
+                node = docBuilder.build(source);
+            } catch (SaxonApiException e) {
+                // shouldn't normally happen since the document would generally have
+                // been parsed when indexed.
+                throw new LuxException(e);
+            }
         }
         ((TinyDocumentImpl) node.getUnderlyingNode()).setBaseURI(uri);
         if (bytes != null) {
             ((TinyDocumentImpl)node.getUnderlyingNode()).setUserData("_binaryDocument", bytes);
         }
-        buildTime += (System.nanoTime() - t0);
+        long t = System.nanoTime() - t1;
+        if (sharedCache != null) {
+            sharedCache.put(leaf.reader(), leafDocID, node);
+        }
+        return new LoadedDocument(docID, leaf, node, false, t1 - t0, t);
+    }
+
+    /*
+     * Adds a loaded document to this reader's cache, and accounts for it in the reader's statistics.
+     * If the document is already cached, the cached copy is returned, so that each document has a single
+     * identity within a query.
+     */
+    XdmNode add (LoadedDocument doc) {
+        if (doc.shared) {
+            ++cacheHits;
+        } else {
+            ++cacheMisses;
+            fetchTime += doc.fetchTime;
+            buildTime += doc.buildTime;
+        }
+        XdmNode node = cache.get(doc.docID);
         if (node != null) {
-            cache.put(docID, node);
+            return node;
         }
-        ++cacheMisses;
-        return node;
+        cache.put(doc.docID, doc.node);
+        return doc.node;
+    }
+
+    /*
+     * Creates a DocumentBuilder, for use by a thread loading documents on behalf of this reader.
+     */
+    DocumentBuilder newDocumentBuilder () {
+        return processor.newDocumentBuilder();
     }
 
     /**
@@ -128,7 +275,7 @@ public class CachingDocReader {
     }
 
     /**
-     * @return the number of items retrieved from the cache
+     * @return the number of items retrieved from the cache (either the per-query cache, or the shared cache)
      */
     public int getCacheHits() {
         return cacheHits;
@@ -151,12 +298,55 @@ public class CachingDocReader {
     }
 
     /**
-     * Clears all cached documents.
+     * @return the total time spent reading documents' stored fields from the index (in nanoseconds).
+     */
+    public long getFetchTime() {
+        return fetchTime;
+    }
+
+    /**
+     * @return the deadline checked before reading each document, or null if there is none
+     */
+    public Deadline getDeadline () {
+        return deadline;
+    }
+
+    /**
+     * @param deadline once this deadline expires, no more documents will be read: requests for documents 
+     * that are not cached will fail.  May be null, in which case there is no limit.
+     */
+    public void setDeadline (Deadline deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * Clears all documents cached by this reader.  Documents in the shared cache, if any, are not affected.
      */
     public void clear() {
         cache.clear();
     }
     
+    /*
+     * A document that has been loaded, but not yet added to the reader's cache.
+     */
+    static class LoadedDocument {
+        final int docID;
+        final AtomicReaderContext leaf;
+        final XdmNode node;
+        final boolean shared;
+        final long fetchTime;
+        final long buildTime;
+
+        LoadedDocument (int docID, AtomicReaderContext leaf, XdmNode node, boolean shared, long fetchTime, long buildTime) {
+            this.docID = docID;
+            this.leaf = leaf;
+            this.node = node;
+            this.shared = shared;
+            this.fetchTime = fetchTime;
+            this.buildTime = buildTime;
+        }
+    }
+
     // from org.apache.lucene.queryparser.xml.builders.CachedFilterBuilder.LRUCache
     // TODO: limit cache by something proportional to *bytes*, rather than number of entries
     static class LRUCache<K, V> extends java.util.LinkedHashMap<K, V> {
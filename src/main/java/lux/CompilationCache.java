@@ -0,0 +1,102 @@
+package lux;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, thread-safe cache of compiled artifacts (queries, stylesheets).  When the cache is full,
+ * the least-recently used entry is evicted.  Counts of cache hits and misses are maintained so that
+ * the effectiveness of the cache can be monitored.
+ *
+ * <p>Compilation is carried out by the caller, outside of any lock, so it is possible for the same
+ * item to be compiled concurrently by multiple threads; in that case the last one in wins.</p>
+ *
+ * @param <K> the type of the cache keys
+ * @param <V> the type of the cached values
+ */
+public class CompilationCache<K, V> {
+
+    private final LRUMap<K, V> cache;
+    private long hits;
+    private long misses;
+
+    /**
+     * @param maxSize the maximum number of entries to retain
+     */
+    public CompilationCache (int maxSize) {
+        cache = new LRUMap<K, V>(maxSize);
+    }
+
+    /**
+     * @param key the key
+     * @return the cached value, or null if there is none
+     */
+    public synchronized V get (K key) {
+        V value = cache.get(key);
+        if (value == null) {
+            ++misses;
+        } else {
+            ++hits;
+        }
+        return value;
+    }
+
+    /**
+     * @param key the key
+     * @param value the value to cache
+     */
+    public synchronized void put (K key, V value) {
+        cache.put(key, value);
+    }
+
+    /** Drops all cached entries.  The hit and miss counts are not affected. */
+    public synchronized void clear () {
+        cache.clear();
+    }
+
+    /** @return the number of cached entries */
+    public synchronized int size () {
+        return cache.size();
+    }
+
+    /** @return the maximum number of cached entries */
+    public int getMaxSize () {
+        return cache.maxSize;
+    }
+
+    /** @return the number of lookups that found a cached value */
+    public synchronized long getHits () {
+        return hits;
+    }
+
+    /** @return the number of lookups that failed to find a cached value */
+    public synchronized long getMisses () {
+        return misses;
+    }
+
+    @Override
+    public String toString () {
+        return String.format ("%d entries, %d hits, %d misses", size(), getHits(), getMisses());
+    }
+
+    static class LRUMap<K, V> extends LinkedHashMap<K, V> {
+
+        private final int maxSize;
+
+        LRUMap (int maxSize) {
+            super (Math.min(maxSize, 1024) * 4 / 3 + 1, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+            return size() > maxSize;
+        }
+
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
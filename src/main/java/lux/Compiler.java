@@ -1,10 +1,22 @@
 package lux;
 
+import java.io.OutputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.URI;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
 
 import javax.xml.transform.ErrorListener;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.stream.StreamResult;
 
 import lux.compiler.PathOptimizer;
 import lux.compiler.SaxonTranslator;
@@ -20,10 +32,14 @@ import lux.functions.FieldValues;
 import lux.functions.Highlight;
 import lux.functions.InsertDocument;
 import lux.functions.Search;
+import lux.functions.SearchFragments;
 import lux.functions.Transform;
 import lux.functions.file.FileExtensions;
 import lux.index.FieldName;
 import lux.index.IndexConfiguration;
+import lux.index.field.FieldDefinition;
+import lux.index.field.XPathField;
+import lux.search.SearchResultCache;
 import lux.xml.GentleXmlReader;
 import lux.xpath.AbstractExpression;
 import lux.xpath.FunCall;
@@ -32,12 +48,18 @@ import net.sf.saxon.Configuration;
 import net.sf.saxon.Configuration.LicenseFeature;
 import net.sf.saxon.lib.CollectionURIResolver;
 import net.sf.saxon.lib.FeatureKeys;
+import net.sf.saxon.om.DocumentInfo;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.query.QueryResult;
 import net.sf.saxon.s9api.Processor;
 import net.sf.saxon.s9api.SaxonApiException;
 import net.sf.saxon.s9api.XPathCompiler;
 import net.sf.saxon.s9api.XQueryCompiler;
 import net.sf.saxon.s9api.XQueryExecutable;
 import net.sf.saxon.s9api.XsltCompiler;
+import net.sf.saxon.s9api.XsltExecutable;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.tree.util.FastStringBuffer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -54,10 +76,21 @@ public class Compiler {
     private final String uriFieldName;
     private final IndexConfiguration indexConfig;
     private final boolean isSaxonLicensed;
-
-    // for testing
-    private XQuery lastOptimized;
+    private SharedDocCache docCache;
+    private SearchResultCache resultCache;
+    private ExecutorService searchExecutor;
+    private int searchParallelism;
+    private CompilationCache<QueryKey, CompiledQuery> queryCache;
+    private CompilationCache<StylesheetKey, XsltExecutable> xsltCache;
+    private Map<String, List<FieldDefinition>> pathFields;
+    private int pathFieldsGeneration;
     
+    /** the default maximum number of compiled queries to cache */
+    public static final int DEFAULT_QUERY_CACHE_SIZE = 256;
+
+    /** the default maximum number of compiled XSLT stylesheets to cache */
+    public static final int DEFAULT_XSLT_CACHE_SIZE = 64;
+
     public enum SearchStrategy {
         NONE, LUX_SEARCH, SAXON_LICENSE
     }
@@ -103,6 +136,8 @@ public class Compiler {
         defaultCollectionURIResolver = config.getCollectionURIResolver();
         registerExtensionFunctions();
         uriFieldName = indexConfig.getFieldName(FieldName.URI);
+        queryCache = new CompilationCache<QueryKey, CompiledQuery>(DEFAULT_QUERY_CACHE_SIZE);
+        xsltCache = new CompilationCache<StylesheetKey, XsltExecutable>(DEFAULT_XSLT_CACHE_SIZE);
         //this.dialect = dialect;
         logger = LoggerFactory.getLogger(getClass());
     }
@@ -122,7 +157,74 @@ public class Compiler {
         return compile (exprString, errorListener, null);
     }
     
+    /**
+     * Compiles and optimizes the XQuery expression (main module), as described in {@link #compile(String)}.
+     * Compiled queries are cached, keyed by the query text, the base URI, the search strategy, and the
+     * generation of the index configuration, and are re-used when the same query is compiled again.
+     * @param exprString the XQuery source
+     * @param errorListener receives any compilation errors; may be null
+     * @param baseURI the base URI of the query, used to resolve imported modules; may be null
+     * @return the compiled XQuery expression
+     * @throws LuxException if any error occurs while compiling, such as a static XQuery error or syntax error.
+     */
     public XQueryExecutable compile(String exprString, ErrorListener errorListener, URI baseURI) throws LuxException {
+        return compile (exprString, errorListener, baseURI, null);
+    }
+
+    /**
+     * Compiles and optimizes the XQuery expression (main module), as described in {@link #compile(String, ErrorListener, URI)},
+     * recording the time spent in each phase of compilation in the given {@link QueryStats}.
+     * @param exprString the XQuery source
+     * @param errorListener receives any compilation errors; may be null
+     * @param baseURI the base URI of the query, used to resolve imported modules; may be null
+     * @param stats records the times spent compiling, translating, optimizing and re-compiling the query,
+     * whether the compiled query was found in the cache, and the optimized query; may be null
+     * @return the compiled XQuery expression
+     * @throws LuxException if any error occurs while compiling, such as a static XQuery error or syntax error.
+     */
+    public XQueryExecutable compile(String exprString, ErrorListener errorListener, URI baseURI, QueryStats stats) throws LuxException {
+        return compileQuery (exprString, errorListener, baseURI, searchStrategy, stats);
+    }
+
+    /**
+     * Compiles an XQuery expression (main module), optionally optimizing it, as described in {@link #compile(String)}.
+     * This is used to compile queries evaluated by a running query (see {@link lux.functions.Eval}).
+     * Compiled queries are cached in the same way.
+     * @param exprString the XQuery source
+     * @param errorListener receives any compilation errors; may be null
+     * @param baseURI the base URI of the query, used to resolve imported modules; may be null
+     * @param optimize whether to optimize the query; if false, the query is compiled as it is.
+     * @return the compiled XQuery expression
+     * @throws LuxException if any error occurs while compiling, such as a static XQuery error or syntax error.
+     */
+    public XQueryExecutable compile(String exprString, ErrorListener errorListener, URI baseURI, boolean optimize) throws LuxException {
+        return compileQuery (exprString, errorListener, baseURI, optimize ? searchStrategy : SearchStrategy.NONE, null);
+    }
+
+    /*
+     * If stats is not null, the time spent in each phase is recorded there, as is the text of the optimized
+     * query, even if it fails to compile, so that errors may be reported in terms of the query that was compiled.
+     * The optimized query is recorded per compilation, rather than on the Compiler, which is shared by
+     * concurrent requests.
+     */
+    private XQueryExecutable compileQuery(String exprString, ErrorListener errorListener, URI baseURI, SearchStrategy strategy,
+            QueryStats stats) throws LuxException {
+        CompilationCache<QueryKey, CompiledQuery> cache = queryCache;
+        QueryKey key = null;
+        if (cache != null) {
+            key = new QueryKey(exprString, baseURI, strategy, indexConfig.getGeneration());
+            CompiledQuery cached = cache.get(key);
+            if (cached != null) {
+                if (stats != null) {
+                    ++ stats.queryCacheHits;
+                    stats.optimizedQuery = cached.optimizedText;
+                }
+                return cached.executable;
+            }
+        }
+        if (stats != null) {
+            stats.optimizedQuery = null;
+        }
         XQueryExecutable xquery;
         XQueryCompiler xQueryCompiler = getXQueryCompiler();
         if (errorListener != null) {
@@ -131,31 +233,119 @@ public class Compiler {
         if (baseURI != null) {
             xQueryCompiler.setBaseURI(baseURI);
         }
+        long t0 = System.nanoTime();
         try {
             xquery = xQueryCompiler.compile(exprString);
         } catch (SaxonApiException e) {
             throw new LuxException (e);
         }
-        if (searchStrategy == SearchStrategy.NONE) {
-            return xquery;
+        long t1 = System.nanoTime();
+        if (stats != null) {
+            stats.compileTime += t1 - t0;
         }
-        SaxonTranslator translator = makeTranslator();
-        XQuery abstractQuery = translator.queryFor (xquery);
-        PathOptimizer optimizer = new PathOptimizer(indexConfig);
-        optimizer.setSearchStrategy(searchStrategy);
-        XQuery optimizedQuery = optimizer.optimize(abstractQuery);
-        lastOptimized = optimizedQuery;
-        if (logger.isDebugEnabled()) {
-            logger.debug("optimized xquery: " + optimizedQuery.toString());
+        String optimizedText = null;
+        if (strategy != SearchStrategy.NONE) {
+            SaxonTranslator translator = makeTranslator();
+            XQuery abstractQuery = translator.queryFor (xquery);
+            long t2 = System.nanoTime();
+            XQuery optimizedQuery = optimize (abstractQuery, strategy);
+            // serialize the optimized query only once; the text is retained for reporting
+            optimizedText = optimizedQuery.toString();
+            long t3 = System.nanoTime();
+            if (stats != null) {
+                stats.translateTime += t2 - t1;
+                stats.optimizeTime += t3 - t2;
+                stats.optimizedQuery = optimizedText;
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug("optimized xquery: " + optimizedText);
+            }
+            try {
+                xquery = xQueryCompiler.compile(optimizedText);
+            } catch (SaxonApiException e) {
+                throw new LuxException (e);
+            }
+            if (stats != null) {
+                stats.recompileTime += System.nanoTime() - t3;
+            }
+        }
+        if (cache != null) {
+            cache.put(key, new CompiledQuery(xquery, optimizedText));
         }
+        return xquery;
+    }
+
+    /**
+     * Translates and optimizes an XQuery expression (main module) as {@link #compile(String)} does,
+     * but without compiling the optimized query, or caching it.
+     * @param exprString the XQuery source
+     * @return the query in its translated and optimized form
+     * @throws LuxException if the query fails to compile
+     */
+    public XQuery optimize (String exprString) throws LuxException {
+        XQueryExecutable xquery;
         try {
-            xquery = xQueryCompiler.compile(optimizedQuery.toString());
+            xquery = getXQueryCompiler().compile(exprString);
         } catch (SaxonApiException e) {
             throw new LuxException (e);
         }
-        return xquery;
+        return optimize (makeTranslator().queryFor(xquery), searchStrategy);
+    }
+
+    private XQuery optimize (XQuery query, SearchStrategy strategy) {
+        PathOptimizer optimizer = new PathOptimizer(indexConfig);
+        optimizer.setSearchStrategy(strategy);
+        optimizer.setPathFields(getPathFields());
+        return optimizer.optimize(query);
     }
     
+    /**
+     * @return a map from path keys to the XPathFields whose xpaths are simple paths with no predicates, used by the
+     * optimizer to rewrite comparisons as range queries, and to sort by field values.  The map is
+     * recomputed whenever fields are added to the index configuration.
+     */
+    private synchronized Map<String, List<FieldDefinition>> getPathFields () {
+        if (pathFields == null || pathFieldsGeneration != indexConfig.getGeneration()) {
+            HashMap<String, List<FieldDefinition>> fields = new HashMap<String, List<FieldDefinition>>();
+            for (FieldDefinition field : indexConfig.getFields()) {
+                if (field instanceof XPathField) {
+                    String key = getPathKey (((XPathField<?>) field).getXPath());
+                    if (key != null) {
+                        List<FieldDefinition> keyFields = fields.get(key);
+                        if (keyFields == null) {
+                            keyFields = new ArrayList<FieldDefinition>();
+                            fields.put(key, keyFields);
+                        }
+                        keyFields.add(field);
+                    }
+                }
+            }
+            pathFields = fields;
+            pathFieldsGeneration = indexConfig.getGeneration();
+        }
+        return pathFields;
+    }
+
+    private String getPathKey (String xpath) {
+        XQueryCompiler xqueryCompiler = getXQueryCompiler();
+        for (Map.Entry<String, String> nsmap : indexConfig.getNamespaceMap().entrySet()) {
+            xqueryCompiler.declareNamespace(nsmap.getKey(), nsmap.getValue());
+        }
+        try {
+            XQuery query = makeTranslator().queryFor(xqueryCompiler.compile(xpath));
+            if (PathOptimizer.hasPredicate(query.getBody())) {
+                // the field's values come from only some of the nodes matching its path
+                return null;
+            }
+            return PathOptimizer.getPathKey(query.getBody(), true);
+        } catch (SaxonApiException e) {
+            logger.warn("failed to compile field xpath: " + xpath, e);
+        } catch (LuxException e) {
+            logger.warn("failed to translate field xpath: " + xpath, e);
+        }
+        return null;
+    }
+
     private static Processor makeProcessor () {
         try {
             if (Class.forName("com.saxonica.config.EnterpriseConfiguration") != null) {
@@ -211,6 +401,7 @@ public class Compiler {
     private void registerExtensionFunctions() {
         // TODO: move this list into a single class in the lux.functions package
         processor.registerExtensionFunction(new Search());
+        processor.registerExtensionFunction(new SearchFragments());
         processor.registerExtensionFunction(new Count());
         processor.registerExtensionFunction(new Exists());
         processor.registerExtensionFunction(new FieldTerms());
@@ -230,6 +421,81 @@ public class Compiler {
         return processor.newXsltCompiler();
     }
 
+    /**
+     * Compiles an XSLT stylesheet.  Compiled stylesheets are cached (unless caching has been disabled: see
+     * {@link #setXsltCacheSize(int)}), so that a stylesheet that is applied repeatedly is compiled only once.
+     * A stylesheet in a document that was loaded from some URI outside the index is keyed by that URI and the identity
+     * of its node, so it needn't be serialized to be found in the cache.  Any other stylesheet is keyed by its base URI and a digest
+     * of its serialized content, so that it is compiled only once even if it is constructed anew each time.
+     * Stylesheets that fail to compile are not cached.
+     * @param stylesheet the stylesheet document or element
+     * @param errorListener receives any errors reported while compiling the stylesheet
+     * @return the compiled stylesheet
+     * @throws SaxonApiException if the stylesheet fails to compile
+     */
+    public XsltExecutable compileXslt (NodeInfo stylesheet, ErrorListener errorListener) throws SaxonApiException {
+        CompilationCache<StylesheetKey, XsltExecutable> cache = xsltCache;
+        StylesheetKey key = null;
+        if (cache != null) {
+            key = getStylesheetKey (stylesheet);
+            XsltExecutable cached = cache.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        XsltCompiler xsltCompiler = getXsltCompiler();
+        xsltCompiler.setErrorListener(errorListener);
+        XsltExecutable xsltexec = xsltCompiler.compile(stylesheet);
+        if (cache != null) {
+            cache.put(key, xsltexec);
+        }
+        return xsltexec;
+    }
+
+    /*
+     * Saxon trees are immutable, so a node in a loaded document is identified by its document number and id,
+     * provided the number is one that DocIDNumberAllocator allocates internally, and never reuses.  Documents
+     * read from the index are numbered by their Lucene docIDs, which are reused once documents are deleted,
+     * so they are digested instead, as are documents constructed by a query, which have no system id.
+     */
+    private static StylesheetKey getStylesheetKey (NodeInfo stylesheet) throws SaxonApiException {
+        DocumentInfo document = stylesheet.getDocumentRoot();
+        String documentURI = document == null ? null : document.getSystemId();
+        if (documentURI != null && documentURI.length() > 0 && stylesheet.getDocumentNumber() > Integer.MAX_VALUE) {
+            FastStringBuffer id = new FastStringBuffer(FastStringBuffer.TINY);
+            id.append(Long.toString(stylesheet.getDocumentNumber()));
+            id.append(':');
+            stylesheet.generateId(id);
+            return new StylesheetKey (documentURI, id.toString(), null);
+        }
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new LuxException (e);
+        }
+        // digest the stylesheet as it is serialized, rather than retaining its text
+        OutputStream out = new OutputStream() {
+            @Override
+            public void write (int b) {
+                digest.update((byte) b);
+            }
+            @Override
+            public void write (byte[] b, int off, int len) {
+                digest.update(b, off, len);
+            }
+        };
+        Properties props = new Properties();
+        props.setProperty(OutputKeys.METHOD, "xml");
+        props.setProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+        try {
+            QueryResult.serialize(stylesheet, new StreamResult(out), props);
+        } catch (XPathException e) {
+            throw new SaxonApiException(e);
+        }
+        return new StylesheetKey (stylesheet.getBaseURI(), null, digest.digest());
+    }
+
     public XQueryCompiler getXQueryCompiler () {
         XQueryCompiler xqueryCompiler = processor.newXQueryCompiler();
         xqueryCompiler.declareNamespace("lux", FunCall.LUX_NAMESPACE);
@@ -277,12 +543,190 @@ public class Compiler {
     public boolean isSaxonLicensed() {
         return isSaxonLicensed;
     }
+
+    /**
+     * @return the cache of parsed documents shared by all the queries evaluated using this Compiler,
+     * or null if there is none.
+     */
+    public SharedDocCache getDocCache() {
+        return docCache;
+    }
+
+    /**
+     * Provides a cache that will be used to share parsed documents among all the queries evaluated using this Compiler.
+     * By default there is no shared cache, and documents are cached only for the duration of a single query.
+     * @param docCache the shared document cache, or null to disable sharing.
+     */
+    public void setDocCache(SharedDocCache docCache) {
+        this.docCache = docCache;
+    }
+    
+    /**
+     * @return the cache of search results shared by all the queries evaluated using this Compiler,
+     * or null if there is none.
+     */
+    public SearchResultCache getResultCache() {
+        return resultCache;
+    }
+
+    /**
+     * Provides a cache that will be used to share search results among all the queries evaluated using this Compiler.
+     * By default there is no result cache, and every search is executed against the index.
+     * @param resultCache the search result cache, or null to disable caching.
+     */
+    public void setResultCache(SearchResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    /**
+     * @return the executor used to retrieve search results in parallel, or null if results are retrieved
+     * by the thread evaluating the query.
+     */
+    public ExecutorService getSearchExecutor() {
+        return searchExecutor;
+    }
+
+    /**
+     * @return the maximum number of index segments from which a single search retrieves documents at once
+     */
+    public int getSearchParallelism() {
+        return searchParallelism;
+    }
+
+    /**
+     * Provides an executor that will be used to retrieve the results of searches in parallel: each segment of the
+     * index is searched, and its documents read and built, by tasks run by the executor, ahead of the query
+     * that consumes them.  Results are still returned in document order.  Only searches whose results
+     * are in document order (those with no sort criteria), and that start from the first result, are
+     * retrieved in this way.  By default there is no executor.  The caller remains responsible
+     * for shutting the executor down.
+     * @param executor the executor, or null to retrieve results using the thread evaluating the query.
+     * @param parallelism the maximum number of segments from which a single search retrieves documents at once;
+     * typically the number of threads available to the executor.
+     */
+    public void setSearchExecutor(ExecutorService executor, int parallelism) {
+        this.searchExecutor = executor;
+        this.searchParallelism = parallelism;
+    }
+
+    /**
+     * @return the cache of compiled queries, or null if compiled queries are not cached.
+     */
+    public CompilationCache<?,?> getQueryCache () {
+        return queryCache;
+    }
+
+    /**
+     * Sets the maximum number of compiled queries to cache, discarding any queries already cached.
+     * @param size the maximum number of compiled queries to cache; if 0, queries will not be cached.
+     */
+    public void setQueryCacheSize (int size) {
+        if (size > 0) {
+            queryCache = new CompilationCache<QueryKey, CompiledQuery>(size);
+        } else {
+            queryCache = null;
+        }
+    }
     
     /**
-     * @return the last query that was compiled, in its translated and optimized form.
+     * @return the cache of compiled XSLT stylesheets, or null if compiled stylesheets are not cached.
+     */
+    public CompilationCache<?,?> getXsltCache () {
+        return xsltCache;
+    }
+
+    /**
+     * Sets the maximum number of compiled XSLT stylesheets to cache, discarding any stylesheets already cached.
+     * @param size the maximum number of compiled stylesheets to cache; if 0, stylesheets will not be cached.
      */
-    public XQuery getLastOptimized () { 
-        return lastOptimized; 
+    public void setXsltCacheSize (int size) {
+        if (size > 0) {
+            xsltCache = new CompilationCache<StylesheetKey, XsltExecutable>(size);
+        } else {
+            xsltCache = null;
+        }
+    }
+    
+    private static final class QueryKey {
+        private final String query;
+        private final URI baseURI;
+        private final SearchStrategy searchStrategy;
+        private final int configGeneration;
+        
+        QueryKey (String query, URI baseURI, SearchStrategy searchStrategy, int configGeneration) {
+            this.query = query;
+            this.baseURI = baseURI;
+            this.searchStrategy = searchStrategy;
+            this.configGeneration = configGeneration;
+        }
+        
+        @Override
+        public int hashCode () {
+            int hash = query.hashCode();
+            if (baseURI != null) {
+                hash = hash * 31 + baseURI.hashCode();
+            }
+            return (hash * 31 + searchStrategy.ordinal()) * 31 + configGeneration;
+        }
+        
+        @Override
+        public boolean equals (Object o) {
+            if (! (o instanceof QueryKey)) {
+                return false;
+            }
+            QueryKey other = (QueryKey) o;
+            return query.equals(other.query) && 
+                    (baseURI == null ? other.baseURI == null : baseURI.equals(other.baseURI)) &&
+                    searchStrategy == other.searchStrategy &&
+                    configGeneration == other.configGeneration;
+        }
+    }
+    
+    private static final class StylesheetKey {
+        private final String uri;
+        private final String nodeId;
+        private final byte[] digest;
+        
+        /*
+         * @param uri the stylesheet's document URI, if it has a node id, otherwise its base URI
+         * @param nodeId identifies the stylesheet node, or null
+         * @param digest a digest of the serialized stylesheet, or null if it has a node id
+         */
+        StylesheetKey (String uri, String nodeId, byte[] digest) {
+            this.uri = uri;
+            this.nodeId = nodeId;
+            this.digest = digest;
+        }
+        
+        @Override
+        public int hashCode () {
+            int hash = nodeId != null ? nodeId.hashCode() : Arrays.hashCode(digest);
+            if (uri != null) {
+                hash = hash * 31 + uri.hashCode();
+            }
+            return hash;
+        }
+        
+        @Override
+        public boolean equals (Object o) {
+            if (! (o instanceof StylesheetKey)) {
+                return false;
+            }
+            StylesheetKey other = (StylesheetKey) o;
+            return (nodeId == null ? other.nodeId == null : nodeId.equals(other.nodeId)) &&
+                    Arrays.equals(digest, other.digest) &&
+                    (uri == null ? other.uri == null : uri.equals(other.uri));
+        }
+    }
+    
+    private static final class CompiledQuery {
+        private final XQueryExecutable executable;
+        private final String optimizedText;
+        
+        CompiledQuery (XQueryExecutable executable, String optimizedText) {
+            this.executable = executable;
+            this.optimizedText = optimizedText;
+        }
     }
     
 }
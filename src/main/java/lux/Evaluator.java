@@ -4,7 +4,9 @@ import java.io.IOException;
 import java.io.Reader;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
 
 import javax.xml.transform.Result;
 import javax.xml.transform.Source;
@@ -15,11 +17,14 @@ import javax.xml.transform.stream.StreamSource;
 import lux.exception.LuxException;
 import lux.exception.NotFoundException;
 import lux.functions.Search;
+import lux.functions.SearchBase;
 import lux.index.FieldName;
 import lux.index.IndexConfiguration;
 import lux.index.field.FieldDefinition;
 import lux.query.parser.LuxQueryParser;
 import lux.query.parser.XmlQueryParser;
+import lux.search.Deadline;
+import lux.search.LeafDocIdSetIterator;
 import lux.search.LuxSearcher;
 import lux.xml.QName;
 import net.sf.saxon.Configuration;
@@ -31,6 +36,7 @@ import net.sf.saxon.lib.OutputURIResolver;
 import net.sf.saxon.om.SequenceIterator;
 import net.sf.saxon.s9api.DocumentBuilder;
 import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.SaxonApiUncheckedException;
 import net.sf.saxon.s9api.XQueryEvaluator;
 import net.sf.saxon.s9api.XQueryExecutable;
 import net.sf.saxon.s9api.XdmDestination;
@@ -67,6 +73,7 @@ public class Evaluator {
     private XmlQueryParser xmlQueryParser;
     private QueryStats queryStats;
     private URIResolver defaultURIResolver;
+    private volatile Deadline deadline;
 
     /**
      * Creates an evaluator that uses the provided objects to evaluate queries.
@@ -87,7 +94,7 @@ public class Evaluator {
         builder = compiler.getProcessor().newDocumentBuilder();
         if (searcher != null) {
             DocIDNumberAllocator docIdAllocator = (DocIDNumberAllocator) config.getDocumentNumberAllocator();
-            docReader = new CachingDocReader(builder, docIdAllocator, compiler.getIndexConfiguration());
+            docReader = new CachingDocReader(compiler.getProcessor(), docIdAllocator, compiler.getIndexConfiguration(), compiler.getDocCache());
         } else {
             docReader = null;
         }
@@ -127,17 +134,23 @@ public class Evaluator {
      * Compile and evaluate the given query, as XQuery, with no context defined.
      * @param query an XQuery expression (main module)
      * @return the results of the evaluation; any errors are encapsulated in the result set.
+     * @see #evaluate(XQueryExecutable, QueryContext)
      */
     public XdmResultSet evaluate(String query) {
         return evaluate (query, null);
     }
     
+    /**
+     * Compile and evaluate the given query, as XQuery, with the given context defined.
+     * @param query an XQuery expression (main module)
+     * @param context the query context holds external variable bindings and the context item; may be null
+     * @return the results of the evaluation; any errors are encapsulated in the result set.
+     * @throws LuxException if the query fails to compile
+     * @see #evaluate(XQueryExecutable, QueryContext)
+     */
     public XdmResultSet evaluate(String query, QueryContext context) {
         errorListener.clear();
-        XQueryExecutable compiledQuery = compiler.compile(query, errorListener);
-        if (queryStats != null && compiler.getLastOptimized() != null) {
-            queryStats.optimizedQuery = compiler.getLastOptimized().toString();
-        }
+        XQueryExecutable compiledQuery = compiler.compile(query, errorListener, null, queryStats);
         return evaluate (compiledQuery, context);
     }
     
@@ -145,13 +158,24 @@ public class Evaluator {
      * Evaluate the already-compiled query, with no context defined.
      * @param xquery a compiled XQuery expression
      * @return the results of the evaluation; any errors are encapsulated in the result set.
+     * @see #evaluate(XQueryExecutable, QueryContext)
      */
     public XdmResultSet evaluate(XQueryExecutable xquery) {
         return evaluate (xquery, null);
     }
     
+    /**
+     * Evaluate the already-compiled query, with the given context defined.  The results are computed lazily,
+     * as they are retrieved from the returned result set (see {@link XdmResultSet}), so the result set may be
+     * used only while this Evaluator remains open: its searcher, document reader and URI resolvers serve the
+     * evaluation.  Each evaluation records its errors separately, so result sets from successive evaluations
+     * may be consumed in any order.
+     * @param xquery a compiled XQuery expression
+     * @param context the query context holds external variable bindings and the context item; may be null
+     * @return the results of the evaluation; any errors are encapsulated in the result set.
+     */
     public XdmResultSet evaluate(XQueryExecutable xquery, QueryContext context) { 
-        return evaluate (xquery, context, errorListener);
+        return evaluate (xquery, context, new TransformErrorListener());
     }
 
     /**
@@ -159,31 +183,131 @@ public class Evaluator {
      * @param xquery a compiled XQuery expression
      * @param context the query context holds external variable bindings and the context item
      * @param listener an error listener that will capture errors and also act as a conduit that passes
-     * the Evaluator to function calls that require it.
+     * the Evaluator to function calls that require it.  Its errors are retained by the result set.
      * @return the results of the evaluation; any errors are encapsulated in the result set.
      */
     private XdmResultSet evaluate(XQueryExecutable xquery, QueryContext context, TransformErrorListener listener) { 
+        XQueryEvaluator xqueryEvaluator = load (xquery, context, listener);
+        long t = System.nanoTime();
+        try {
+            return new XdmResultSet (new ResultIterator (xqueryEvaluator.iterator(), false), listener.getErrors(), deadline);
+        } catch (SaxonApiUncheckedException e) {
+            if (docReader != null) {
+                docReader.clear();
+            }
+            return new XdmResultSet(e, listener.getErrors());
+        } finally {
+            recordEvaluationTime (t);
+        }
+    }
+    
+    /**
+     * Evaluate the already-compiled query lazily, with the given context defined.  Rather than 
+     * accumulating results in an {@link XdmResultSet} as {@link #evaluate(XQueryExecutable, QueryContext)} does, this
+     * returns an iterator that computes each result as it is requested, and retains nothing, so that callers
+     * serializing results as they go need not hold them all in memory.
+     * The documents retrieved while iterating are cached until the iteration is complete.
+     * @param xquery a compiled XQuery expression
+     * @param context the query context holds external variable bindings and the context item; may be null
+     * @return an iterator over the results of the evaluation
+     * @throws LuxException if an error occurs during evaluation; this may be thrown either by this
+     * method or, lazily, by the returned iterator.
+     */
+    public Iterator<XdmItem> iterator (XQueryExecutable xquery, QueryContext context) {
+        XQueryEvaluator xqueryEvaluator = load (xquery, context, errorListener);
+        long t = System.nanoTime();
+        try {
+            return new ResultIterator (xqueryEvaluator.iterator(), true);
+        } catch (SaxonApiUncheckedException e) {
+            if (docReader != null) {
+                docReader.clear();
+            }
+            throw new LuxException (e.getMessage(), e.getCause());
+        } finally {
+            recordEvaluationTime (t);
+        }
+    }
+    
+    private void recordEvaluationTime (long t) {
+        if (queryStats != null) {
+            queryStats.evaluationTime += System.nanoTime() - t;
+        }
+    }
+
+    private XQueryEvaluator load (XQueryExecutable xquery, QueryContext context, TransformErrorListener listener) {
         if (context == null) {
             context = new QueryContext();
         }
+        deadline = new Deadline (context.getTimeAllowed());
+        if (docReader != null) {
+            docReader.setDeadline(deadline);
+        }
         XQueryEvaluator xqueryEvaluator = xquery.load();
-        try {
-            listener.setUserData(this);
-            xqueryEvaluator.setErrorListener(listener);
-            if (context != null) {
-                xqueryEvaluator.setContextItem((XdmItem) context.getContextItem());
-                if (context.getVariableBindings() != null) {
-                    for (Map.Entry<QName, Object> binding : context.getVariableBindings().entrySet()) {
-                        net.sf.saxon.s9api.QName saxonQName = new net.sf.saxon.s9api.QName(binding.getKey());
-                        xqueryEvaluator.setExternalVariable(saxonQName, (XdmValue) binding.getValue());
-                    }
+        listener.setUserData(this);
+        xqueryEvaluator.setErrorListener(listener);
+        xqueryEvaluator.setContextItem((XdmItem) context.getContextItem());
+        if (context.getVariableBindings() != null) {
+            for (Map.Entry<QName, Object> binding : context.getVariableBindings().entrySet()) {
+                net.sf.saxon.s9api.QName saxonQName = new net.sf.saxon.s9api.QName(binding.getKey());
+                xqueryEvaluator.setExternalVariable(saxonQName, (XdmValue) binding.getValue());
+            }
+        }
+        return xqueryEvaluator;
+    }
+    
+    /*
+     * Wraps Saxon's result iterator, releasing cached documents when the results are exhausted, and 
+     * optionally reporting dynamic errors as LuxExceptions.
+     */
+    private class ResultIterator implements Iterator<XdmItem> {
+        
+        private final Iterator<XdmItem> items;
+        
+        private final boolean wrapErrors;
+        
+        ResultIterator (Iterator<XdmItem> items, boolean wrapErrors) {
+            this.items = items;
+            this.wrapErrors = wrapErrors;
+        }
+
+        @Override
+        public boolean hasNext() {
+            boolean hasNext;
+            long t = System.nanoTime();
+            try {
+                hasNext = items.hasNext();
+            } catch (SaxonApiUncheckedException e) {
+                clear ();
+                if (wrapErrors) {
+                    throw new LuxException (e.getMessage(), e.getCause());
                 }
+                throw e;
+            } catch (RuntimeException e) {
+                clear ();
+                throw e;
+            } finally {
+                recordEvaluationTime (t);
             }
-            XdmValue value = xqueryEvaluator.evaluate();
-            return new XdmResultSet (value);
-        } catch (SaxonApiException e) {
-            return new XdmResultSet(((TransformErrorListener)xqueryEvaluator.getErrorListener()).getErrors());
-        } finally {
+            if (! hasNext) {
+                clear ();
+            }
+            return hasNext;
+        }
+
+        @Override
+        public XdmItem next() {
+            if (! hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return items.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+        
+        private void clear () {
             if (docReader != null) {
                 docReader.clear();
             }
@@ -254,15 +378,18 @@ public class Evaluator {
             }
             path = path.replace('\\', '/');
             try {
-                DocIdSetIterator disi = getSearcher().search(new TermQuery(new Term(compiler.getUriFieldName(), path)));
+                Query uriQuery = SearchBase.documentQuery(new TermQuery(new Term(compiler.getUriFieldName(), path)), Evaluator.this);
+                LeafDocIdSetIterator disi = getSearcher().search(uriQuery);
                 int docID = disi.nextDoc();
                 if (docID == DocIdSetIterator.NO_MORE_DOCS) {
                     throw new NotFoundException(href);
                 }
-                XdmNode doc = docReader.get(docID, getSearcher().getIndexReader());
+                XdmNode doc = docReader.get(docID, disi.getLeaf());
                 return doc.asSource(); 
             } catch (IOException e) {
                 throw new TransformerException(e);
+            } catch (LuxException e) {
+                throw new TransformerException(e.getMessage(), e);
             }
         }
 
@@ -348,6 +475,7 @@ public class Evaluator {
             
             LuxSearcher current = searcher;
             searcher = new LuxSearcher (DirectoryReader.openIfChanged((DirectoryReader) getSearcher().getIndexReader()));
+            searcher.setBatchSize(current.getBatchSize());
             current.close();
         } catch (IOException e) {
             throw new LuxException (e);
@@ -370,7 +498,37 @@ public class Evaluator {
         return searcher;
     }    
 
+    /**
+     * @return the deadline for the current (or most recent) evaluation, which is created when evaluation
+     * begins, from the time allowed by the {@link QueryContext}.  Null if no query has been evaluated.
+     */
+    public Deadline getDeadline () {
+        return deadline;
+    }
+    
+    /**
+     * Stops the current evaluation: searches stop returning results, and documents are no longer retrieved,
+     * so that the evaluation completes promptly, with partial results.  This may be called from any thread.
+     */
+    public void cancel () {
+        Deadline current = deadline;
+        if (current != null) {
+            current.cancel();
+        }
+    }
+
+    /**
+     * @return the statistics gathered while compiling and evaluating queries with this Evaluator.  The
+     * document retrieval statistics (document cache hits and misses, and the times spent fetching and building
+     * documents) are brought up to date from the {@link CachingDocReader} when this is called.
+     */
     public QueryStats getQueryStats() {
+        if (queryStats != null && docReader != null) {
+            queryStats.docCacheHits = docReader.getCacheHits();
+            queryStats.docCacheMisses = docReader.getCacheMisses();
+            queryStats.fetchTime = docReader.getFetchTime();
+            queryStats.buildTime = docReader.getBuildTime();
+        }
         return queryStats;
     }
 
@@ -0,0 +1,201 @@
+package lux;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import lux.CachingDocReader.LoadedDocument;
+import lux.exception.LuxException;
+import lux.search.Deadline;
+import lux.search.LuxSearcher;
+import net.sf.saxon.s9api.DocumentBuilder;
+import net.sf.saxon.s9api.XdmNode;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+
+/**
+ * Retrieves the documents matching a query, in docID order, using tasks run by an {@link ExecutorService}
+ * to search each segment of the index and to read and build its documents ahead of the consumer.
+ * Each task retrieves a chunk of documents from one segment; tasks for up to
+ * <code>parallelism</code> segments are in progress at once, and the next chunk of a segment is
+ * requested as soon as its previous chunk is consumed.  The first chunk of each segment is a single
+ * document, and each chunk is twice the size of the previous one, up to {@link #MAX_CHUNK_SIZE}, so
+ * a query needing only the first few results, like exists() or a small page, reads only a few
+ * documents ahead of the consumer.  Since segments are ordered by docBase,
+ * results are merged in docID order simply by consuming the segments in turn, so document numbers,
+ * which are assigned from docIDs by {@link DocIDNumberAllocator} on each worker thread, increase in
+ * document order, as Saxon requires.
+ *
+ * <p>Tasks never wait on the consumer, so a search that is abandoned before it is complete leaves no
+ * tasks blocked: at most one chunk per segment is retrieved unnecessarily.  The tasks stop at the end of their
+ * chunk when the {@link Deadline} expires.</p>
+ *
+ * <p>Documents are added to the {@link CachingDocReader} by the consumer, as they are returned.  Like the
+ * reader, this class is not thread-safe: only its tasks run on other threads.</p>
+ */
+class ParallelDocLoader {
+
+    /** the maximum number of documents retrieved by a single task */
+    static final int MAX_CHUNK_SIZE = 32;
+
+    private final ExecutorService executor;
+    private final CachingDocReader docReader;
+    private final Deadline deadline;
+    private final Weight weight;
+    private final int parallelism;
+    private final Segment[] segments;
+    private int iSegment;
+    private int nextToStart;
+    private List<LoadedDocument> chunk;
+    private int iChunk;
+    private int docID = -1;
+
+    /**
+     * @param searcher the searcher
+     * @param query the query whose results are to be retrieved
+     * @param docReader the reader to which the documents are added
+     * @param executor runs the tasks that retrieve documents
+     * @param parallelism the maximum number of segments to retrieve documents from at once
+     * @param deadline once this expires, no more documents are retrieved; may be null
+     * @throws IOException
+     */
+    ParallelDocLoader (LuxSearcher searcher, Query query, CachingDocReader docReader, ExecutorService executor,
+            int parallelism, Deadline deadline) throws IOException {
+        this.executor = executor;
+        this.docReader = docReader;
+        this.deadline = deadline;
+        this.parallelism = Math.max(1, parallelism);
+        weight = searcher.createNormalizedWeight(query);
+        List<AtomicReaderContext> leaves = searcher.getIndexReader().leaves();
+        segments = new Segment[leaves.size()];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment(leaves.get(i));
+        }
+        chunk = Collections.emptyList();
+        startSegments ();
+    }
+
+    /**
+     * @return the next document, or null if there are no more
+     * @throws IOException if there is an error reading the index
+     * @throws LuxException if there is an error building a document
+     */
+    XdmNode next () throws IOException {
+        while (iChunk >= chunk.size()) {
+            if (iSegment >= segments.length) {
+                docID = DocIdSetIterator.NO_MORE_DOCS;
+                return null;
+            }
+            Segment segment = segments[iSegment];
+            chunk = segment.take();
+            iChunk = 0;
+            if (segment.exhausted) {
+                ++iSegment;
+                startSegments ();
+            } else {
+                segment.start();
+            }
+        }
+        LoadedDocument doc = chunk.get(iChunk++);
+        docID = doc.docID;
+        return docReader.add(doc);
+    }
+
+    /**
+     * @return the docID of the last document returned by {@link #next()}, -1 if none has been returned, or
+     * {@link DocIdSetIterator#NO_MORE_DOCS} if there are no more.
+     */
+    int docID () {
+        return docID;
+    }
+
+    private void startSegments () {
+        while (nextToStart < segments.length && nextToStart < iSegment + parallelism) {
+            segments[nextToStart++].start();
+        }
+    }
+
+    /*
+     * Retrieves the documents in one segment, one chunk at a time.  The segment's scorer is used by
+     * successive tasks, possibly on different threads, but only one at a time: submitting a task, and
+     * retrieving its result, ensure that each task sees the state left by its predecessor.
+     */
+    private class Segment implements Callable<List<LoadedDocument>> {
+
+        private final AtomicReaderContext leaf;
+        private Scorer scorer;
+        private DocumentBuilder builder;
+        private Future<List<LoadedDocument>> future;
+        private boolean exhausted;
+        private int chunkSize = 1;
+
+        Segment (AtomicReaderContext leaf) {
+            this.leaf = leaf;
+        }
+
+        void start () {
+            future = executor.submit(this);
+        }
+
+        List<LoadedDocument> take () throws IOException {
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new LuxException ("interrupted while retrieving documents");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new LuxException (cause);
+            } finally {
+                future = null;
+            }
+        }
+
+        @Override
+        public List<LoadedDocument> call() throws IOException {
+            if (builder == null) {
+                builder = docReader.newDocumentBuilder();
+                scorer = weight.scorer(leaf, true, false, leaf.reader().getLiveDocs());
+            }
+            ArrayList<LoadedDocument> docs = new ArrayList<LoadedDocument>(chunkSize);
+            while (docs.size() < chunkSize) {
+                if (scorer == null || (deadline != null && deadline.isExpired())) {
+                    exhausted = true;
+                    break;
+                }
+                int leafDocID = scorer.nextDoc();
+                if (leafDocID == DocIdSetIterator.NO_MORE_DOCS) {
+                    exhausted = true;
+                    break;
+                }
+                docs.add(docReader.load(leafDocID + leaf.docBase, leaf, builder));
+            }
+            chunkSize = Math.min(chunkSize * 2, MAX_CHUNK_SIZE);
+            return docs;
+        }
+
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
@@ -17,6 +17,8 @@ public class QueryContext {
     
     private Object contextItem;
     
+    private long timeAllowed;
+    
     /**
      * bind an external variable so that it will be available in the scope of queries evaluated using this context
      * @param varName the name of the variable to bind
@@ -49,6 +51,19 @@ public class QueryContext {
         return contextItem;
     }
 
+    /**
+     * @param timeAllowed the time allowed for evaluating the query, in milliseconds.  Once this has elapsed, 
+     * searches stop returning results, so evaluation completes with partial results.  If not positive, 
+     * there is no limit.  See {@link lux.search.Deadline}.
+     */
+    public void setTimeAllowed (long timeAllowed) {
+        this.timeAllowed = timeAllowed;
+    }
+
+    public long getTimeAllowed () {
+        return timeAllowed;
+    }
+
 }
 
 /* This Source Code Form is subject to the terms of the Mozilla Public
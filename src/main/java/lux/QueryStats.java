@@ -1,7 +1,14 @@
 package lux;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 /**
- * Holds statistics about a single query execution
+ * Holds statistics about a single query execution.  All times are in nanoseconds.  The times spent compiling
+ * the query are recorded by {@link Compiler#compile(String, javax.xml.transform.ErrorListener, java.net.URI, QueryStats)};
+ * the other times and counts are accumulated by the {@link Evaluator} that evaluates the query, and by its searches.
+ * Since results are evaluated lazily, the times spent searching, retrieving and evaluating overlap: search and retrieval
+ * are generally done in the course of evaluation.
  */
 public class QueryStats {
     /**
@@ -16,8 +23,9 @@ public class QueryStats {
      */
     public long collectionTime;
     
-    /*
-     * total time to evaluate the query and produce results, in nanoseconds
+    /**
+     * total time spent by searches (lux:search, lux:count and lux:exists, and collection()), including
+     * the retrieval of their results, in nanoseconds
      */
     public long totalTime;
     
@@ -40,6 +48,109 @@ public class QueryStats {
 
     public String optimizedQuery;
     
+    /**
+     * time spent compiling the query as written
+     */
+    public long compileTime;
+    
+    /**
+     * time spent translating the compiled query into an {@link lux.xpath.AbstractExpression} tree
+     */
+    public long translateTime;
+    
+    /**
+     * time spent optimizing the translated query
+     */
+    public long optimizeTime;
+    
+    /**
+     * time spent compiling the optimized query
+     */
+    public long recompileTime;
+    
+    /**
+     * time spent by Lucene finding the documents that match queries, excluding the retrieval of
+     * the documents.  When documents are retrieved in parallel, the search is done by the retrieval
+     * tasks, and is counted as retrieval time.
+     */
+    public long searchTime;
+    
+    /**
+     * time spent reading documents' stored fields from the index
+     */
+    public long fetchTime;
+    
+    /**
+     * time spent parsing documents, and building them as Saxon trees
+     */
+    public long buildTime;
+    
+    /**
+     * time spent evaluating the query, including any searches and document retrieval it performs
+     */
+    public long evaluationTime;
+    
+    /**
+     * time spent adding the results to the response.  {@link lux.solr.XQueryComponent} serializes nodes as it
+     * adds them, but results written by {@link lux.solr.LuxResponseWriter} are serialized only when the
+     * response is written, after the statistics have been reported, so this doesn't include that time,
+     * except for streamed results, which are added to the response by writing them.
+     */
+    public long responseTime;
+    
+    /**
+     * the number of times a compiled query was found in the compiled query cache
+     */
+    public int queryCacheHits;
+    
+    /**
+     * the number of times search results were found in the search result cache
+     */
+    public int resultCacheHits;
+    
+    /**
+     * the number of documents found in the document cache, or in the shared document cache
+     */
+    public int docCacheHits;
+    
+    /**
+     * the number of documents read from the index
+     */
+    public int docCacheMisses;
+    
+    /**
+     * @return the statistics as an ordered map from names to values, suitable for reporting.  Times are
+     * reported in milliseconds, with fractions.
+     */
+    public Map<String, Object> toMap () {
+        LinkedHashMap<String, Object> map = new LinkedHashMap<String, Object>();
+        map.put("compile-ms", millis(compileTime));
+        map.put("translate-ms", millis(translateTime));
+        map.put("optimize-ms", millis(optimizeTime));
+        map.put("recompile-ms", millis(recompileTime));
+        map.put("evaluate-ms", millis(evaluationTime));
+        map.put("search-ms", millis(searchTime));
+        map.put("fetch-ms", millis(fetchTime));
+        map.put("build-ms", millis(buildTime));
+        map.put("response-ms", millis(responseTime));
+        map.put("doc-count", docCount);
+        map.put("query-cache-hits", queryCacheHits);
+        map.put("result-cache-hits", resultCacheHits);
+        map.put("doc-cache-hits", docCacheHits);
+        map.put("doc-cache-misses", docCacheMisses);
+        if (query != null) {
+            map.put("lucene-query", query);
+        }
+        if (optimizedQuery != null) {
+            map.put("optimized-query", optimizedQuery);
+        }
+        return map;
+    }
+    
+    private static double millis (long nanos) {
+        return nanos / 1000000.0;
+    }
+    
     @Override
     public String toString () {
         return String.format("%s: %dms %d docs, %dms docread", 
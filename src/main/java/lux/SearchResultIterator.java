@@ -1,16 +1,22 @@
 package lux;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
 
 import lux.exception.LuxException;
+import lux.search.Deadline;
+import lux.search.LeafDocIdSetIterator;
 import lux.search.LuxSearcher;
+import lux.search.SearchResultCache;
 import lux.solr.MissingStringLastComparatorSource;
 import net.sf.saxon.om.NodeInfo;
 import net.sf.saxon.om.SequenceIterator;
 import net.sf.saxon.s9api.XdmItem;
+import net.sf.saxon.s9api.XdmNode;
 import net.sf.saxon.trans.XPathException;
 
-import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.Scorer;
@@ -21,27 +27,50 @@ import org.apache.lucene.search.SortField;
  * Executes a Lucene search and provides the results as a Saxon {@link SequenceIterator}.
  * Sort criteria are translated into Lucene SortFields: relevance score, intrinsic document order, and
  * field-value orderings are supported.
+ *
+ * <p>Sorted results are read ahead in batches of increasing size: the documents in each batch are read in docID order,
+ * and built into the document cache, before any of them is returned.  Results in document order are read one at a
+ * time, since they are read sequentially anyway.  If the {@link Compiler} provides a search executor, results in
+ * document order are instead retrieved by
+ * a {@link ParallelDocLoader}, which reads and builds documents from several index segments in parallel,
+ * ahead of their being requested.</p>
  */
 public class SearchResultIterator implements SequenceIterator<NodeInfo> {
     
-    private final DocIdSetIterator docIter;
+    private final LeafDocIdSetIterator docIter;
     private final Query query;
     private final QueryStats stats;
     private final LuxSearcher searcher;
+    private final SearchResultCache resultCache;
+    private final Deadline deadline;
+    private final ExecutorService executor;
+    private final int parallelism;
+    private final ParallelDocLoader loader;
+    private final XdmNode[] batch;
+    private final int[] batchDocIDs;
+    private final AtomicReaderContext[] batchLeaves;
+    private final int maxReadAhead;
     private final String sortCriteria;
     private final int start;
     private CachingDocReader docCache;
     private NodeInfo current = null;
+    private int batchSize;
+    private int iBatch;
+    private int readAhead = 1;
     private int position = 0;
     public static final MissingStringLastComparatorSource MISSING_LAST = new MissingStringLastComparatorSource();
+
+    /** the maximum number of sorted results read at a time */
+    public static final int MAX_READ_AHEAD = 64;
     
     /**
      * Executes a Lucene search.
      * @param eval provides the link to the index via its {@link IndexSearcher}.
      * @param query the query to execute
      * @param sortCriteria sort criteria, formatted as a comma-separated list of sort field names;
-     * each name may be followed by ascending|descending, and/or by "empty greatest"|"empty least".
-     * The default is "ascending empty least".
+     * each name may be followed by ascending|descending, and/or by "empty greatest"|"empty least",
+     * and/or by the type of a numeric field: int|long|double.
+     * The default is "ascending empty least", and the default type is string.
      * The sort criteria are Lucene field names, or may be the special name "lux:score", which selects 
      * relevance score ranking, which is always sorted in descending order: modifiers on relevance orders are ignored. 
      * If no ordering is provided, results are returned in intrinsic document order (ie ordered by document ID).
@@ -49,12 +78,19 @@ public class SearchResultIterator implements SequenceIterator<NodeInfo> {
      * @throws IOException
      */
     public SearchResultIterator (Evaluator eval, Query query, String sortCriteria, int start) throws IOException {
-        this (eval.getSearcher(), eval.getDocReader(), eval.getQueryStats(), query, sortCriteria, start);
+        this (eval.getSearcher(), eval.getDocReader(), eval.getQueryStats(), eval.getCompiler().getResultCache(),
+                eval.getCompiler().getSearchExecutor(), eval.getCompiler().getSearchParallelism(),
+                eval.getDeadline(), query, sortCriteria, start);
     }
     
-    protected SearchResultIterator (LuxSearcher searcher, CachingDocReader docReader, QueryStats stats, Query query, String sortCriteria, int start) throws IOException {
+    protected SearchResultIterator (LuxSearcher searcher, CachingDocReader docReader, QueryStats stats, SearchResultCache resultCache,
+            ExecutorService executor, int parallelism, Deadline deadline, Query query, String sortCriteria, int start) throws IOException {
         this.query = query;
         this.searcher = searcher;
+        this.resultCache = resultCache;
+        this.deadline = deadline;
+        this.executor = executor;
+        this.parallelism = parallelism;
         this.docCache = docReader;
         this.stats = stats;
         this.sortCriteria = sortCriteria;
@@ -65,12 +101,39 @@ public class SearchResultIterator implements SequenceIterator<NodeInfo> {
         if (searcher == null) {
             throw new LuxException("Attempted to search using an Evaluator that has no searcher");
         }
-        if (sortCriteria != null) {
-            Sort sort = makeSortFromCriteria();
-            docIter = searcher.search(query, sort);
+        Sort sort = sortCriteria == null ? null : makeSortFromCriteria();
+        if (executor != null && sort == null && start <= 1) {
+            loader = new ParallelDocLoader(searcher, query, docReader, executor, parallelism, deadline);
+            docIter = null;
+            batch = null;
+            batchDocIDs = null;
+            batchLeaves = null;
+            maxReadAhead = 0;
+            return;
+        }
+        loader = null;
+        maxReadAhead = sort == null ? 1 : MAX_READ_AHEAD;
+        batch = new XdmNode[maxReadAhead];
+        batchDocIDs = new int[maxReadAhead];
+        batchLeaves = new AtomicReaderContext[maxReadAhead];
+        long t = System.nanoTime();
+        LeafDocIdSetIterator cached = null;
+        if (resultCache != null) {
+            cached = resultCache.search(searcher, query, sort, sortCriteria, deadline);
+        }
+        if (cached != null) {
+            docIter = cached;
+            if (stats != null && SearchResultCache.isCacheHit(cached)) {
+                ++ stats.resultCacheHits;
+            }
+        } else if (sort != null) {
+            docIter = searcher.search(query, sort, deadline);
         } else {
             docIter = searcher.searchOrdered(query);
         }
+        if (stats != null) {
+            stats.searchTime += System.nanoTime() - t;
+        }
         if (start > 1) {
             advanceTo (start);
         }
@@ -79,12 +142,12 @@ public class SearchResultIterator implements SequenceIterator<NodeInfo> {
     private Sort makeSortFromCriteria() {
         String[] fields = sortCriteria.split(",");
         SortField[] sortFields = new SortField [fields.length];
-        SortField.Type type = SortField.Type.STRING;
         for (int i = 0; i < fields.length; i++) {
             String [] tokens = fields[i].split("\\s+");
             String field = tokens[0];
             Boolean reverse = null;
             Boolean emptyGreatest = null;
+            SortField.Type type = SortField.Type.STRING;
             for (int j = 1; j < tokens.length; j++) {
                 if (tokens[j].equals("descending")) {
                     reverse = setBooleanOnce (reverse, true, sortCriteria);
@@ -108,6 +171,8 @@ public class SearchResultIterator implements SequenceIterator<NodeInfo> {
                     type = SortField.Type.INT;
                 } else if (tokens[j].equals("long")) {
                     type = SortField.Type.LONG;
+                } else if (tokens[j].equals("double")) {
+                    type = SortField.Type.DOUBLE;
                 } else {
                     throw new LuxException ("invalid keyword '" + tokens[j] + "' in sort criterion: " + sortCriteria);
                 }
@@ -118,28 +183,57 @@ public class SearchResultIterator implements SequenceIterator<NodeInfo> {
                 }
                 sortFields[i] = SortField.FIELD_SCORE;
             } else {
-                if (emptyGreatest == Boolean.TRUE) {
-                    if (type == SortField.Type.STRING) {
-                        sortFields[i] = new SortField(field, MISSING_LAST, reverse == Boolean.TRUE);
-                    } else {
-                        sortFields[i] = new SortField(field, type, reverse == Boolean.TRUE);
-                        switch (type) {
-                        case INT:
-                            sortFields[i].setMissingValue(reverse ? 0 : Integer.MAX_VALUE);
-                            break;
-                        case LONG:
-                            sortFields[i].setMissingValue(reverse ? 0 : Long.MAX_VALUE);
-                            break;
-                        }
-                    }
-                } else {
-                    sortFields[i] = new SortField(field, type, reverse == Boolean.TRUE);
-                }
+                sortFields[i] = makeSortField(field, type, reverse == Boolean.TRUE, emptyGreatest == Boolean.TRUE);
             }
         }
         return new Sort(sortFields);
     }
 
+    /**
+     * Creates a SortField that orders documents having no value for the field as an XQuery order by
+     * clause would order empty keys.
+     * @param field the name of the field
+     * @param type the type of the field: STRING, INT, LONG or DOUBLE
+     * @param reverse whether to sort in descending order
+     * @param emptyGreatest whether documents with no value sort after all others (if true), or before
+     * all others (if false), in ascending order.
+     * @return the SortField
+     */
+    public static SortField makeSortField (String field, SortField.Type type, boolean reverse, boolean emptyGreatest) {
+        if (type == SortField.Type.STRING) {
+            // missing values sort first by default
+            return emptyGreatest ? new SortField(field, MISSING_LAST, reverse) : new SortField(field, type, reverse);
+        }
+        SortField sortField = new SortField(field, type, reverse);
+        switch (type) {
+        case INT:
+            sortField.setMissingValue(emptyGreatest ? Integer.MAX_VALUE : Integer.MIN_VALUE);
+            break;
+        case LONG:
+            sortField.setMissingValue(emptyGreatest ? Long.MAX_VALUE : Long.MIN_VALUE);
+            break;
+        case DOUBLE:
+            sortField.setMissingValue(emptyGreatest ? Double.POSITIVE_INFINITY : Double.NEGATIVE_INFINITY);
+            break;
+        default:
+        }
+        return sortField;
+    }
+
+    /**
+     * @param sortField a SortField
+     * @return whether the SortField, as created by {@link #makeSortField(String, SortField.Type, boolean, boolean)}, 
+     * orders documents with no value after all others
+     */
+    public static boolean isEmptyGreatest (SortField sortField) {
+        if (MISSING_LAST.equals(sortField.getComparatorSource())) {
+            return true;
+        }
+        Object missing = sortField.missingValue;
+        return missing != null && (missing.equals(Integer.MAX_VALUE) || missing.equals(Long.MAX_VALUE) ||
+                missing.equals(Double.POSITIVE_INFINITY));
+    }
+
     private final Boolean setBooleanOnce (Boolean current, boolean value, String sortCriteria) {
         if (current != null) {
             throw new LuxException ("Too many sort ordering keywords in: " + sortCriteria);
@@ -148,7 +242,8 @@ public class SearchResultIterator implements SequenceIterator<NodeInfo> {
     }
     
     /**
-     * @return the next result.  Returns null when there are no more results.
+     * @return the next result.  Returns null when there are no more results, or when the
+     * evaluation's {@link Deadline} has expired, in which case the results are partial.
      * Calling this function after null has been returned may result
      * in an error.
      * @throws XPathException if there is an error while searching
@@ -158,24 +253,34 @@ public class SearchResultIterator implements SequenceIterator<NodeInfo> {
         long t = System.nanoTime();
         int startPosition = position;
         try {
-            int docID = docIter.nextDoc();
-            // LoggerFactory.getLogger(ResultIterator.class).trace("GET {} {}", docID, query);
-            if (docID == Scorer.NO_MORE_DOCS) {
+            XdmItem doc = null;
+            if (deadline == null || ! deadline.isExpired()) {
+                if (loader != null) {
+                    long t1 = System.nanoTime();
+                    doc = loader.next();
+                    if (stats != null) {
+                        stats.retrievalTime += System.nanoTime() - t1;
+                    }
+                } else {
+                    if (iBatch >= batchSize) {
+                        // the deadline has already been checked
+                        readAhead ();
+                    }
+                    if (iBatch < batchSize) {
+                        doc = batch[iBatch];
+                        batch[iBatch++] = null;
+                    }
+                }
+            }
+            if (doc == null) {
                 position = -1;
                 current = null;
             } else {
-                long t1 = System.nanoTime();
-                // FIXME: use relative docID and leaf reader here  so we can avoid a binary search to find the 
-                // correct reader
-                XdmItem doc = docCache.get(docID, searcher.getIndexReader());
                 NodeInfo item = (NodeInfo) doc.getUnderlyingValue();
                 // assert documents in order : Note this is no longer accurate now that we have implemented "order by"
                 // assert (current == null || ((TinyDocumentImpl)item).getDocumentNumber() > ((TinyDocumentImpl)current).getDocumentNumber());
                 current = item;
                 ++position;
-                if (stats != null) {
-                    stats.retrievalTime += System.nanoTime() - t1;
-                }
             }
         } catch (IOException e) {
             throw new XPathException(e);
@@ -190,8 +295,54 @@ public class SearchResultIterator implements SequenceIterator<NodeInfo> {
         return current;
     }
     
+    /*
+     * Retrieves the next batch of results: their docIDs are gathered, and the documents are then read in docID order,
+     * so that stored fields are read sequentially within each segment, and built into the document cache before
+     * any of them is returned.  The batch size starts at one, so a query needing only the first result reads only
+     * that, and doubles with each batch up to MAX_READ_AHEAD.  Results in docID order are read one at a time.
+     */
+    private void readAhead () throws IOException {
+        batchSize = iBatch = 0;
+        int n = 0;
+        long t0 = System.nanoTime();
+        while (n < readAhead) {
+            int docID = docIter.nextDoc();
+            // LoggerFactory.getLogger(ResultIterator.class).trace("GET {} {}", docID, query);
+            if (docID == Scorer.NO_MORE_DOCS) {
+                break;
+            }
+            batchDocIDs[n] = docID;
+            batchLeaves[n++] = docIter.getLeaf();
+        }
+        long t = System.nanoTime();
+        if (stats != null) {
+            stats.searchTime += t - t0;
+        }
+        if (n > 1) {
+            // sort the results by docID, keeping track of their positions in the batch
+            long[] order = new long[n];
+            for (int i = 0; i < n; i++) {
+                order[i] = ((long) batchDocIDs[i] << 32) | i;
+            }
+            Arrays.sort(order);
+            for (long key : order) {
+                int i = (int) key;
+                batch[i] = docCache.getDocument(batchDocIDs[i], batchLeaves[i]);
+            }
+        } else if (n == 1) {
+            batch[0] = docCache.getDocument(batchDocIDs[0], batchLeaves[0]);
+        }
+        if (stats != null) {
+            stats.retrievalTime += System.nanoTime() - t;
+        }
+        Arrays.fill(batchLeaves, 0, n, null);
+        batchSize = n;
+        readAhead = Math.min(readAhead * 2, maxReadAhead);
+    }
+
     /**
-     * advance the iterator to (just before) the given (1-based) position.  Sets current to null: next() must be called
+     * advance the iterator to (just before) the given (1-based) position, without retrieving any of the
+     * documents along the way.  Sets current to null: next() must be called
      * after this method in order to retrieve the result at the position.
      * @param startPosition
      * @throws IOException 
@@ -200,22 +351,19 @@ public class SearchResultIterator implements SequenceIterator<NodeInfo> {
         long t = System.nanoTime();
         int start0 = startPosition-1;
         try {
-            int docID=0;
             current = null;
-            while (position < start0) {
-                docID = docIter.nextDoc();
-                if (docID == Scorer.NO_MORE_DOCS) {
+            if (position >= 0 && position < start0) {
+                int n = start0 - position;
+                if (docIter.skip(n) < n) {
                     position = -1;
-                    break;
+                } else {
+                    position = start0;
                 }
-                ++position;
-            }
-            if (stats != null) {
             }
         } finally {
             if (stats != null) {
                 long t1 = System.nanoTime();
-                stats.retrievalTime += t1 - t;
+                stats.searchTime += t1 - t;
                 stats.totalTime += t1 - t;
             }
         }
@@ -253,7 +401,8 @@ public class SearchResultIterator implements SequenceIterator<NodeInfo> {
     @Override
     public SequenceIterator<NodeInfo> getAnother() throws XPathException {
         try {
-            return new SearchResultIterator (searcher, docCache, stats, query, sortCriteria, start);
+            return new SearchResultIterator (searcher, docCache, stats, resultCache, executor, parallelism, deadline,
+                    query, sortCriteria, start);
         } catch (IOException e) {
             throw new XPathException (e);
         }
@@ -0,0 +1,230 @@
+package lux;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.tree.tiny.TinyDocumentImpl;
+import net.sf.saxon.tree.tiny.TinyTree;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.index.SegmentReader.CoreClosedListener;
+
+/**
+ * A cache of parsed documents that is shared by all the {@link CachingDocReader}s (and thus all the queries)
+ * created using a single {@link Compiler}.  Documents are keyed by the core cache key of the Lucene segment
+ * they were read from, and their docID relative to that segment, so cached documents remain valid
+ * across searcher reopens as long as their segment survives.  When a segment is closed, all of its documents
+ * are dropped from the cache.
+ *
+ * <p>The cache is bounded by the estimated size of the cached documents in bytes, rather than by the
+ * number of documents: see {@link #estimateSize(XdmNode)}.  The least-recently used documents
+ * are evicted first.</p>
+ *
+ * <p>This class is thread-safe.  Documents are built by the caller, outside of any lock, so it is possible
+ * that two threads will build the same document concurrently; in that case the last one in wins.</p>
+ *
+ * <p>Documents can only be shared among queries that use the same Saxon Configuration (and NamePool),
+ * which is why there is a cache per Compiler, rather than a single static instance.</p>
+ */
+public class SharedDocCache implements CoreClosedListener {
+
+    /** the default maximum size of the cache: 64MB */
+    public static final long DEFAULT_MAX_BYTES = 64 * 1024 * 1024;
+
+    private final long maxBytes;
+    private final LinkedHashMap<Key, Entry> cache;
+    // the segments whose closing this cache listens for, by core key
+    private final HashMap<Object, AtomicReader> segmentCores;
+    private long bytes;
+    private long evictions;
+
+    /**
+     * @param maxBytes the maximum (estimated) size of the cached documents, in bytes
+     */
+    public SharedDocCache (long maxBytes) {
+        this.maxBytes = maxBytes;
+        cache = new LinkedHashMap<Key, Entry>(1024, 0.75f, true);
+        segmentCores = new HashMap<Object, AtomicReader>();
+    }
+
+    public SharedDocCache () {
+        this (DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param segmentReader the reader for the segment containing the document
+     * @param docBase the docBase of the segment in the top-level reader that is being searched
+     * @param docID the document's docID, relative to its segment
+     * @return the cached document, or null if no document is cached.  A document is also considered
+     * not to be cached if its Saxon document number (which must be its docID in the top-level reader)
+     * doesn't match, which can happen if the segment's docBase has changed since it was cached.
+     */
+    public synchronized XdmNode get (AtomicReader segmentReader, int docBase, int docID) {
+        Entry entry = cache.get(new Key(segmentReader.getCoreCacheKey(), docID));
+        if (entry == null) {
+            return null;
+        }
+        if (entry.documentNumber != docBase + docID) {
+            return null;
+        }
+        return entry.doc;
+    }
+
+    /**
+     * Add a document to the cache, evicting the least-recently used documents if the cache's
+     * maximum size is exceeded.  Documents larger than the entire cache are not cached.
+     * @param segmentReader the reader for the segment containing the document
+     * @param docID the document's docID, relative to its segment
+     * @param doc the document
+     */
+    public void put (AtomicReader segmentReader, int docID, XdmNode doc) {
+        long size = estimateSize (doc);
+        if (size > maxBytes) {
+            return;
+        }
+        Object core = segmentReader.getCoreCacheKey();
+        Entry entry = new Entry (doc, size);
+        boolean newCore;
+        synchronized (this) {
+            Entry previous = cache.put(new Key(core, docID), entry);
+            if (previous != null) {
+                bytes -= previous.size;
+            }
+            bytes += size;
+            Iterator<Entry> entries = cache.values().iterator();
+            while (bytes > maxBytes && entries.hasNext()) {
+                Entry eldest = entries.next();
+                bytes -= eldest.size;
+                entries.remove();
+                ++evictions;
+            }
+            newCore = ! segmentCores.containsKey(core);
+            if (newCore) {
+                segmentCores.put(core, segmentReader);
+            }
+        }
+        if (newCore && segmentReader instanceof SegmentReader) {
+            ((SegmentReader) segmentReader).addCoreClosedListener(this);
+        }
+    }
+
+    /**
+     * Drops all the cached documents belonging to the segment that was closed.
+     */
+    @Override
+    public synchronized void onClose(SegmentReader segmentReader) {
+        Object core = segmentReader.getCoreCacheKey();
+        segmentCores.remove(core);
+        Iterator<Map.Entry<Key, Entry>> entries = cache.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<Key, Entry> entry = entries.next();
+            if (entry.getKey().core == core) {
+                bytes -= entry.getValue().size;
+                entries.remove();
+            }
+        }
+    }
+
+    /** Drops all cached documents, and stops listening for the closing of their segments. */
+    public synchronized void clear () {
+        for (AtomicReader segmentReader : segmentCores.values()) {
+            if (segmentReader instanceof SegmentReader) {
+                ((SegmentReader) segmentReader).removeCoreClosedListener(this);
+            }
+        }
+        segmentCores.clear();
+        cache.clear();
+        bytes = 0;
+    }
+
+    /** @return the number of cached documents */
+    public synchronized int size () {
+        return cache.size();
+    }
+
+    /** @return the estimated size of all the cached documents, in bytes */
+    public synchronized long getBytes () {
+        return bytes;
+    }
+
+    /** @return the maximum size of the cache, in bytes */
+    public long getMaxBytes () {
+        return maxBytes;
+    }
+
+    /** @return the number of documents that have been evicted to make room for others */
+    public synchronized long getEvictions () {
+        return evictions;
+    }
+
+    /**
+     * Estimates the memory used by a document.  For TinyTrees, the estimate is based on the number of
+     * nodes, attributes and namespaces, and the size of the text they contain.  This is only a rough
+     * approximation, and doesn't account for the names and other structures shared across documents.
+     * @param doc a document
+     * @return the estimated number of bytes occupied by the document
+     */
+    public static long estimateSize (XdmNode doc) {
+        long size = 64;
+        if (doc.getUnderlyingNode() instanceof TinyDocumentImpl) {
+            TinyDocumentImpl tinyDoc = (TinyDocumentImpl) doc.getUnderlyingNode();
+            TinyTree tree = tinyDoc.getTree();
+            // per node: nodeKind, depth, next, alpha, beta, nameCode, and a slot in the prior array
+            size += tree.getNumberOfNodes() * 23L;
+            // per attribute: parent, nameCode, value reference and the value itself
+            size += tree.getNumberOfAttributes() * 48L;
+            size += tree.getNumberOfNamespaces() * 8L;
+            size += tree.getCharacterBuffer().length() * 2L;
+            Object binary = tinyDoc.getUserData("_binaryDocument");
+            if (binary instanceof byte[]) {
+                size += ((byte[]) binary).length;
+            }
+        }
+        return size;
+    }
+
+    private static final class Key {
+        private final Object core;
+        private final int docID;
+
+        Key (Object core, int docID) {
+            this.core = core;
+            this.docID = docID;
+        }
+
+        @Override
+        public int hashCode () {
+            return core.hashCode() * 31 + docID;
+        }
+
+        @Override
+        public boolean equals (Object o) {
+            if (! (o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return other.docID == docID && other.core == core;
+        }
+    }
+
+    private static final class Entry {
+        private final XdmNode doc;
+        private final long documentNumber;
+        private final long size;
+
+        Entry (XdmNode doc, long size) {
+            this.doc = doc;
+            this.size = size;
+            documentNumber = doc.getUnderlyingNode().getDocumentNumber();
+        }
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
@@ -1,53 +1,118 @@
 package lux;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 import javax.xml.transform.TransformerException;
 
+import lux.search.Deadline;
+
+import net.sf.saxon.s9api.SaxonApiUncheckedException;
 import net.sf.saxon.s9api.XdmEmptySequence;
 import net.sf.saxon.s9api.XdmItem;
 import net.sf.saxon.s9api.XdmValue;
 
 /**
- * Represents the result of a query evaluation.  This will contain either an XdmValue, 
- * or if there was an error, a list of Exceptions.  The class 
+ * Represents the result of a query evaluation.  This will contain either an XdmValue,
+ * or if there was an error, a list of Exceptions.  The class
  * will never return null. If there were errors, the value will be
- * an empty sequence.  If there were no errors, there will be an empty error list.  
+ * an empty sequence.  If there were no errors, there will be an empty error list.
+ *
+ * <p>The results returned by {@link Evaluator} are computed lazily: {@link #iterator()} evaluates
+ * only as many results as are requested, so a caller that needs only the first few results
+ * does only the work required to produce them.  Results are retained once computed, so the result set may be
+ * iterated more than once.  {@link #getXdmValue()}, {@link #size()} and {@link #getErrors()} complete
+ * the evaluation.  An error that occurs during iteration ends the iteration.</p>
  */
 public class XdmResultSet implements Iterable<XdmItem> {
-    
-    private final XdmValue value;
-    private final List<TransformerException> errors;
-    
+
+    private XdmValue value;
+    private List<TransformerException> errors;
+    private Iterator<XdmItem> source;
+    private List<XdmItem> items;
+    private List<TransformerException> reportedErrors;
+    private Deadline deadline;
+
     public XdmResultSet(XdmValue value) {
         this.value = value;
         errors = Collections.emptyList();
     }
-    
+
     public XdmResultSet (List<TransformerException> errors) {
         this.value = XdmEmptySequence.getInstance();
         this.errors = errors;
     }
 
+    /**
+     * Creates a result set whose results are computed lazily.
+     * @param results the results, as an iterator that may throw {@link SaxonApiUncheckedException}
+     * @param reportedErrors a list to which errors are reported during evaluation; if evaluation fails,
+     * these errors are included in the result set's errors.
+     */
+    public XdmResultSet (Iterator<XdmItem> results, List<TransformerException> reportedErrors) {
+        this (results, reportedErrors, null);
+    }
+
+    /**
+     * Creates a result set whose results are computed lazily, subject to a deadline.
+     * @param results the results, as an iterator that may throw {@link SaxonApiUncheckedException}
+     * @param reportedErrors a list to which errors are reported during evaluation
+     * @param deadline the deadline governing the evaluation; if it is enforced, the results are partial.
+     * May be null.
+     */
+    public XdmResultSet (Iterator<XdmItem> results, List<TransformerException> reportedErrors, Deadline deadline) {
+        this.deadline = deadline;
+        source = results;
+        items = new ArrayList<XdmItem>();
+        this.reportedErrors = reportedErrors;
+        errors = Collections.emptyList();
+    }
+
+    /**
+     * Creates a result set representing a failed evaluation.
+     * @param error the error that ended the evaluation
+     * @param reportedErrors errors reported during evaluation
+     */
+    XdmResultSet (SaxonApiUncheckedException error, List<TransformerException> reportedErrors) {
+        this.value = XdmEmptySequence.getInstance();
+        this.reportedErrors = reportedErrors;
+        fail (error);
+    }
+
     /**
      * @return the result of the query evaluation, as an {@link XdmValue}.
      */
     public XdmValue getXdmValue () {
+        if (value == null) {
+            complete ();
+            if (items.isEmpty()) {
+                value = XdmEmptySequence.getInstance();
+            } else if (items.size() == 1) {
+                value = items.get(0);
+            } else {
+                value = new XdmValue(items);
+            }
+        }
         return value;
     }
-    
+
     /**
-     * @return the result of the query evaluation, as an {@link XdmItem} iterator.
+     * @return the result of the query evaluation, as an {@link XdmItem} iterator.  Results are evaluated
+     * as they are requested.
      */
     @Override
     public Iterator<XdmItem> iterator() {
-        return value.iterator();
+        if (value != null) {
+            return value.iterator();
+        }
+        return new LazyIterator ();
     }
 
     public int size() {
-        return value.size();
+        return getXdmValue().size();
     }
 
     /**
@@ -55,9 +120,90 @@ public class XdmResultSet implements Iterable<XdmItem> {
      * returns an empty list if no errors were generated.
      */
     public List<TransformerException> getErrors() {
+        complete ();
+        return errors;
+    }
+
+    /**
+     * @return the errors that have ended the evaluation so far.  Unlike {@link #getErrors()}, this does not
+     * complete the evaluation, so it is empty unless an error was raised while computing the results retrieved so far.
+     */
+    public List<TransformerException> getErrorsSoFar() {
         return errors;
     }
 
+    /**
+     * @return whether the evaluation was cut short because the time allowed for it expired, or it was
+     * cancelled, so that the results may be incomplete.  This is known for certain only once all the results
+     * have been retrieved.
+     */
+    public boolean isPartial () {
+        return deadline != null && deadline.wasEnforced();
+    }
+
+    private void complete () {
+        while (fetch()) {
+        }
+    }
+
+    /*
+     * retrieves the next result from the source, returning false if there are no more
+     */
+    private boolean fetch () {
+        if (source == null) {
+            return false;
+        }
+        try {
+            if (source.hasNext()) {
+                items.add(source.next());
+                return true;
+            }
+        } catch (SaxonApiUncheckedException e) {
+            fail (e);
+        }
+        source = null;
+        return false;
+    }
+
+    private void fail (SaxonApiUncheckedException e) {
+        source = null;
+        items = Collections.emptyList();
+        errors = new ArrayList<TransformerException>(reportedErrors);
+        if (errors.isEmpty()) {
+            // errors raised lazily are not always reported to the listener
+            Throwable cause = e.getCause();
+            if (cause instanceof TransformerException) {
+                errors.add((TransformerException) cause);
+            } else {
+                errors.add(new TransformerException(e.getMessage(), e));
+            }
+        }
+    }
+
+    private class LazyIterator implements Iterator<XdmItem> {
+
+        private int i = 0;
+
+        @Override
+        public boolean hasNext() {
+            return i < items.size() || fetch();
+        }
+
+        @Override
+        public XdmItem next() {
+            if (! hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return items.get(i++);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+    }
+
 }
 
 /* This Source Code Form is subject to the terms of the Mozilla Public
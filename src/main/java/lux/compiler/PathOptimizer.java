@@ -3,10 +3,16 @@ package lux.compiler;
 import static lux.compiler.XPathQuery.*;
 import static lux.index.IndexConfiguration.*;
 
+import java.math.BigDecimal;
+import java.math.RoundingMode;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 
 import lux.Compiler.SearchStrategy;
@@ -15,7 +21,12 @@ import lux.exception.LuxException;
 import lux.index.FieldName;
 import lux.index.IndexConfiguration;
 import lux.index.field.FieldDefinition;
+import lux.index.field.XPathField;
+import lux.query.BooleanPQuery;
+import lux.query.MatchAllPQuery;
 import lux.query.NodeTextQuery;
+import lux.query.NumericRangePQuery;
+import lux.query.ParameterizedTextQuery;
 import lux.query.ParseableQuery;
 import lux.query.SpanTermPQuery;
 import lux.query.TermPQuery;
@@ -47,6 +58,7 @@ import lux.xquery.OrderByClause;
 import lux.xquery.SortKey;
 import lux.xquery.Variable;
 import lux.xquery.VariableBindingClause;
+import lux.xquery.VariableDefinition;
 import lux.xquery.WhereClause;
 import lux.xquery.XQuery;
 
@@ -83,23 +95,32 @@ public class PathOptimizer extends ExpressionVisitorBase {
 
     private final ArrayList<XPathQuery> queryStack;
     private final HashMap<QName, VarBinding> varBindings;
+    private final HashSet<QName> globalVariables;
     private final IndexConfiguration indexConfig;
     private final XPathQuery MATCH_ALL;
 
     private final String attrQNameField;
     private final String elementQNameField;
     private boolean optimizeForOrderedResults;
+    private Map<String, List<FieldDefinition>> pathFields;
+    private final IdentityHashMap<AbstractExpression, XPathQuery> negatedQueries;
 
     private static final boolean DEBUG = false;
 
+    // the greatest possible timezone offset, in milliseconds
+    private static final long MAX_TIMEZONE_OFFSET = 14 * 60 * 60 * 1000;
+
     public PathOptimizer(IndexConfiguration indexConfig) {
         queryStack = new ArrayList<XPathQuery>();
         varBindings = new HashMap<QName, VarBinding>();
+        globalVariables = new HashSet<QName>();
         MATCH_ALL = XPathQuery.getMatchAllQuery(indexConfig);
         this.indexConfig = indexConfig;
         attrQNameField = indexConfig.getFieldName(FieldName.ATT_QNAME);
         elementQNameField = indexConfig.getFieldName(FieldName.ELT_QNAME);
         optimizeForOrderedResults = true;
+        pathFields = Collections.emptyMap();
+        negatedQueries = new IdentityHashMap<AbstractExpression, XPathQuery>();
     }
 
     /**
@@ -112,7 +133,14 @@ public class PathOptimizer extends ExpressionVisitorBase {
      */
     public XQuery optimize(XQuery query) {
         queryStack.clear();
+        negatedQueries.clear();
         push(MATCH_ALL);
+        globalVariables.clear();
+        if (query.getVariableDefinitions() != null) {
+            for (VariableDefinition def : query.getVariableDefinitions()) {
+                globalVariables.add(((Variable) def.getVariable()).getQName());
+            }
+        }
         AbstractExpression main = query.getBody();
         // Don't attempt to optimize if no indexes are available, or if the
         // query has no body
@@ -210,7 +238,7 @@ public class PathOptimizer extends ExpressionVisitorBase {
             for (Map.Entry<QName, VarBinding> entry : varBindings.entrySet()) {
                 VarBinding binding = entry.getValue();
                 if (binding.getExpr() == root) {
-                    varBindings.put(entry.getKey(), new VarBinding(binding.getVar(), search, binding.getQuery(), binding.getShadowedBinding()));
+                    varBindings.put(entry.getKey(), new VarBinding(binding.getVar(), search, binding.getQuery(), binding.getShadowedBinding(), binding.isLet()));
                 }
             }
             return expr.replaceRoot(search);
@@ -333,8 +361,21 @@ public class PathOptimizer extends ExpressionVisitorBase {
         // and from A[B[C]/D]/E we want A/B/C AND A/B/D and A/E
         // so leave the combined query on the stack, but save the base query for
         // path combination
-        XPathQuery query = combineAdjacentQueries(predicate.getBase(), predicate.getFilter(), baseQuery, filterQuery,
+        XPathQuery query = null;
+        XPathQuery negatedQuery = negatedQueries.get(predicate.getFilter());
+        if (negatedQuery != null && predicate.getBase().getType() == Type.ROOT) {
+            // (/)[not(X)] matches exactly those documents not matching (/)[X], if that query is minimal
+            AbstractExpression negated = getNegatedExpression((FunCall) predicate.getFilter());
+            XPathQuery positive = combineAdjacentQueries(predicate.getBase(), negated, baseQuery, negatedQuery,
+                    ResultOrientation.LEFT);
+            if (positive.isMinimal()) {
+                query = negateQuery(positive);
+            }
+        }
+        if (query == null) {
+            query = combineAdjacentQueries(predicate.getBase(), predicate.getFilter(), baseQuery, filterQuery,
                 ResultOrientation.LEFT);
+        }
         query.setBaseQuery(baseQuery);
         push(query);
         optimizeComparison(predicate);
@@ -540,6 +581,7 @@ public class PathOptimizer extends ExpressionVisitorBase {
         }
         // see if the function args can be converted to searches.
         optimizeSubExpressions(funcall);
+        recordNegation(funcall);
         Occur occur;
         String namespaceURI = name.getNamespaceURI();
         if (!(namespaceURI.equals(FunCall.FN_NAMESPACE) || namespaceURI.equals(FunCall.XS_NAMESPACE) || namespaceURI
@@ -720,6 +762,53 @@ public class PathOptimizer extends ExpressionVisitorBase {
         return funcall;
     }
 
+    /*
+     * Records the query for X in not(exists(X)) or empty(X), when X is relative and
+     * its query is minimal, so that the negation may be applied as a document filter by an enclosing
+     * predicate (see visit(Predicate)).  The query must be copied since the query on the stack may be
+     * modified when it is combined.
+     */
+    private void recordNegation (FunCall funcall) {
+        AbstractExpression negated = getNegatedExpression(funcall);
+        if (negated == null || negated.isAbsolute()) {
+            return;
+        }
+        XPathQuery query = peek();
+        if (query.isMinimal() && !query.isFact(IGNORABLE)) {
+            negatedQueries.put(funcall, XPathQuery.getQuery(query.getParseableQuery(), query.getFacts(),
+                    query.getResultType(), indexConfig, null));
+        }
+    }
+
+    /*
+     * @return X, if the function call is not(exists(X)) or empty(X), or null
+     */
+    private static AbstractExpression getNegatedExpression (FunCall funcall) {
+        AbstractExpression[] args = funcall.getSubs();
+        if (args.length != 1) {
+            return null;
+        }
+        QName name = funcall.getName();
+        if (name.equals(FunCall.FN_EMPTY)) {
+            return args[0];
+        }
+        if (name.equals(FunCall.FN_NOT) && args[0].getType() == Type.FUNCTION_CALL
+                && ((FunCall) args[0]).getName().equals(FunCall.FN_EXISTS) && args[0].getSubs().length == 1) {
+            return args[0].getSubs()[0];
+        }
+        return null;
+    }
+
+    /*
+     * @return a query matching all and only the documents that do *not* match the given minimal query:
+     * this is an exact query for documents satisfying (/)[not(X)] where the query is X's query.
+     */
+    private XPathQuery negateQuery (XPathQuery query) {
+        ParseableQuery negated = new BooleanPQuery(new BooleanPQuery.Clause(MatchAllPQuery.getInstance(), Occur.MUST),
+                new BooleanPQuery.Clause(query.getParseableQuery(), Occur.MUST_NOT));
+        return XPathQuery.getQuery(negated, MINIMAL | SINGULAR, ValueType.DOCUMENT, indexConfig, null);
+    }
+
     private boolean isSearchCall(AbstractExpression root) {
         return root instanceof SearchCall || (root instanceof FunCall && ((FunCall) root).getName().equals(FunCall.LUX_SEARCH));
     }
@@ -836,12 +925,16 @@ public class PathOptimizer extends ExpressionVisitorBase {
     }
 
     private void optimizeComparison(Predicate predicate) {
+        if (optimizeRangeComparison(predicate)) {
+            return;
+        }
         if (!indexConfig.isOption(INDEX_FULLTEXT)) {
             return;
         }
         // TODO: test different literal values to ensure we don't run into
         // trouble during text analysis
         LiteralExpression value = null;
+        AbstractExpression parameter = null;
         AbstractExpression path = null;
         AbstractExpression filter = predicate.getFilter();
         if (filter.getType() == Type.BINARY_OPERATION) {
@@ -856,14 +949,28 @@ public class PathOptimizer extends ExpressionVisitorBase {
         } else {
             return;
         }
-        if (filter.getSubs()[0].getType() == Type.LITERAL) {
+        if (filter.getType() == Type.FUNCTION_CALL) {
+            // the literal must be the string searched for, not the string searched
+            if (filter.getSubs()[1].getType() != Type.LITERAL) {
+                return;
+            }
+            value = (LiteralExpression) filter.getSubs()[1];
+            path = unwrapAtomized(filter.getSubs()[0]);
+        } else if (filter.getSubs()[0].getType() == Type.LITERAL) {
             value = (LiteralExpression) filter.getSubs()[0];
             path = filter.getSubs()[1];
         } else if (filter.getSubs()[1].getType() == Type.LITERAL) {
             value = (LiteralExpression) filter.getSubs()[1];
             path = filter.getSubs()[0];
+        } else if ((parameter = getParameter(filter.getSubs()[1])) != null) {
+            path = filter.getSubs()[0];
+        } else if ((parameter = getParameter(filter.getSubs()[0])) != null) {
+            path = filter.getSubs()[1];
         } else {
-            // TODO: handle variables
+            return;
+        }
+        if (parameter != null && getParameter(path) != null) {
+            // a comparison of two parameters doesn't depend on the context
             return;
         }
         AbstractExpression last = path.getLastContextStep();
@@ -873,7 +980,9 @@ public class PathOptimizer extends ExpressionVisitorBase {
             // contain any path steps
             last = predicate.getBase().getLastContextStep();
         }
-        if (last.getType() == Type.PATH_STEP) {
+        if (last.getType() == Type.PATH_STEP && parameter != null) {
+            createParameterizedTermQuery((PathStep) last, parameter);
+        } else if (last.getType() == Type.PATH_STEP) {
             String v = value.getValue().toString();
             if (filter.getType() == Type.FUNCTION_CALL) {
                 if (v.matches("\\w+")) {
@@ -881,44 +990,471 @@ public class PathOptimizer extends ExpressionVisitorBase {
                     // query;
                     // we can only do this if the term contains only word
                     // characters
-                    createTermQuery((PathStep) last, path, "*" + v + "*");
+                    createTermQuery((PathStep) last, "*" + v + "*");
                 }
             } else {
-                createTermQuery((PathStep) last, path, v);
+                createTermQuery((PathStep) last, v);
             }
         }
     }
 
-    private void createTermQuery(PathStep context, AbstractExpression path, String value) {
-        NodeTest nodeTest = context.getNodeTest();
+    private void createTermQuery(PathStep context, String value) {
+        NodeTextQuery termQuery = makeNodeTextQuery(context.getNodeTest(), value);
+        if (termQuery != null) {
+            pushTermQuery(context.getNodeTest(), termQuery);
+        }
+    }
+
+    /*
+     * The values of the parameter are unknown until the query is evaluated, so generate a query
+     * template that is expanded into a query for each of the parameter's values at run time.
+     */
+    private void createParameterizedTermQuery(PathStep context, AbstractExpression parameter) {
+        NodeTextQuery template = makeNodeTextQuery(context.getNodeTest(), "");
+        if (template != null) {
+            pushTermQuery(context.getNodeTest(), new ParameterizedTextQuery(template, parameter));
+        }
+    }
+
+    private NodeTextQuery makeNodeTextQuery(NodeTest nodeTest, String value) {
         QName nodeName = nodeTest.getQName();
-        ParseableQuery termQuery = null;
         if (nodeName == null || "*".equals(nodeName.getPrefix()) || "*".equals(nodeName.getLocalPart())) {
-            termQuery = makeTextQuery(value, indexConfig);
+            return makeTextQuery(value, indexConfig);
         } else if (nodeTest.getType() == ValueType.ELEMENT) {
-            termQuery = makeElementValueQuery(nodeName, value, indexConfig);
+            return makeElementValueQuery(nodeName, value, indexConfig);
         } else if (nodeTest.getType() == ValueType.ATTRIBUTE) {
-            termQuery = makeAttributeValueQuery(nodeName, value, indexConfig);
+            return makeAttributeValueQuery(nodeName, value, indexConfig);
         }
-        if (termQuery != null) {
-            XPathQuery query = XPathQuery.getQuery(termQuery, MINIMAL, nodeTest.getType(), indexConfig, null);
-            XPathQuery baseQuery = pop();
-            query = combineQueries(query, Occur.MUST, baseQuery, baseQuery.getResultType());
-            push(query);
+        return null;
+    }
+
+    private void pushTermQuery(NodeTest nodeTest, ParseableQuery termQuery) {
+        XPathQuery query = XPathQuery.getQuery(termQuery, MINIMAL, nodeTest.getType(), indexConfig, null);
+        XPathQuery baseQuery = pop();
+        query = combineQueries(query, Occur.MUST, baseQuery, baseQuery.getResultType());
+        push(query);
+    }
+
+    /*
+     * @return an expression equivalent to the given one whose value doesn't depend on the context in
+     * which it is evaluated, so that it may be evaluated wherever the query to which it supplies values
+     * is evaluated, or null if there is no such expression. Such expressions depend only on literals and global
+     * variables (which are bound to the same value everywhere); variables bound by let clauses are
+     * replaced by the expressions to which they are bound.
+     */
+    private AbstractExpression getParameter (AbstractExpression expr) {
+        switch (expr.getType()) {
+        case VARIABLE:
+            QName name = ((Variable) expr).getQName();
+            VarBinding binding = varBindings.get(name);
+            if (binding == null) {
+                return globalVariables.contains(name) ? expr : null;
+            }
+            if (binding.isLet() && binding.getExpr() != null) {
+                return getParameter (binding.getExpr());
+            }
+            return null;
+        case FUNCTION_CALL:
+            FunCall funcall = (FunCall) expr;
+            if (funcall.getSubs().length == 1 &&
+                    (funcall.getName().equals(FunCall.FN_DATA) || funcall.getName().equals(FunCall.FN_STRING))) {
+                AbstractExpression arg = getParameter (funcall.getSubs()[0]);
+                if (arg != null) {
+                    return new FunCall (funcall.getName(), funcall.getReturnType(), arg);
+                }
+            }
+            return null;
+        case SEQUENCE:
+            AbstractExpression[] subs = expr.getSubs();
+            AbstractExpression[] params = new AbstractExpression[subs.length];
+            for (int i = 0; i < subs.length; i++) {
+                if (subs[i].getType() == Type.LITERAL) {
+                    params[i] = subs[i];
+                } else if ((params[i] = getParameter (subs[i])) == null) {
+                    return null;
+                }
+            }
+            return params.length == 1 ? params[0] : new Sequence (params);
+        case PATH_EXPRESSION:
+            PathExpression pathExpr = (PathExpression) expr;
+            AbstractExpression lhs = getParameter (pathExpr.getLHS());
+            if (lhs != null && isRelativeToParameter (pathExpr.getRHS())) {
+                return new PathExpression (lhs, pathExpr.getRHS());
+            }
+            return null;
+        case PREDICATE:
+            Predicate pred = (Predicate) expr;
+            AbstractExpression base = getParameter (pred.getBase());
+            if (base != null && isRelativeToParameter (pred.getFilter())) {
+                return new Predicate (base, pred.getFilter());
+            }
+            return null;
+        default:
+            return null;
+        }
+    }
+
+    /*
+     * @return whether the expression, evaluated relative to a parameter (see getParameter()), depends
+     * only on its context and on global variables.  Expressions binding variables are not accepted.
+     */
+    private boolean isRelativeToParameter (AbstractExpression expr) {
+        switch (expr.getType()) {
+        case VARIABLE:
+            QName name = ((Variable) expr).getQName();
+            return varBindings.get(name) == null && globalVariables.contains(name);
+        case PATH_EXPRESSION: case PATH_STEP: case PREDICATE: case BINARY_OPERATION: case SET_OPERATION:
+        case LITERAL: case DOT: case FUNCTION_CALL: case SEQUENCE: case UNARY_MINUS: case SUBSEQUENCE:
+            AbstractExpression[] subs = expr.getSubs();
+            if (subs != null) {
+                for (AbstractExpression sub : subs) {
+                    if (sub != null && ! isRelativeToParameter (sub)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /*
+     * Inequality comparisons of a literal value with a path that matches the xpath of a numeric (or date)
+     * XPathField are optimized as range queries.  The range query is a necessary condition (a document
+     * with matching nodes must have some field value in the range), but not a sufficient one, so
+     * the comparison is still evaluated.
+     */
+    private boolean optimizeRangeComparison(Predicate predicate) {
+        if (predicate.getFilter().getType() != Type.BINARY_OPERATION) {
+            return false;
+        }
+        BinaryOperation op = (BinaryOperation) predicate.getFilter();
+        Operator operator = op.getOperator();
+        if (getRangeOperator(operator) == null) {
+            return false;
+        }
+        LiteralExpression value;
+        AbstractExpression path;
+        if (op.getOperand2().getType() == Type.LITERAL) {
+            value = (LiteralExpression) op.getOperand2();
+            path = op.getOperand1();
+        } else if (op.getOperand1().getType() == Type.LITERAL) {
+            // 1000 lt total is equivalent to total gt 1000
+            value = (LiteralExpression) op.getOperand1();
+            path = op.getOperand2();
+            operator = getRangeOperator(operator);
+        } else {
+            return false;
+        }
+        path = unwrapComparand(path);
+        QName cast = null;
+        if (isRangeCast(path)) {
+            cast = ((FunCall) path).getName();
+            path = unwrapComparand(path.getSubs()[0]);
+        }
+        FieldDefinition field = getRangeField(predicate.getBase(), path);
+        if (field == null || (cast != null && !isExactCast(cast, field.getType()))) {
+            return false;
+        }
+        ParseableQuery rangeQuery = makeRangeQuery(field, operator, value);
+        if (rangeQuery == null) {
+            return false;
+        }
+        XPathQuery query = XPathQuery.getQuery(rangeQuery, 0, ValueType.DOCUMENT, indexConfig, null);
+        XPathQuery baseQuery = pop();
+        query = combineQueries(query, Occur.MUST, baseQuery, baseQuery.getResultType());
+        push(query);
+        return true;
+    }
+
+    /*
+     * @return the operator that results from exchanging the operands of an inequality comparison,
+     * or null if the operator is not an inequality comparison
+     */
+    private static Operator getRangeOperator (Operator operator) {
+        switch (operator) {
+        case LT: return Operator.GT;
+        case GT: return Operator.LT;
+        case LE: return Operator.GE;
+        case GE: return Operator.LE;
+        case ALT: return Operator.AGT;
+        case AGT: return Operator.ALT;
+        case ALE: return Operator.AGE;
+        case AGE: return Operator.ALE;
+        default: return null;
+        }
+    }
+
+    /*
+     * Saxon rewrites general comparisons with a numeric literal, like total > 1000, as
+     * max(for $x in fn:data(total) return $x) gt 1000, and may wrap the compared expression in fn:data(), in
+     * an identity for expression, or in a type assertion (treat as).
+     * Remove these wrappers, since a document matching the comparison must have some value of the
+     * wrapped expression that satisfies the comparison.  Casts are not removed here: see isExactCast.
+     */
+    private static AbstractExpression unwrapComparand (AbstractExpression expr) {
+        for (;;) {
+            if (expr.getType() == Type.TREAT) {
+                expr = expr.getSubs()[0];
+            } else if (expr.getType() == Type.FLWOR) {
+                // for $x in E return $x
+                FLWOR flwor = (FLWOR) expr;
+                FLWORClause[] clauses = flwor.getClauses();
+                if (clauses.length != 1 || !(clauses[0] instanceof ForClause)) {
+                    return expr;
+                }
+                ForClause forClause = (ForClause) clauses[0];
+                AbstractExpression ret = flwor.getReturnExpression();
+                if (forClause.getPositionalVariable() != null || ret.getType() != Type.VARIABLE ||
+                        !((Variable) ret).getQName().equals(forClause.getVariable().getQName())) {
+                    return expr;
+                }
+                expr = forClause.getSequence();
+            } else if (expr.getType() == Type.FUNCTION_CALL && expr.getSubs().length == 1) {
+                QName fname = ((FunCall) expr).getName();
+                if (fname.equals(FunCall.FN_DATA) || fname.equals(FunCall.FN_MAX) || fname.equals(FunCall.FN_MIN)) {
+                    expr = expr.getSubs()[0];
+                } else {
+                    return expr;
+                }
+            } else {
+                return expr;
+            }
+        }
+    }
+
+    /*
+     * Saxon atomizes the first argument of contains() as for $x in fn:data(E) return xs:string($x).
+     * Remove the atomization, returning E, so that the query can be derived from E's last step.
+     */
+    private static AbstractExpression unwrapAtomized (AbstractExpression expr) {
+        for (;;) {
+            if (expr.getType() == Type.TREAT) {
+                expr = expr.getSubs()[0];
+            } else if (expr.getType() == Type.FUNCTION_CALL && expr.getSubs().length == 1 &&
+                    ((FunCall) expr).getName().equals(FunCall.FN_DATA)) {
+                expr = expr.getSubs()[0];
+            } else if (expr.getType() == Type.FLWOR) {
+                FLWOR flwor = (FLWOR) expr;
+                FLWORClause[] clauses = flwor.getClauses();
+                if (clauses.length != 1 || !(clauses[0] instanceof ForClause)) {
+                    return expr;
+                }
+                ForClause forClause = (ForClause) clauses[0];
+                AbstractExpression ret = flwor.getReturnExpression();
+                if (ret.getType() == Type.FUNCTION_CALL && ret.getSubs().length == 1 &&
+                        ((FunCall) ret).getName().equals(FunCall.XS_STRING)) {
+                    ret = ret.getSubs()[0];
+                }
+                if (forClause.getPositionalVariable() != null || ret.getType() != Type.VARIABLE ||
+                        !((Variable) ret).getQName().equals(forClause.getVariable().getQName())) {
+                    return expr;
+                }
+                expr = forClause.getSequence();
+            } else {
+                return expr;
+            }
+        }
+    }
+
+    /*
+     * @return the numeric field whose values are compared, or null if there is none.  This is either a field
+     * named in a call to lux:field-values(), or a field whose xpath is the same path as the
+     * comparand, evaluated relative to the predicate's base.
+     */
+    private FieldDefinition getRangeField (AbstractExpression base, AbstractExpression comparand) {
+        FieldDefinition field = null;
+        if (comparand.getType() == Type.FUNCTION_CALL) {
+            FunCall funcall = (FunCall) comparand;
+            if (funcall.getName().equals(FunCall.LUX_FIELD_VALUES) && funcall.getSubs().length == 1 &&
+                    funcall.getSubs()[0].getType() == Type.LITERAL) {
+                field = indexConfig.getField(((LiteralExpression) funcall.getSubs()[0]).getValue().toString());
+            }
+        } else if (! pathFields.isEmpty()) {
+            String baseKey = getPathKey(base, true);
+            String relativeKey = getPathKey(comparand, false);
+            if (baseKey != null && relativeKey != null) {
+                field = getPathField(baseKey + relativeKey, true);
+            }
+        }
+        if (field != null && field.getType().isNumeric()) {
+            return field;
+        }
+        return null;
+    }
+
+    /**
+     * Generates a key that identifies a path made up of simple steps, such that equivalent paths have
+     * equal keys.  This is used to associate paths in queries with the xpaths of indexed fields.
+     * @param expr the path expression
+     * @param absolute whether the path must be absolute (if true), or relative (if false)
+     * @return the key, or null if the expression is not a simple path of the required kind.  Predicates are
+     * ignored, since they only narrow the nodes selected by their base.
+     */
+    public static String getPathKey (AbstractExpression expr, boolean absolute) {
+        switch (expr.getType()) {
+        case ROOT:
+            return absolute ? "" : null;
+        case FUNCTION_CALL:
+            if (absolute && ((FunCall) expr).getName().equals(FunCall.FN_COLLECTION) && expr.getSubs().length == 0) {
+                return "";
+            }
+            return null;
+        case DOT:
+            return absolute ? null : "";
+        case PATH_STEP:
+            return absolute ? null : "/" + expr.toString();
+        case PREDICATE:
+            return getPathKey (((Predicate) expr).getBase(), absolute);
+        case PATH_EXPRESSION:
+            String lhs = getPathKey (((PathExpression) expr).getLHS(), absolute);
+            String rhs = getPathKey (((PathExpression) expr).getRHS(), false);
+            if (lhs == null || rhs == null) {
+                return null;
+            }
+            return lhs + rhs;
+        default:
+            return null;
         }
     }
 
+    private ParseableQuery makeRangeQuery (FieldDefinition field, Operator operator, LiteralExpression value) {
+        boolean isLowerBound = (operator == Operator.GT || operator == Operator.GE || operator == Operator.AGT || operator == Operator.AGE);
+        boolean inclusive = (operator == Operator.GE || operator == Operator.LE || operator == Operator.AGE || operator == Operator.ALE);
+        ValueType valueType = value.getValueType();
+        String bound;
+        switch (field.getType()) {
+        case DATE:
+            if (valueType != ValueType.DATE && valueType != ValueType.DATE_TIME) {
+                return null;
+            }
+            long millis;
+            try {
+                millis = XPathField.getDateMillis(value.getValue().toString());
+            } catch (LuxException e) {
+                return null;
+            }
+            // widen the range so as to include values compared using any implicit timezone
+            millis += isLowerBound ? -MAX_TIMEZONE_OFFSET : MAX_TIMEZONE_OFFSET;
+            inclusive = true;
+            bound = Long.toString(millis);
+            break;
+        case DOUBLE:
+            if (! isNumericLiteral(valueType)) {
+                return null;
+            }
+            double d = Double.parseDouble(value.getValue().toString());
+            if (Double.isNaN(d)) {
+                return null;
+            }
+            bound = Double.toString(d);
+            break;
+        default:
+            // INT, LONG
+            if (! isNumericLiteral(valueType)) {
+                return null;
+            }
+            BigDecimal decimal;
+            try {
+                decimal = new BigDecimal(value.getValue().toString());
+            } catch (NumberFormatException e) {
+                // INF, NaN
+                return null;
+            }
+            BigDecimal rounded = decimal.setScale(0, isLowerBound ? RoundingMode.CEILING : RoundingMode.FLOOR);
+            if (rounded.compareTo(decimal) != 0) {
+                // total > 10.5 is equivalent to total >= 11
+                inclusive = true;
+            }
+            long n;
+            try {
+                n = rounded.longValueExact();
+            } catch (ArithmeticException e) {
+                return null;
+            }
+            if (field.getType() == FieldDefinition.Type.INT && (n < Integer.MIN_VALUE || n > Integer.MAX_VALUE)) {
+                return null;
+            }
+            bound = Long.toString(n);
+        }
+        String fieldName = indexConfig.getFieldName(field);
+        if (isLowerBound) {
+            return new NumericRangePQuery(fieldName, field.getType(), bound, null, inclusive, true);
+        }
+        return new NumericRangePQuery(fieldName, field.getType(), null, bound, true, inclusive);
+    }
+
+    private static boolean isRangeCast (FunCall funcall) {
+        if (! funcall.getName().getNamespaceURI().equals(FunCall.XS_NAMESPACE)) {
+            return false;
+        }
+        ValueType type = funcall.getReturnType();
+        return isNumericLiteral(type) || type == ValueType.DATE || type == ValueType.DATE_TIME;
+    }
+
+    private static boolean isRangeCast (AbstractExpression expr) {
+        return expr.getType() == Type.FUNCTION_CALL && expr.getSubs().length == 1 && isRangeCast((FunCall) expr);
+    }
+
+    /*
+     * A cast may be removed from the comparand of a range comparison only if it leaves each indexed value
+     * unchanged: xs:int(-1.9) is -1, and the xs:date of 2020-01-02T23:00:00 is earlier than that dateTime, so
+     * range queries on the uncast values would exclude documents that match.
+     */
+    private static boolean isExactCast (QName cast, FieldDefinition.Type fieldType) {
+        String type = cast.getLocalPart();
+        switch (fieldType) {
+        case DOUBLE: return type.equals("double") || type.equals("decimal");
+        case INT: case LONG: return type.equals("integer") || type.equals("int") || type.equals("long");
+        case DATE: return type.equals("dateTime");
+        default: return false;
+        }
+    }
+
+    private static boolean isNumericLiteral (ValueType valueType) {
+        return valueType == ValueType.INT || valueType == ValueType.INTEGER || valueType == ValueType.DECIMAL ||
+                valueType == ValueType.DOUBLE || valueType == ValueType.FLOAT;
+    }
+
+    /*
+     * @return a field whose xpath has the given path key: a numeric field if numeric is true, otherwise
+     * a string field, or null if there is no such field.
+     */
+    private FieldDefinition getPathField (String pathKey, boolean numeric) {
+        List<FieldDefinition> fields = pathFields.get(pathKey);
+        if (fields != null) {
+            for (FieldDefinition field : fields) {
+                if (numeric ? field.getType().isNumeric() : field.getType() == FieldDefinition.Type.STRING) {
+                    return field;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Supplies the fields whose xpaths are simple paths, so that comparisons with matching
+     * paths may be optimized as range queries, and order by clauses with matching keys may be
+     * optimized as sorts.
+     * @param pathFields a map from path keys (see {@link #getPathKey(AbstractExpression, boolean)}) to
+     * the fields having those paths
+     */
+    public void setPathFields (Map<String, List<FieldDefinition>> pathFields) {
+        this.pathFields = pathFields;
+    }
+
     public static NodeTextQuery makeElementValueQuery(QName qname, String value, IndexConfiguration config) {
         return new NodeTextQuery(new Term(config.getFieldName(IndexConfiguration.ELEMENT_TEXT), value),
                 qname.getEncodedName());
     }
 
-    public static ParseableQuery makeAttributeValueQuery(QName qname, String value, IndexConfiguration config) {
+    public static NodeTextQuery makeAttributeValueQuery(QName qname, String value, IndexConfiguration config) {
         return new NodeTextQuery(new Term(config.getFieldName(IndexConfiguration.ATTRIBUTE_TEXT), value),
                 qname.getEncodedName());
     }
 
-    public static ParseableQuery makeTextQuery(String value, IndexConfiguration config) {
+    public static NodeTextQuery makeTextQuery(String value, IndexConfiguration config) {
         return new NodeTextQuery(new Term(config.getFieldName(IndexConfiguration.XML_TEXT), value));
     }
 
@@ -1104,14 +1640,22 @@ public class PathOptimizer extends ExpressionVisitorBase {
         // XPathQuery returnQuery = pop();
         peek().setSortFields(null); // ignore any ordering expressions found in
                                     // the return clause
-        int length = flwor.getClauses().length;
+        FLWORClause[] clauses = flwor.getClauses();
+        int length = clauses.length;
+        // constraints derived from where clauses, indexed by the for clause whose
+        // sequence they constrain
+        XPathQuery[] whereQueries = new XPathQuery[length];
         // iterate in reverse order so we can unwind the query stack from its
         // "top"
         // which corresponds to the "bottom" of the expression tree.
 
         for (int i = length - 1; i >= 0; i--) {
-            FLWORClause clause = flwor.getClauses()[i];
+            FLWORClause clause = clauses[i];
             AbstractExpression seq = clause.getSequence();
+            if (clause instanceof WhereClause) {
+                // do this before descoping any variables the where clause refers to
+                optimizeWhereClause(clauses, i, whereQueries);
+            }
             if (clause instanceof VariableBindingClause) {
                 QName varName = ((VariableBindingClause) clause).getVariable().getQName();
                 descopeVariable(varName);
@@ -1130,16 +1674,288 @@ public class PathOptimizer extends ExpressionVisitorBase {
             } else {
                 combineTopQueries(2, Occur.MUST);
             }
+            if (clause instanceof OrderByClause) {
+                optimizeOrderByClause(clauses, i);
+            }
             if (clause instanceof ForClause) {
-                clause.setSequence(optimizeExpression(seq, peek()));
+                XPathQuery query = peek();
+                if (whereQueries[i] != null) {
+                    query = combineQueries(query, Occur.MUST, whereQueries[i], query.getResultType());
+                }
+                clause.setSequence(optimizeExpression(seq, query));
             }
-            // TODO: optimize where and order by clauses?
         }
         // push (combineQueries (pop(), Occur.MUST, returnQuery,
         // returnQuery.getResultType()));
         return flwor;
     }
 
+    /*
+     * Saxon rewrites most where clauses as predicates, but leaves in place those that refer to let
+     * variables, or that appear in FLWORs with positional variables.  Each condition in the where clause
+     * that compares a path, or contains() a literal, where the path depends on the variable of a single for clause
+     * (through any number of let variables), yields a query that constrains the sequence of that for clause.
+     * The for clause must not have a positional variable, since filtering its sequence would change
+     * the positions.
+     */
+    private void optimizeWhereClause (FLWORClause[] clauses, int whereIndex, XPathQuery[] whereQueries) {
+        ArrayList<AbstractExpression> conditions = new ArrayList<AbstractExpression>();
+        getConjuncts (clauses[whereIndex].getSequence(), conditions);
+        for (AbstractExpression condition : conditions) {
+            for (int i = whereIndex - 1; i >= 0; i--) {
+                if (! (clauses[i] instanceof ForClause)) {
+                    continue;
+                }
+                ForClause forClause = (ForClause) clauses[i];
+                XPathQuery query = getConditionQuery (condition, forClause.getVariable().getQName());
+                if (query != null) {
+                    if (forClause.getPositionalVariable() == null) {
+                        if (whereQueries[i] == null) {
+                            whereQueries[i] = query;
+                        } else {
+                            whereQueries[i] = combineQueries(whereQueries[i], Occur.MUST, query, whereQueries[i].getResultType());
+                        }
+                    }
+                    break;
+                }
+            }
+        }
+    }
+
+    private static void getConjuncts (AbstractExpression expr, List<AbstractExpression> conjuncts) {
+        if (expr.getType() == Type.BINARY_OPERATION && ((BinaryOperation) expr).getOperator() == Operator.AND) {
+            getConjuncts (((BinaryOperation) expr).getOperand1(), conjuncts);
+            getConjuncts (((BinaryOperation) expr).getOperand2(), conjuncts);
+        } else {
+            conjuncts.add(expr);
+        }
+    }
+
+    /*
+     * @return a query derived from a comparison of a path with a literal (or, for equality, a parameter), or a call to contains(path, literal),
+     * where the path depends on the given for variable, or null if there is no such query.
+     * The path is expanded by replacing variables with their bindings, and the condition is
+     * optimized as if it were a predicate applied to the expanded path.
+     */
+    private XPathQuery getConditionQuery (AbstractExpression condition, QName forVariable) {
+        AbstractExpression comparand;
+        AbstractExpression filter;
+        if (condition.getType() == Type.BINARY_OPERATION) {
+            BinaryOperation op = (BinaryOperation) condition;
+            Operator operator = op.getOperator();
+            boolean isRange = getRangeOperator(operator) != null;
+            if (! (isRange || operator == Operator.EQUALS || operator == Operator.AEQ)) {
+                return null;
+            }
+            AbstractExpression value;
+            if (op.getOperand2().getType() == Type.LITERAL) {
+                value = op.getOperand2();
+                comparand = op.getOperand1();
+            } else if (op.getOperand1().getType() == Type.LITERAL) {
+                value = op.getOperand1();
+                comparand = op.getOperand2();
+                if (isRange) {
+                    operator = getRangeOperator(operator);
+                }
+            } else if (!isRange && (value = getParameter(op.getOperand2())) != null) {
+                comparand = op.getOperand1();
+            } else if (!isRange && (value = getParameter(op.getOperand1())) != null) {
+                comparand = op.getOperand2();
+            } else {
+                return null;
+            }
+            // casts may not be removed from the comparand of an equality comparison: the query matches the text of the node
+            AbstractExpression context = Dot.getInstance();
+            if (isRange) {
+                comparand = unwrapComparand(comparand);
+                if (isRangeCast(comparand)) {
+                    // keep the cast in the filter, where optimizeRangeComparison checks that it is exact
+                    FunCall cast = (FunCall) comparand;
+                    context = new FunCall (cast.getName(), cast.getReturnType(), context);
+                    comparand = unwrapComparand(cast.getSubs()[0]);
+                }
+            }
+            filter = new BinaryOperation (context, operator, value);
+        } else if (condition.getType() == Type.FUNCTION_CALL && ((FunCall) condition).getName().equals(FunCall.FN_CONTAINS)
+                && condition.getSubs().length == 2 && condition.getSubs()[1].getType() == Type.LITERAL) {
+            comparand = unwrapAtomized(condition.getSubs()[0]);
+            filter = new FunCall (FunCall.FN_CONTAINS, ValueType.BOOLEAN, Dot.getInstance(), condition.getSubs()[1]);
+        } else {
+            return null;
+        }
+        AbstractExpression path = expandVariables(comparand, forVariable);
+        if (path == null || getPathKey(path, true) == null) {
+            return null;
+        }
+        push (MATCH_ALL);
+        optimizeComparison(new Predicate(path, filter));
+        XPathQuery query = pop();
+        return query == MATCH_ALL ? null : query;
+    }
+
+    /*
+     * @return the given path expression with each variable replaced by the expression it is bound to,
+     * or null if the path is not a simple path depending on the given for variable.  The for variable itself is
+     * replaced by its sequence, or by the root if its sequence is a search.
+     */
+    private AbstractExpression expandVariables (AbstractExpression expr, QName forVariable) {
+        switch (expr.getType()) {
+        case TREAT:
+            return expandVariables (expr.getSubs()[0], forVariable);
+        case VARIABLE:
+            QName name = ((Variable) expr).getQName();
+            VarBinding binding = varBindings.get(name);
+            if (binding == null || binding.getExpr() == null) {
+                return null;
+            }
+            if (name.equals(forVariable)) {
+                if (isSearchCall(binding.getExpr())) {
+                    return new Root();
+                }
+                return binding.getExpr();
+            }
+            return expandVariables (binding.getExpr(), forVariable);
+        case PREDICATE:
+            // ignore the predicate, which only narrows the selected nodes
+            return expandVariables (((Predicate) expr).getBase(), forVariable);
+        case PATH_EXPRESSION:
+            PathExpression pathExpr = (PathExpression) expr;
+            AbstractExpression lhs = expandVariables (pathExpr.getLHS(), forVariable);
+            if (lhs == null) {
+                return null;
+            }
+            return new PathExpression (lhs, pathExpr.getRHS());
+        default:
+            return null;
+        }
+    }
+
+    /*
+     * Sort keys that follow any lux:field-values() keys (which were handled in visit(OrderByClause))
+     * and that are paths matching the xpath of a single-valued field are converted to SortFields, so long as they are
+     * paths depending on the variable of the FLWOR's single for clause, whose sequence is a sequence
+     * of documents.  Atomized paths are compared as strings, so only string fields are used for them,
+     * but paths cast to numeric or date types may be sorted using numeric (or date) fields.
+     * If every key is converted, the keys are removed from the order by clause, and the search
+     * does all the sorting.  Otherwise the clause is left intact, so that Saxon sorts by all the keys.
+     */
+    private void optimizeOrderByClause (FLWORClause[] clauses, int orderByIndex) {
+        ArrayList<SortKey> sortKeys = ((OrderByClause) clauses[orderByIndex]).getSortKeys();
+        XPathQuery query = peek();
+        ForClause forClause = getSortableForClause (clauses, orderByIndex);
+        ArrayList<SortField> sortFields = new ArrayList<SortField>();
+        if (query.getSortFields() != null) {
+            sortFields.addAll(Arrays.asList(query.getSortFields()));
+        }
+        if (forClause == null) {
+            return;
+        }
+        int sortFieldCount = sortFields.size();
+        AbstractExpression seq = forClause.getSequence();
+        if (seq instanceof SearchCall || "".equals(getPathKey(seq, true))) {
+            // paths are evaluated relative to the documents, whose field values are indexed
+            while (sortFields.size() < sortKeys.size()) {
+                SortField sortField = getPathSortField (sortKeys.get(sortFields.size()), forClause.getVariable().getQName());
+                if (sortField == null) {
+                    break;
+                }
+                sortFields.add(sortField);
+            }
+        }
+        if (sortFields.size() > sortFieldCount) {
+            pop();
+            push (XPathQuery.getQuery(query.getParseableQuery(), query.getFacts(), query.getResultType(), indexConfig,
+                    sortFields.toArray(new SortField[sortFields.size()])));
+        }
+        if (sortFields.size() == sortKeys.size()) {
+            sortKeys.clear();
+        }
+    }
+
+    /*
+     * @return the single for clause preceding the order by clause, if the order of its sequence
+     * determines the order of the FLWOR's results, or null.
+     */
+    private ForClause getSortableForClause (FLWORClause[] clauses, int orderByIndex) {
+        ForClause forClause = null;
+        for (int i = 0; i < orderByIndex; i++) {
+            if (clauses[i] instanceof ForClause) {
+                if (forClause != null) {
+                    // sorting the sequence of any one for clause won't order the tuples
+                    return null;
+                }
+                forClause = (ForClause) clauses[i];
+            }
+        }
+        if (forClause == null || forClause.getPositionalVariable() != null) {
+            // sorting the sequence would change the positions
+            return null;
+        }
+        return forClause;
+    }
+
+    private SortField getPathSortField (SortKey sortKey, QName forVariable) {
+        if (sortKey.getCollation() != null) {
+            return null;
+        }
+        AbstractExpression key = sortKey.getKey();
+        ValueType castType = null;
+        if (key.getType() == Type.FUNCTION_CALL && key.getSubs().length == 1 && isRangeCast((FunCall) key)) {
+            castType = ((FunCall) key).getReturnType();
+            key = key.getSubs()[0];
+        }
+        if (key.getType() == Type.FUNCTION_CALL && key.getSubs().length == 1 &&
+                ((FunCall) key).getName().equals(FunCall.FN_DATA)) {
+            key = key.getSubs()[0];
+        }
+        if (hasPredicate(key)) {
+            // a predicate may select a different value than the field's
+            return null;
+        }
+        AbstractExpression path = expandVariables(key, forVariable);
+        if (path == null) {
+            return null;
+        }
+        String pathKey = getPathKey(path, true);
+        if (pathKey == null) {
+            return null;
+        }
+        FieldDefinition field = getPathField(pathKey, castType != null);
+        if (field == null || !field.isSingleValued()) {
+            // Lucene sorts a document having several values of a field by only one of them
+            return null;
+        }
+        if (castType != null) {
+            boolean isDateCast = castType == ValueType.DATE || castType == ValueType.DATE_TIME;
+            if (isDateCast != (field.getType() == FieldDefinition.Type.DATE)) {
+                return null;
+            }
+        }
+        return makeSortField (sortKey, indexConfig.getFieldName(field), field.getType().getLuceneSortFieldType());
+    }
+
+    /**
+     * @param expr a path expression
+     * @return whether any step of the path has a predicate
+     */
+    public static boolean hasPredicate (AbstractExpression expr) {
+        switch (expr.getType()) {
+        case PREDICATE:
+            return true;
+        case TREAT:
+            return hasPredicate (expr.getSubs()[0]);
+        case PATH_EXPRESSION:
+            return hasPredicate (((PathExpression) expr).getLHS()) || hasPredicate (((PathExpression) expr).getRHS());
+        default:
+            return false;
+        }
+    }
+
+    private static SortField makeSortField (SortKey sortKey, String fieldName, SortField.Type type) {
+        String order = ((LiteralExpression) sortKey.getOrder()).getValue().toString();
+        return SearchResultIterator.makeSortField(fieldName, type, order.equals("descending"), !sortKey.isEmptyLeast());
+    }
+
     private void descopeVariable(QName varName) {
         VarBinding binding = varBindings.remove(varName);
         if (binding != null && binding.getShadowedBinding() != null) {
@@ -1159,7 +1975,9 @@ public class PathOptimizer extends ExpressionVisitorBase {
             // this order by clause.
             // Accumulate a list of contiguous indexed order keys. Merge them
             // with the
-            // query on the stack as an ordering criterion (not as a filter)
+            // query on the stack as an ordering criterion (not as a filter).
+            // The keys are removed from the clause in visit(FLWOR), if all of them
+            // are indexed
 
             // Pull queries from middle of stack since they get pushed in
             // reverse order
@@ -1180,21 +1998,10 @@ public class PathOptimizer extends ExpressionVisitorBase {
                                 "lux:field-values($key) depends on the context where there is no context defined");
                     }
                 }
-                String order = ((LiteralExpression) sortKey.getOrder()).getValue().toString();
-                SortField sortField = q.getSortFields()[0];
-                if (!sortKey.isEmptyLeast()) {
-                    // empty greatest
-                    sortField = new SortField(sortField.getField(), SearchResultIterator.MISSING_LAST, order.toString()
-                            .equals("descending"));
-                } else if (order.toString().equals("descending")) {
-                    // reverse sort order
-                    sortField = new SortField(sortField.getField(), sortField.getType(), true);
-                }
+                SortField sortField = makeSortField(sortKey, q.getSortFields()[0].getField(), q.getSortFields()[0].getType());
                 // add at the beginning: fields pop off the stack in reverse
                 // order
                 sortFields.add(sortField);
-                sortKeys.remove(i);
-                --i; // don't advance: we shrank the list
             }
         }
         if (sortFields.isEmpty()) {
@@ -1209,7 +2016,7 @@ public class PathOptimizer extends ExpressionVisitorBase {
 
     @Override
     public ForClause visit(ForClause forClause) {
-        visitVariableBinding(forClause.getVariable(), forClause.getSequence());
+        visitVariableBinding(forClause.getVariable(), forClause.getSequence(), false);
         return forClause;
     }
 
@@ -1221,7 +2028,7 @@ public class PathOptimizer extends ExpressionVisitorBase {
 
     @Override
     public LetClause visit(LetClause letClause) {
-        visitVariableBinding(letClause.getVariable(), letClause.getSequence());
+        visitVariableBinding(letClause.getVariable(), letClause.getSequence(), true);
         // Mark let clause queries as ignorable so that expressions that depend
         // on the let variable don't require the variable to be non-empty by
         // default
@@ -1229,27 +2036,37 @@ public class PathOptimizer extends ExpressionVisitorBase {
         return letClause;
     }
 
-    private void visitVariableBinding(Variable var, AbstractExpression binding) {
+    private void visitVariableBinding(Variable var, AbstractExpression binding, boolean isLet) {
         XPathQuery q = peek();
         q.setSortFields(null);
-        setBoundExpression(var, binding, q);
+        setBoundExpression(var, binding, q, isLet);
     }
 
     private void setBoundExpression(Variable var, AbstractExpression expr, XPathQuery q) {
+        setBoundExpression(var, expr, q, false);
+    }
+
+    private void setBoundExpression(Variable var, AbstractExpression expr, XPathQuery q, boolean isLet) {
         // remember the variable binding for use in optimizations
         QName name = var.getQName();
         VarBinding currentBinding = varBindings.get(name);
-        VarBinding newBinding = new VarBinding (var, expr, q, currentBinding);
+        VarBinding newBinding = new VarBinding (var, expr, q, currentBinding, isLet);
         varBindings.put(name, newBinding);
     }
 
+    /**
+     * @param name the name of a variable
+     * @return the expression to which the variable is bound, following chains of variables bound to
+     * other variables, or null if the variable is not bound in the query being optimized, as for
+     * global variables and function parameters.
+     */
     public AbstractExpression getBoundExpression(QName name) {
         VarBinding binding = varBindings.get(name);
-        while (binding.getExpr() instanceof Variable) {
+        while (binding != null && binding.getExpr() instanceof Variable) {
             // variable bound to another variable?
             binding = varBindings.get(((Variable) binding.getExpr()).getQName());
         }
-        return binding.getExpr();
+        return binding == null ? null : binding.getExpr();
     }
 
     /**
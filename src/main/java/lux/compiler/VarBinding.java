@@ -11,12 +11,18 @@ public class VarBinding {
     private final AbstractExpression expr;
     private final XPathQuery query;
     private final VarBinding shadowedBinding;
+    private final boolean isLet;
     
-    public VarBinding (Variable var, AbstractExpression expr, XPathQuery query, VarBinding currentBinding) {
+    public VarBinding (Variable var, AbstractExpression expr, XPathQuery query, VarBinding currentBinding, boolean isLet) {
         this.var = var;
         this.expr = expr;
         this.shadowedBinding = currentBinding;
         this.query = query;
+        this.isLet = isLet;
+    }
+
+    public VarBinding (Variable var, AbstractExpression expr, XPathQuery query, VarBinding currentBinding) {
+        this (var, expr, query, currentBinding, false);
     }
 
     public Variable getVar() {
@@ -34,6 +40,14 @@ public class VarBinding {
     public VarBinding getShadowedBinding() {
         return shadowedBinding;
     }
+
+    /**
+     * @return whether the variable is bound by a let clause, so that it is bound to the entire value of its
+     * expression, rather than to each of its items in turn
+     */
+    public boolean isLet() {
+        return isLet;
+    }
    
 }
 
@@ -11,9 +11,7 @@ import net.sf.saxon.tree.iter.UnfailingIterator;
 import net.sf.saxon.value.Int64Value;
 import net.sf.saxon.value.SequenceType;
 
-import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.Query;
-import org.apache.lucene.search.Scorer;
 
 /**
  * <code>function lux:count($query as item(), $hints as xs:int?) as xs:integer</code>
@@ -46,16 +44,15 @@ public class Count extends SearchBase {
     @Override 
     public UnfailingIterator<Int64Value> iterate (Query query, Evaluator saxon, long facts, String sortCriteria, int start) throws XPathException {
         int count = 0;
-        long t = System.currentTimeMillis();
+        long t = System.nanoTime();
         try {
-            DocIdSetIterator counter = saxon.getSearcher().search(query);
-            while (counter.nextDoc() != Scorer.NO_MORE_DOCS) {
-                ++count;
-            }
+            count = saxon.getSearcher().count(documentQuery(query, saxon), saxon.getDeadline());
         } catch (IOException e) {
             throw new XPathException (e);
         }
-        saxon.getQueryStats().totalTime = System.currentTimeMillis() - t;
+        long elapsed = System.nanoTime() - t;
+        saxon.getQueryStats().totalTime += elapsed;
+        saxon.getQueryStats().searchTime += elapsed;
         saxon.getQueryStats().docCount += count;
         return SingletonIterator.makeIterator(new Int64Value(count));
     }
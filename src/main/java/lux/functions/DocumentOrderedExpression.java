@@ -0,0 +1,66 @@
+package lux.functions;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.expr.Expression;
+import net.sf.saxon.expr.StaticProperty;
+import net.sf.saxon.expr.UnaryExpression;
+import net.sf.saxon.expr.XPathContext;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.SequenceIterator;
+import net.sf.saxon.trans.XPathException;
+
+/**
+ * Wraps an expression, asserting that it returns nodes in document order, and that none of them is
+ * an ancestor of another.  Saxon relies on these properties to avoid sorting the results of path
+ * expressions into document order, which requires the entire sequence to be retrieved before any of it
+ * can be returned.  Search results are ordered by docID, and their document numbers are assigned in 
+ * docID order (see {@link lux.DocIDNumberAllocator}), so search functions wrap themselves in this expression
+ * (see {@link SearchBase.SearchCall#rewrite}).  Since this relies only on Saxon's public extension
+ * function API, it is effective with any Saxon configuration, licensed or not.
+ */
+public class DocumentOrderedExpression extends UnaryExpression {
+
+    public DocumentOrderedExpression (Expression base) {
+        super (base);
+    }
+    
+    @Override
+    public int computeSpecialProperties() {
+        return super.computeSpecialProperties() | StaticProperty.ORDERED_NODESET | StaticProperty.PEER_NODESET;
+    }
+
+    @Override
+    public Expression copy() {
+        return new DocumentOrderedExpression(operand.copy());
+    }
+
+    @Override
+    public int getImplementationMethod() {
+        return operand.getImplementationMethod();
+    }
+
+    @Override
+    public SequenceIterator<? extends Item> iterate(XPathContext context) throws XPathException {
+        return operand.iterate(context);
+    }
+
+    @Override
+    public Item evaluateItem(XPathContext context) throws XPathException {
+        return operand.evaluateItem(context);
+    }
+
+    @Override
+    public boolean effectiveBooleanValue(XPathContext context) throws XPathException {
+        return operand.effectiveBooleanValue(context);
+    }
+
+    @Override
+    protected String displayOperator(Configuration config) {
+        return "document-ordered";
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
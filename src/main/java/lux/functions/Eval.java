@@ -6,6 +6,7 @@ import javax.xml.transform.TransformerException;
 
 import lux.Evaluator;
 import lux.TransformErrorListener;
+import lux.exception.LuxException;
 import lux.xpath.FunCall;
 import net.sf.saxon.expr.XPathContext;
 import net.sf.saxon.lib.ExtensionFunctionCall;
@@ -14,18 +15,21 @@ import net.sf.saxon.om.Item;
 import net.sf.saxon.om.SequenceIterator;
 import net.sf.saxon.om.StructuredQName;
 import net.sf.saxon.s9api.SaxonApiException;
-import net.sf.saxon.s9api.XQueryCompiler;
 import net.sf.saxon.s9api.XQueryEvaluator;
 import net.sf.saxon.s9api.XQueryExecutable;
 import net.sf.saxon.s9api.XdmValue;
 import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.value.BooleanValue;
 import net.sf.saxon.value.SequenceType;
 import net.sf.saxon.value.Value;
 
 /**
- * <code>lux:eval($query as xs:string, $params as item()*) as item()*</code>
+ * <code>lux:eval($query as xs:string, $params as item()*, $optimize as xs:boolean?) as item()*</code>
  * <p>This function evaluates an XQuery expression.  Parameters are bound
  * from the $params argument, which must be an even-length list of alternating names and values.
+ * If $optimize is true, the query is optimized by Lux, as top-level queries are; by default it is not.
+ * Compiled queries are cached by the {@link lux.Compiler}, so evaluating the same query repeatedly
+ * compiles it only once.
  * </p>
  */
 public class Eval extends ExtensionFunctionDefinition {
@@ -39,7 +43,8 @@ public class Eval extends ExtensionFunctionDefinition {
     public SequenceType[] getArgumentTypes() {
         return new SequenceType[] {
                 SequenceType.SINGLE_STRING,
-                SequenceType.ANY_SEQUENCE
+                SequenceType.ANY_SEQUENCE,
+                SequenceType.OPTIONAL_BOOLEAN
         };
     }
 
@@ -50,7 +55,7 @@ public class Eval extends ExtensionFunctionDefinition {
     
     @Override
     public int getMaximumNumberOfArguments() {
-        return 2;
+        return 3;
     }
     
     @Override
@@ -63,38 +68,41 @@ public class Eval extends ExtensionFunctionDefinition {
         return new EvalCall ();
     }
     
-    class EvalCall extends InterpreterCall {
+    class EvalCall extends InterpreterCall<XQueryEvaluator> {
 
-        private XQueryEvaluator evaluator;
-        
         @Override
         public SequenceIterator<?> call(@SuppressWarnings("rawtypes") SequenceIterator<? extends Item>[] arguments, XPathContext context)
                 throws XPathException {
             String query = arguments[0].next().getStringValue();
+            boolean optimize = false;
+            if (arguments.length > 2) {
+                BooleanValue optimizeArg = (BooleanValue) arguments[2].next();
+                optimize = optimizeArg != null && optimizeArg.getBooleanValue();
+            }
             Evaluator eval = SearchBase.getEvaluator(context);
-            XQueryCompiler xqueryCompiler = eval.getCompiler().getXQueryCompiler();
-            xqueryCompiler.setErrorListener(eval.getErrorListener());
+            TransformErrorListener errorListener = SearchBase.getErrorListener(context);
             try {
-                // TODO: cache compiled xslt somewhere
-                XQueryExecutable xqueryExec= xqueryCompiler.compile(query);
-                evaluator = xqueryExec.load();
-                evaluator.setErrorListener(eval.getErrorListener());
+                XQueryExecutable xqueryExec= eval.getCompiler().compile(query, errorListener, null, optimize);
+                XQueryEvaluator evaluator = xqueryExec.load();
+                evaluator.setErrorListener(errorListener);
                 if (arguments.length > 1) {
-                    bindParameters(arguments[1]);
+                    bindParameters(evaluator, arguments[1]);
                 }
                 XdmValue result = evaluator.evaluate();
-                ArrayList<TransformerException> runtimeErrors = ((TransformErrorListener)eval.getErrorListener()).getErrors();
+                ArrayList<TransformerException> runtimeErrors = errorListener.getErrors();
                 if (!runtimeErrors.isEmpty()) {
                     throw new XPathException(runtimeErrors.get(0).getMessage(), runtimeErrors.get(0).getLocator());
                 }
                 return Value.asIterator(result.getUnderlyingValue());
             } catch (SaxonApiException e) {
                 throw new XPathException (e);
+            } catch (LuxException e) {
+                throw new XPathException (e.getMessage(), e);
             }
         }
 
         @Override
-        protected void setParameter(StructuredQName name, Item<?> value) {
+        protected void setParameter(XQueryEvaluator evaluator, StructuredQName name, Item<?> value) {
             evaluator.getUnderlyingQueryContext().setParameterValue (name.getClarkName(), value);
         }
 
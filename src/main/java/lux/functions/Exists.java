@@ -46,15 +46,17 @@ public class Exists extends SearchBase {
     
     @Override 
     public UnfailingIterator<BooleanValue> iterate (Query query, Evaluator saxon, long facts, String sortCriteria, int start) throws XPathException {
-        long t = System.currentTimeMillis();
+        long t = System.nanoTime();
         boolean exists = false;
         try {
-            DocIdSetIterator iter = saxon.getSearcher().search(query);
+            DocIdSetIterator iter = saxon.getSearcher().search(documentQuery(query, saxon));
             exists = (iter.nextDoc() != Scorer.NO_MORE_DOCS);
         } catch (IOException e) {
             throw new XPathException (e);
         }
-        saxon.getQueryStats().totalTime = System.currentTimeMillis() - t;
+        long elapsed = System.nanoTime() - t;
+        saxon.getQueryStats().totalTime += elapsed;
+        saxon.getQueryStats().searchTime += elapsed;
         if (exists) {
             ++ saxon.getQueryStats().docCount;
         }
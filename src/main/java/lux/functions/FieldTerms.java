@@ -17,11 +17,16 @@ import net.sf.saxon.trans.XPathException;
 import net.sf.saxon.value.AtomicValue;
 import net.sf.saxon.value.SequenceType;
 
+import org.apache.lucene.index.DocsEnum;
 import org.apache.lucene.index.Fields;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.MultiFields;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
 
 /**
  * <code>function lux:field-terms($field-name as xs:string?, $start as xs:string?) as xs:anyAtomicItem*</code>
@@ -35,6 +40,10 @@ import org.apache.lucene.util.BytesRef;
  * field defined by the {@link IndexConfiguration}, generally the
  * {@link XmlTextField}.
  * </p>
+ * <p>
+ * Terms occurring only in fragments of documents that have been indexed separately
+ * (see {@link IndexConfiguration#addFragment(String)}) are not returned.
+ * </p>
  */
 public class FieldTerms extends ExtensionFunctionDefinition {
 
@@ -103,6 +112,8 @@ public class FieldTerms extends ExtensionFunctionDefinition {
 
     class TermsIterator implements SequenceIterator<AtomicValue> {
         private TermsEnum terms;
+        private Bits documents;
+        private DocsEnum docs;
         private final Evaluator eval;
         private Term term;
         private int pos;
@@ -124,19 +135,69 @@ public class FieldTerms extends ExtensionFunctionDefinition {
             }
             // FIXME: get sub readers (using ReaderUtil (?)) and pull values
             // from those (in parallel?)
-            Fields fields = MultiFields.getFields(eval.getSearcher().getIndexReader());
+            IndexReader reader = eval.getSearcher().getIndexReader();
+            Fields fields = MultiFields.getFields(reader);
             if (fields != null) {
+                IndexConfiguration config = eval.getCompiler().getIndexConfiguration();
+                if (config.hasFragments()) {
+                    documents = getDocuments(reader, config);
+                }
                 terms = fields.terms(fieldName).iterator(null);
                 if (t != null) {
-                    if (terms.seekCeil(new BytesRef(t.text().getBytes("utf-8"))) == TermsEnum.SeekStatus.END) {
+                    BytesRef bytesRef = null;
+                    if (terms.seekCeil(new BytesRef(t.text().getBytes("utf-8"))) != TermsEnum.SeekStatus.END) {
+                        bytesRef = skipFragmentTerms(terms.term());
+                    }
+                    if (bytesRef == null) {
                         pos = -1;
                     } else {
-                        current = terms.term().utf8ToString();
+                        current = bytesRef.utf8ToString();
                     }
                 }
             }
         }
 
+        /*
+         * @return the live documents in the index that are not fragments
+         */
+        private Bits getDocuments (IndexReader reader, IndexConfiguration config) throws IOException {
+            final Bits liveDocs = MultiFields.getLiveDocs(reader);
+            final FixedBitSet fragments = new FixedBitSet(reader.maxDoc());
+            DocIdSetIterator iter = eval.getSearcher().search(SearchBase.fragmentsQuery(config));
+            int docID;
+            while ((docID = iter.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+                fragments.set(docID);
+            }
+            return new Bits () {
+                @Override
+                public boolean get(int index) {
+                    return !fragments.get(index) && (liveDocs == null || liveDocs.get(index));
+                }
+                @Override
+                public int length() {
+                    return fragments.length();
+                }
+            };
+        }
+
+        /*
+         * @return the first term, starting with the given one, that occurs in some document other than
+         * a fragment, or null if there is none
+         */
+        private BytesRef skipFragmentTerms (BytesRef bytesRef) throws IOException {
+            if (documents == null) {
+                return bytesRef;
+            }
+            while (bytesRef != null) {
+                docs = terms.docs(documents, docs, DocsEnum.FLAG_NONE);
+                if (docs.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+                    return bytesRef;
+                }
+                bytesRef = terms.next();
+            }
+            return null;
+        }
+
         @Override
         public AtomicValue next() throws XPathException {
             try {
@@ -144,7 +205,7 @@ public class FieldTerms extends ExtensionFunctionDefinition {
                     return null;
                 }
                 String value = current;
-                BytesRef bytesRef = terms.next();
+                BytesRef bytesRef = skipFragmentTerms(terms.next());
                 if (bytesRef == null) {
                     pos = -1;
                     current = null;
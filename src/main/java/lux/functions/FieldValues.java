@@ -1,8 +1,11 @@
 package lux.functions;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
 
 import lux.Evaluator;
+import lux.index.IndexConfiguration;
 import lux.xpath.FunCall;
 import net.sf.saxon.expr.XPathContext;
 import net.sf.saxon.lib.ExtensionFunctionCall;
@@ -31,6 +34,12 @@ import org.apache.lucene.document.Document;
 * </p>
 * 
 * <p>
+* A fragment of a document that has been indexed separately (see {@link IndexConfiguration#addFragment(String)}),
+* as returned by lux:search-fragments(), has the field values of the document containing it, except
+* for its own <code>lux_fragment</code> field, which records its position in that document.
+* </p>
+* 
+* <p>
 * Order by expressions containing lux:field-values calls are subject to special optimization and are often able to be
 * implemented by index-optimized sorting in Lucene (only for string-valued fields).  
 * An error results if an attempt is made
@@ -103,7 +112,7 @@ public class FieldValues extends ExtensionFunctionDefinition {
             Evaluator eval = SearchBase.getEvaluator(context);
             Document doc ;
             try {
-                doc = eval.getSearcher().doc((int) docID);
+                doc = getDocument (eval, (int) docID, fieldName);
             }  catch (IOException e) {
                 throw new XPathException(e);
             }
@@ -115,6 +124,24 @@ public class FieldValues extends ExtensionFunctionDefinition {
             return new ArrayIterator<StringValue>(valueItems);
         }
         
+        /*
+         * Fragments are indexed in the same block as the document containing them, immediately after it,
+         * so the containing document is the nearest preceding one that is not a fragment.
+         */
+        private Document getDocument (Evaluator eval, int docID, String fieldName) throws IOException {
+            IndexConfiguration config = eval.getCompiler().getIndexConfiguration();
+            if (config.hasFragments()) {
+                String fragmentFieldName = config.getFieldName(IndexConfiguration.FRAGMENT);
+                if (! fragmentFieldName.equals(fieldName)) {
+                    Set<String> fragmentField = Collections.singleton(fragmentFieldName);
+                    while (docID > 0 && eval.getSearcher().doc(docID, fragmentField).get(fragmentFieldName) != null) {
+                        --docID;
+                    }
+                }
+            }
+            return eval.getSearcher().doc(docID);
+        }
+        
     }
 
 }
@@ -5,9 +5,15 @@ import net.sf.saxon.om.SequenceIterator;
 import net.sf.saxon.om.StructuredQName;
 import net.sf.saxon.trans.XPathException;
 
-public abstract class InterpreterCall extends NamespaceAwareFunctionCall {
+/**
+ * A base class for function calls that bind parameters to an interpreter (an XQuery or XSLT evaluator).
+ * The interpreter is passed as an argument, rather than stored, since a single function call expression
+ * may be evaluated concurrently when a compiled query is shared among threads.
+ * @param <T> the type of the interpreter
+ */
+public abstract class InterpreterCall<T> extends NamespaceAwareFunctionCall {
 
-    protected void bindParameters (@SuppressWarnings("rawtypes") SequenceIterator<? extends Item> params) throws XPathException {
+    protected void bindParameters (T interpreter, @SuppressWarnings("rawtypes") SequenceIterator<? extends Item> params) throws XPathException {
         Item<?> param;
         while ((param = params.next()) != null) {
             Item<?> value = params.next();
@@ -25,9 +31,9 @@ public abstract class InterpreterCall extends NamespaceAwareFunctionCall {
                 String nsURI = getNamespaceResolver().getURIForPrefix(prefix, false);
                 sQName = new StructuredQName(prefix, nsURI, name);
             }
-            setParameter(sQName, value);
+            setParameter(interpreter, sQName, value);
         }
     }
     
-    protected abstract void setParameter (StructuredQName name, Item<?> value);
+    protected abstract void setParameter (T interpreter, StructuredQName name, Item<?> value);
 }
\ No newline at end of file
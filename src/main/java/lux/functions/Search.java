@@ -60,6 +60,11 @@ public class Search extends SearchBase {
         return 4;
     }
     
+    @Override
+    protected boolean returnsNodes () {
+        return true;
+    }
+    
     /**
      * Iterate over the search results
      *
@@ -72,7 +77,7 @@ public class Search extends SearchBase {
     @Override
     public SequenceIterator<NodeInfo> iterate(final Query query, Evaluator eval, long facts, String sortCriteria, int start) throws XPathException {        
         try {
-            return new SearchResultIterator (eval, query, sortCriteria, start);
+            return new SearchResultIterator (eval, documentQuery(query, eval), sortCriteria, start);
         } catch (IOException e) {
             throw new XPathException (e);
         }
@@ -2,7 +2,11 @@ package lux.functions;
 
 import lux.Evaluator;
 import lux.TransformErrorListener;
+import lux.index.IndexConfiguration;
+import net.sf.saxon.expr.Expression;
+import net.sf.saxon.expr.StaticContext;
 import net.sf.saxon.expr.XPathContext;
+import net.sf.saxon.functions.IntegratedFunctionCall;
 import net.sf.saxon.lib.ExtensionFunctionCall;
 import net.sf.saxon.lib.ExtensionFunctionDefinition;
 import net.sf.saxon.om.Item;
@@ -11,8 +15,12 @@ import net.sf.saxon.trans.XPathException;
 import net.sf.saxon.value.IntegerValue;
 import net.sf.saxon.value.SequenceType;
 
+import org.apache.lucene.index.Term;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.xml.ParserException;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.PrefixQuery;
 import org.apache.lucene.search.Query;
 
 import org.slf4j.LoggerFactory;
@@ -50,8 +58,49 @@ public abstract class SearchBase extends ExtensionFunctionDefinition {
     }
     
     public static Evaluator getEvaluator (XPathContext context) {
-        TransformErrorListener listener = (TransformErrorListener) context.getController().getErrorListener();
-        return (Evaluator) listener.getUserData();
+        return (Evaluator) getErrorListener(context).getUserData();
+    }
+
+    /**
+     * @param context the dynamic context of a function call
+     * @return the error listener of the evaluation making the call, which receives the errors of the evaluation
+     */
+    public static TransformErrorListener getErrorListener (XPathContext context) {
+        return (TransformErrorListener) context.getController().getErrorListener();
+    }
+    
+    /**
+     * Restricts a query to whole documents, excluding any fragments of documents that have been indexed
+     * separately (see {@link IndexConfiguration#addFragment(String)}).
+     * @param query a query
+     * @param eval the evaluator
+     * @return the query, unchanged if the index configuration defines no fragments.
+     */
+    public static Query documentQuery (Query query, Evaluator eval) {
+        IndexConfiguration config = eval.getCompiler().getIndexConfiguration();
+        if (! config.hasFragments()) {
+            return query;
+        }
+        BooleanQuery bq = new BooleanQuery ();
+        bq.add(query, Occur.MUST);
+        bq.add(fragmentsQuery(config), Occur.MUST_NOT);
+        return bq;
+    }
+    
+    /**
+     * @param config the index configuration
+     * @return a query matching all of the fragments in the index
+     */
+    public static Query fragmentsQuery (IndexConfiguration config) {
+        // every fragment path starts with "/"
+        return new PrefixQuery(new Term(config.getFieldName(IndexConfiguration.FRAGMENT), "/"));
+    }
+    
+    /**
+     * @return whether this function returns nodes (documents); if so, they are returned in document order.
+     */
+    protected boolean returnsNodes () {
+        return false;
     }
     
     @SuppressWarnings("rawtypes")
@@ -59,6 +108,35 @@ public abstract class SearchBase extends ExtensionFunctionDefinition {
 
     public class SearchCall extends NamespaceAwareFunctionCall {
         
+        private boolean ordered;
+        
+        /**
+         * Wraps calls to functions returning nodes in a {@link DocumentOrderedExpression}, so that Saxon
+         * needn't sort their results into document order.
+         * @return the wrapped function call, or null if the function doesn't return nodes, or its call has
+         * already been wrapped.
+         */
+        @Override
+        public Expression rewrite(StaticContext context, Expression[] arguments) throws XPathException {
+            if (ordered || ! returnsNodes()) {
+                return null;
+            }
+            SearchCall call = (SearchCall) makeCallExpression();
+            call.setDefinition(getDefinition(), getContainer());
+            copyLocalData(call);
+            call.ordered = true;
+            IntegratedFunctionCall fc = new IntegratedFunctionCall(call);
+            fc.setFunctionName(getFunctionQName());
+            fc.setArguments(arguments);
+            return new DocumentOrderedExpression(fc);
+        }
+        
+        @Override
+        public void copyLocalData (ExtensionFunctionCall destination) {
+            super.copyLocalData(destination);
+            ((SearchCall) destination).ordered = ordered;
+        }
+        
         @SuppressWarnings("rawtypes") @Override
         public SequenceIterator<? extends Item> call(SequenceIterator[] arguments, XPathContext context) throws XPathException {
             
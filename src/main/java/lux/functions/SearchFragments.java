@@ -0,0 +1,51 @@
+package lux.functions;
+
+import java.io.IOException;
+
+import lux.Evaluator;
+import lux.SearchResultIterator;
+import lux.index.IndexConfiguration;
+import lux.xpath.FunCall;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.om.SequenceIterator;
+import net.sf.saxon.om.StructuredQName;
+import net.sf.saxon.trans.XPathException;
+
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+
+/**
+ * <code>function lux:search-fragments($query as item(), $hints as xs:integer, $sort as xs:string?, $start as xs:int?) as document-node()*</code>
+ * <p>Executes a Lucene search query against the fragments of documents that have been indexed separately
+ * (see {@link IndexConfiguration#addFragment(String)}), and returns the matching fragments.  The arguments are
+ * the same as those of {@link Search lux:search}.  Each fragment is returned as a document whose root is the
+ * fragment element, and whose base uri is that of the document containing it.  The fragment's path within that
+ * document is the value of its <code>lux_fragment</code> field: <code>lux:field-values('lux_fragment', $f)</code>.
+ * Since the fragments are separate documents, searching them avoids retrieving and parsing the whole of each
+ * document containing a match.</p>
+ */
+public class SearchFragments extends Search {
+    
+    @Override
+    public StructuredQName getFunctionQName() {
+        return new StructuredQName("lux", FunCall.LUX_NAMESPACE, "search-fragments");
+    }
+
+    @Override
+    public SequenceIterator<NodeInfo> iterate(final Query query, Evaluator eval, long facts, String sortCriteria, int start) throws XPathException {        
+        BooleanQuery bq = new BooleanQuery ();
+        bq.add(query, Occur.MUST);
+        bq.add(fragmentsQuery(eval.getCompiler().getIndexConfiguration()), Occur.MUST);
+        try {
+            return new SearchResultIterator (eval, bq, sortCriteria, start);
+        } catch (IOException e) {
+            throw new XPathException (e);
+        }
+    }
+    
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
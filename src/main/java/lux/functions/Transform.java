@@ -16,7 +16,6 @@ import net.sf.saxon.om.SequenceIterator;
 import net.sf.saxon.om.StructuredQName;
 import net.sf.saxon.s9api.SaxonApiException;
 import net.sf.saxon.s9api.XdmDestination;
-import net.sf.saxon.s9api.XsltCompiler;
 import net.sf.saxon.s9api.XsltExecutable;
 import net.sf.saxon.s9api.XsltTransformer;
 import net.sf.saxon.trans.XPathException;
@@ -66,10 +65,8 @@ public class Transform extends ExtensionFunctionDefinition {
         return new TransformCall ();
     }
     
-    class TransformCall extends InterpreterCall {
+    class TransformCall extends InterpreterCall<XsltTransformer> {
         
-        private XsltTransformer transformer;
-
         @Override
         public UnfailingIterator<NodeInfo> call(@SuppressWarnings("rawtypes") SequenceIterator<? extends Item>[] arguments, XPathContext context)
                 throws XPathException {
@@ -77,21 +74,19 @@ public class Transform extends ExtensionFunctionDefinition {
             NodeInfo node = (NodeInfo) arguments[1].next();
 
             Evaluator eval = SearchBase.getEvaluator(context);
-            XsltCompiler xsltCompiler = eval.getCompiler().getXsltCompiler();
-            xsltCompiler.setErrorListener(eval.getErrorListener());
+            TransformErrorListener errorListener = SearchBase.getErrorListener(context);
             try {
-                // TODO: cache compiled xslt somewhere
-                XsltExecutable xsltexec = xsltCompiler.compile(stylesheet);
-                transformer = xsltexec.load();
+                XsltExecutable xsltexec = eval.getCompiler().compileXslt(stylesheet, errorListener);
+                XsltTransformer transformer = xsltexec.load();
                 transformer.setSource(node);
-                transformer.setErrorListener(eval.getErrorListener());
+                transformer.setErrorListener(errorListener);
                 if (arguments.length > 2) {
-                    bindParameters(arguments[2]);
+                    bindParameters(transformer, arguments[2]);
                 }
                 XdmDestination dest = new XdmDestination();
                 transformer.setDestination(dest);
                 transformer.transform();
-                ArrayList<TransformerException> runtimeErrors = ((TransformErrorListener)transformer.getErrorListener()).getErrors();
+                ArrayList<TransformerException> runtimeErrors = errorListener.getErrors();
                 if (!runtimeErrors.isEmpty()) {
                     throw new XPathException(runtimeErrors.get(0).getMessage(), runtimeErrors.get(0).getLocator());
                 }
@@ -102,7 +97,7 @@ public class Transform extends ExtensionFunctionDefinition {
         }
 
         @Override
-        protected void setParameter(StructuredQName name, Item<?> value) {
+        protected void setParameter(XsltTransformer transformer, StructuredQName name, Item<?> value) {
             transformer.getUnderlyingController().setParameter(name, value);
         }
         
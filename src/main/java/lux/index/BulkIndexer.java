@@ -0,0 +1,287 @@
+package lux.index;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.lucene.index.IndexWriter;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Indexes documents in bulk using a number of worker threads, each with its own {@link XmlIndexer},
+ * all writing to a single, shared {@link IndexWriter}.  Documents are submitted with one of the add methods,
+ * which return as soon as the document has been queued.  When the queue is full, the submitting thread
+ * blocks until a worker has finished a document, so the amount of memory consumed by queued documents is bounded.
+ *
+ * <p>Documents that fail to be indexed are reported to the {@link ErrorListener}, if any, and counted;
+ * they do not interrupt the indexing of other documents.  When all documents have been submitted,
+ * call {@link #finish()} to wait for them to be indexed.  Committing the index is left to the caller.</p>
+ */
+public class BulkIndexer {
+
+    /**
+     * Receives notification of documents that could not be indexed.  Calls are made from the worker threads,
+     * so implementations must be thread-safe.
+     */
+    public interface ErrorListener {
+        /**
+         * @param uri the uri of the document that could not be indexed
+         * @param e the exception that was thrown while indexing the document
+         */
+        void error (String uri, Exception e);
+    }
+
+    private final IndexWriter indexWriter;
+    private final XmlIndexerPool indexerPool;
+    private final ExecutorService executor;
+    private final Semaphore queued;
+    private volatile ErrorListener errorListener;
+
+    private final AtomicLong documentCount = new AtomicLong();
+    private final AtomicLong failureCount = new AtomicLong();
+    private final AtomicLong byteCount = new AtomicLong();
+    private final long startTime;
+    private volatile long endTime;
+
+    /**
+     * Creates an indexer with one worker thread per available processor.
+     * @param config the index configuration
+     * @param indexWriter the writer to which all documents are added
+     */
+    public BulkIndexer (IndexConfiguration config, IndexWriter indexWriter) {
+        this (config, indexWriter, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates an indexer that queues up to four documents per worker thread.
+     * @param config the index configuration
+     * @param indexWriter the writer to which all documents are added
+     * @param threads the number of worker threads
+     */
+    public BulkIndexer (IndexConfiguration config, IndexWriter indexWriter, int threads) {
+        this (config, indexWriter, threads, threads * 4);
+    }
+
+    /**
+     * @param config the index configuration
+     * @param indexWriter the writer to which all documents are added
+     * @param threads the number of worker threads
+     * @param queueSize the number of documents that may be waiting for a worker before the add methods block
+     */
+    public BulkIndexer (IndexConfiguration config, IndexWriter indexWriter, int threads, int queueSize) {
+        if (threads < 1) {
+            throw new IllegalArgumentException ("thread count must be positive: " + threads);
+        }
+        if (queueSize < 0) {
+            throw new IllegalArgumentException ("queue size must not be negative: " + queueSize);
+        }
+        this.indexWriter = indexWriter;
+        indexerPool = new XmlIndexerPool (config, threads);
+        queued = new Semaphore (threads + queueSize);
+        executor = new ThreadPoolExecutor (threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+        startTime = System.nanoTime();
+    }
+
+    /**
+     * Queues a document for indexing.
+     * @param uri the uri of the document
+     * @param xml the text of the document
+     * @throws InterruptedException if interrupted while waiting for room in the queue
+     */
+    public void add (String uri, final String xml) throws InterruptedException {
+        submit (new IndexTask (uri, xml.length()) {
+            @Override
+            void index (XmlIndexer indexer) throws Exception {
+                indexer.indexDocument(indexWriter, uri, xml);
+            }
+        });
+    }
+
+    /**
+     * Queues a document for indexing.
+     * @param uri the uri of the document
+     * @param bytes the serialized document
+     * @throws InterruptedException if interrupted while waiting for room in the queue
+     */
+    public void add (String uri, final byte[] bytes) throws InterruptedException {
+        submit (new IndexTask (uri, bytes.length) {
+            @Override
+            void index (XmlIndexer indexer) throws Exception {
+                indexer.indexDocument(indexWriter, uri, new ByteArrayInputStream(bytes));
+            }
+        });
+    }
+
+    /**
+     * Queues a file for indexing; the file is read by the worker thread.
+     * @param uri the uri of the document
+     * @param file the file containing the document
+     * @throws InterruptedException if interrupted while waiting for room in the queue
+     */
+    public void add (String uri, final File file) throws InterruptedException {
+        submit (new IndexTask (uri, file.length()) {
+            @Override
+            void index (XmlIndexer indexer) throws Exception {
+                InputStream in = new FileInputStream(file);
+                try {
+                    indexer.indexDocument(indexWriter, uri, in);
+                } finally {
+                    in.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Queues all the files with names ending in ".xml" found in a directory, or any of its descendants,
+     * for indexing.  Each document's uri is its path.
+     * @param dir the directory to index
+     * @throws InterruptedException if interrupted while waiting for room in the queue
+     */
+    public void addDirectory (File dir) throws InterruptedException {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                addDirectory (file);
+            } else if (file.getName().endsWith(".xml")) {
+                add (file.getPath(), file);
+            }
+        }
+    }
+
+    /**
+     * Queues all the entries with names ending in ".xml" in a zip archive for indexing.  Each document's uri
+     * is its entry name, prefixed by "/".  The entries are read by the calling thread.
+     * @param zip a stream from which the archive is to be read; it is not closed
+     * @throws IOException if there is an error reading the archive
+     * @throws InterruptedException if interrupted while waiting for room in the queue
+     */
+    public void addZip (ZipInputStream zip) throws IOException, InterruptedException {
+        ZipEntry entry;
+        while ((entry = zip.getNextEntry()) != null) {
+            if (! entry.isDirectory() && entry.getName().endsWith(".xml")) {
+                add ('/' + entry.getName(), IOUtils.toByteArray(zip));
+            }
+        }
+    }
+
+    private void submit (IndexTask task) throws InterruptedException {
+        if (executor.isShutdown()) {
+            throw new IllegalStateException ("finish() has been called");
+        }
+        queued.acquire();
+        try {
+            executor.execute(task);
+        } catch (RuntimeException e) {
+            queued.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Waits for all queued documents to be indexed, and stops the worker threads.  No more documents may be
+     * added afterwards.  The index is not committed.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void finish () throws InterruptedException {
+        executor.shutdown();
+        while (! executor.awaitTermination(1, TimeUnit.SECONDS)) {
+            // keep waiting
+        }
+        if (endTime == 0) {
+            endTime = System.nanoTime();
+        }
+    }
+
+    /**
+     * @param listener receives notification of documents that could not be indexed.  If null,
+     * errors are logged.
+     */
+    public void setErrorListener (ErrorListener listener) {
+        this.errorListener = listener;
+    }
+
+    /** @return the number of documents indexed successfully so far */
+    public long getDocumentCount () {
+        return documentCount.get();
+    }
+
+    /** @return the number of documents that could not be indexed */
+    public long getFailureCount () {
+        return failureCount.get();
+    }
+
+    /** @return the total size of the documents indexed successfully so far, in bytes (or characters, for
+     * documents added as Strings) */
+    public long getByteCount () {
+        return byteCount.get();
+    }
+
+    /** @return the elapsed time in milliseconds since this indexer was created, or until {@link #finish()} was called */
+    public long getElapsedTime () {
+        return ((endTime == 0 ? System.nanoTime() : endTime) - startTime) / 1000000;
+    }
+
+    /** @return the average number of documents indexed per second */
+    public double getDocumentsPerSecond () {
+        long elapsed = getElapsedTime();
+        return elapsed == 0 ? 0 : documentCount.get() * 1000.0 / elapsed;
+    }
+
+    @Override
+    public String toString () {
+        return String.format ("%d documents (%d bytes) indexed in %d ms, %.1f docs/sec; %d failures",
+                getDocumentCount(), getByteCount(), getElapsedTime(), getDocumentsPerSecond(), getFailureCount());
+    }
+
+    private abstract class IndexTask implements Runnable {
+        protected final String uri;
+        private final long size;
+
+        IndexTask (String uri, long size) {
+            this.uri = uri;
+            this.size = size;
+        }
+
+        abstract void index (XmlIndexer indexer) throws Exception;
+
+        @Override
+        public void run () {
+            XmlIndexer indexer = indexerPool.checkout();
+            try {
+                index (indexer);
+                documentCount.incrementAndGet();
+                byteCount.addAndGet(size);
+            } catch (Exception e) {
+                failureCount.incrementAndGet();
+                if (errorListener != null) {
+                    errorListener.error(uri, e);
+                } else {
+                    LoggerFactory.getLogger(BulkIndexer.class).error("failed to index " + uri, e);
+                }
+            } finally {
+                indexerPool.release(indexer);
+                queued.release();
+            }
+        }
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
@@ -6,6 +6,7 @@ import lux.index.field.DocumentField;
 import lux.index.field.ElementQNameField;
 import lux.index.field.ElementTextField;
 import lux.index.field.FieldDefinition;
+import lux.index.field.FragmentField;
 import lux.index.field.PathField;
 import lux.index.field.PathValueField;
 import lux.index.field.QNameValueField;
@@ -23,7 +24,8 @@ public enum FieldName {
     QNAME_VALUE(QNameValueField.getInstance()),
     ELEMENT_TEXT(ElementTextField.getInstance()),
     ATTRIBUTE_TEXT(AttributeTextField.getInstance()),
-    XML_TEXT(XmlTextField.getInstance());
+    XML_TEXT(XmlTextField.getInstance()),
+    FRAGMENT(FragmentField.getInstance());
     
     FieldName (FieldDefinition field) {
         this.field = field;
@@ -1,8 +1,10 @@
 package lux.index;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import lux.index.analysis.DefaultAnalyzer;
@@ -12,6 +14,7 @@ import lux.index.field.DocumentField;
 import lux.index.field.ElementQNameField;
 import lux.index.field.ElementTextField;
 import lux.index.field.FieldDefinition;
+import lux.index.field.FragmentField;
 import lux.index.field.PathField;
 import lux.index.field.PathValueField;
 import lux.index.field.QNameValueField;
@@ -43,7 +46,10 @@ public class IndexConfiguration {
     /** causes a document to be stored in the index. This should generally always be enabled/ */
     public final static int STORE_DOCUMENT =    0x00000008;
     
-    // public final static int STORE_PTREE=        0x00000010;
+    /** causes documents to be stored (if STORE_DOCUMENT is set) in a compact binary tree format, rather than
+     * as serialized XML text.  Documents stored in this format are rebuilt without parsing when they are
+     * retrieved: see {@link lux.xml.TinyBinary}. */
+    public final static int STORE_TINY_BINARY = 0x00000010;
     
     /** enables the {@link #ELT_QNAME} and {@link #ATT_QNAME} fields, causing element and attribute 
      * QNames to be indexed.  If paths are indexed, this isn't really needed. */
@@ -99,6 +105,9 @@ public class IndexConfiguration {
     /** full text field that indexes all the text in a document (not including attribute values). */
     public static final FieldDefinition XML_TEXT = XmlTextField.getInstance();
     
+    /** identifies documents that are fragments of larger documents: see {@link #addFragment(String)}. */
+    public static final FieldDefinition FRAGMENT = FragmentField.getInstance();
+    
     // not fully supported?
     public static final FieldDefinition PATH_VALUE = PathValueField.getInstance();
     public static final FieldDefinition QNAME_VALUE = QNameValueField.getInstance();
@@ -112,6 +121,8 @@ public class IndexConfiguration {
     private final HashMap<FieldDefinition, String> fieldNames;
     private MultiFieldAnalyzer fieldAnalyzers;
     private final HashMap<String,String> namespaceMap;
+    private final ArrayList<String> fragments;
+    private int generation;
 
     /** @return the analyzers associated with the fields to be indexed */
     public MultiFieldAnalyzer getFieldAnalyzers() {
@@ -133,6 +144,7 @@ public class IndexConfiguration {
 
     protected IndexConfiguration (long options) {
         namespaceMap = new HashMap<String, String>();
+        fragments = new ArrayList<String>();
         fields = new HashMap<String, FieldDefinition>();
         fieldNames = new HashMap<FieldDefinition, String>();
         fieldAnalyzers = new MultiFieldAnalyzer();
@@ -193,6 +205,7 @@ public class IndexConfiguration {
         }
         fields.put(field.getDefaultName(), field);
         fieldAnalyzers.put(getFieldName(field), field.getAnalyzer());
+        ++generation;
     }
     
     /** 
@@ -234,6 +247,7 @@ public class IndexConfiguration {
         }
         fieldNames.put(field, name);
         fields.put(name,  field);
+        ++generation;
     }
 
     public Collection<FieldDefinition> getFields () {
@@ -270,6 +284,48 @@ public class IndexConfiguration {
     
     public void defineNamespaceMapping (String prefix, String namespaceURI) {
         namespaceMap.put(prefix, namespaceURI);
+        ++generation;
+    }
+    
+    /**
+     * Causes the elements selected by an XPath expression to be indexed as documents in their own right, in addition
+     * to the documents containing them, so that searches for such elements needn't retrieve and parse the
+     * entire document.  Fragment documents have the same uri as the document containing them, and record
+     * the element's position in that document using the {@link #FRAGMENT} field.  They are excluded from
+     * the results of ordinary searches, and are retrieved using <code>lux:search-fragments()</code>.
+     * Requires {@link #BUILD_DOCUMENT}.  Fragments are created only when documents are indexed using
+     * an XmlIndexer's IndexWriter methods (as by DirectDocWriter); the Solr update processor indexes
+     * each document as a single Solr document, and doesn't support them.
+     * @param xpath an XPath expression, evaluated with each document as its context, that selects the 
+     * elements to index as fragments, such as <code>//SPEECH</code>.
+     */
+    public void addFragment (String xpath) {
+        addField (FRAGMENT);
+        fragments.add(xpath);
+        ++generation;
+    }
+    
+    /**
+     * @return the XPath expressions selecting elements to be indexed as fragments
+     */
+    public List<String> getFragments () {
+        return Collections.unmodifiableList(fragments);
+    }
+    
+    /**
+     * @return whether any elements are to be indexed as fragments
+     */
+    public boolean hasFragments () {
+        return ! fragments.isEmpty();
+    }
+    
+    /**
+     * @return a number that changes whenever the configuration is modified: when fields are added
+     * or renamed, or namespace mappings or fragments are defined.  Queries compiled using an earlier generation of
+     * the configuration may not be valid for the current one.
+     */
+    public int getGeneration () {
+        return generation;
     }
 
 }
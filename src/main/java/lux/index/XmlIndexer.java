@@ -6,8 +6,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
 import java.io.StringReader;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map.Entry;
 
 import javax.xml.stream.XMLStreamException;
@@ -18,14 +20,20 @@ import lux.xml.OffsetDocBuilder;
 import lux.xml.SaxonDocBuilder;
 import lux.xml.Serializer;
 import lux.xml.XmlReader;
+import net.sf.saxon.om.Axis;
 import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.pattern.NodeKindTest;
 import net.sf.saxon.s9api.Processor;
 import net.sf.saxon.s9api.SaxonApiException;
 import net.sf.saxon.s9api.XPathCompiler;
 import net.sf.saxon.s9api.XPathExecutable;
 import net.sf.saxon.s9api.XPathSelector;
+import net.sf.saxon.s9api.XdmItem;
 import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmNodeKind;
 import net.sf.saxon.s9api.XdmValue;
+import net.sf.saxon.tree.iter.AxisIterator;
+import net.sf.saxon.type.Type;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.lucene.index.CorruptIndexException;
@@ -76,6 +84,8 @@ public class XmlIndexer {
     private String uri;
     private byte[] documentBytes;
     private HashMap<String,XPathExecutable> xpathCache;
+    private String fragmentPath;
+    private XmlIndexer fragmentIndexer;
     
     /**
      * Make a new instance with default options
@@ -124,8 +134,15 @@ public class XmlIndexer {
             initDocBuilder();
         }
         if (isOption (STORE_DOCUMENT)) {
-            serializer = new Serializer();
-            xmlReader.addHandler(serializer);
+            if (isOption (STORE_TINY_BINARY)) {
+                // the stored document is encoded from the document tree
+                if (saxonBuilder == null) {
+                    initDocBuilder();
+                }
+            } else {
+                serializer = new Serializer();
+                xmlReader.addHandler(serializer);
+            }
         }
         if (isOption (BUILD_DOCUMENT) && saxonBuilder == null) {
             initDocBuilder();
@@ -243,6 +260,8 @@ public class XmlIndexer {
     public void reset() {
         xmlReader.reset();
         documentBytes = null;
+        uri = null;
+        fragmentPath = null;
     }
 
     /**
@@ -266,6 +285,15 @@ public class XmlIndexer {
         return uri;
     }
     
+    /**
+     * @return the path to the element indexed by the last invocation of #index, if it was indexed as a
+     * fragment of a larger document (see {@link IndexConfiguration#addFragment(String)}), or null if
+     * a whole document was indexed.
+     */
+    public String getFragmentPath() {
+        return fragmentPath;
+    }
+    
     /**
      * @return the document cached from the last invocation of #index, as a Saxon XdmNode.
      * This will be null if the indexer options don't require the generation of an XdmNode.
@@ -284,7 +312,7 @@ public class XmlIndexer {
     /**
      * @return the document cached from the last invocation of #index, as a
      * String.  This will be null if the indexer options don't require the
-     * generation of a serialized document.  The document is always re-serialized
+     * generation of a serialized document, or if documents are stored in binary form.  The document is always re-serialized
      * after parsing.
      */
     public String getDocumentText() {
@@ -397,8 +425,68 @@ public class XmlIndexer {
         return doc;
     }
 
+    /**
+     * @return Lucene documents representing the fragments of the document cached from the last invocation of #index,
+     * as selected by the index configuration (see {@link IndexConfiguration#addFragment(String)}).  The documents are
+     * in document order.  The list is empty if no fragments are configured, or the indexed document was not parsed.
+     */
+    public List<org.apache.lucene.document.Document> createFragmentDocuments () {
+        ArrayList<org.apache.lucene.document.Document> docs = new ArrayList<org.apache.lucene.document.Document>();
+        if (! configuration.hasFragments() || documentBytes != null || getXdmNode() == null) {
+            return docs;
+        }
+        if (fragmentIndexer == null) {
+            fragmentIndexer = new XmlIndexer (configuration);
+        }
+        for (String xpath : configuration.getFragments()) {
+            XdmValue fragments;
+            try {
+                fragments = evaluateXPath(xpath);
+            } catch (SaxonApiException e) {
+                throw new LuxException (e);
+            }
+            for (XdmItem item : fragments) {
+                if (item.isAtomicValue() || ((XdmNode) item).getNodeKind() != XdmNodeKind.ELEMENT) {
+                    continue;
+                }
+                NodeInfo element = (NodeInfo) item.getUnderlyingValue();
+                try {
+                    fragmentIndexer.index(element, uri);
+                } catch (XMLStreamException e) {
+                    throw new LuxException (e);
+                }
+                fragmentIndexer.fragmentPath = getElementPath(element);
+                docs.add(fragmentIndexer.createLuceneDocument());
+            }
+        }
+        return docs;
+    }
+    
+    /*
+     * @return the path to an element, as a sequence of steps of the form *[n].
+     */
+    private static String getElementPath (NodeInfo element) {
+        StringBuilder path = new StringBuilder();
+        for (NodeInfo node = element; node != null && node.getNodeKind() == Type.ELEMENT; node = node.getParent()) {
+            int position = 1;
+            AxisIterator<?> siblings = node.iterateAxis(Axis.PRECEDING_SIBLING, NodeKindTest.ELEMENT);
+            while (siblings.next() != null) {
+                ++position;
+            }
+            path.insert(0, "/*[" + position + ']');
+        }
+        return path.toString();
+    }
+
     private void addLuceneDocument(IndexWriter indexWriter) throws CorruptIndexException, IOException {
-        indexWriter.addDocument(createLuceneDocument());
+        if (configuration.hasFragments()) {
+            // add the document first, followed by its fragments, so they are assigned adjacent docIDs
+            List<org.apache.lucene.document.Document> docs = createFragmentDocuments();
+            docs.add(0, createLuceneDocument());
+            indexWriter.addDocuments(docs);
+        } else {
+            indexWriter.addDocument(createLuceneDocument());
+        }
     }
 
     /** Primarily for internal use.
@@ -0,0 +1,93 @@
+package lux.index;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of {@link XmlIndexer}s sharing a single {@link IndexConfiguration}.  XmlIndexer is not
+ * thread-safe, and creating one is relatively expensive, since it sets up a parser, a Saxon document builder
+ * and other components, so callers that index documents concurrently should check an indexer out of
+ * a pool for the duration of each document, and then return it.
+ *
+ * <p>When the pool is empty, {@link #checkout()} creates a new indexer rather than waiting; when it is full,
+ * returned indexers are simply dropped.  The pool size should therefore be about the number of threads
+ * expected to index concurrently.</p>
+ */
+public class XmlIndexerPool {
+
+    private final IndexConfiguration config;
+    private final ArrayBlockingQueue<XmlIndexer> pool;
+    private final AtomicInteger created;
+
+    /**
+     * Creates a pool large enough for one indexer per available processor.
+     * @param config the configuration shared by all the pooled indexers
+     */
+    public XmlIndexerPool (IndexConfiguration config) {
+        this (config, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param config the configuration shared by all the pooled indexers
+     * @param size the maximum number of idle indexers to retain
+     */
+    public XmlIndexerPool (IndexConfiguration config, int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException ("indexer pool size must be positive: " + size);
+        }
+        this.config = config;
+        pool = new ArrayBlockingQueue<XmlIndexer>(size);
+        created = new AtomicInteger();
+    }
+
+    /**
+     * @return an idle indexer from the pool, or a new one if none is available.  The indexer must be
+     * returned using {@link #release(XmlIndexer)} once any field values retrieved from it have been consumed.
+     */
+    public XmlIndexer checkout () {
+        XmlIndexer indexer = pool.poll();
+        if (indexer == null) {
+            indexer = new XmlIndexer (config);
+            created.incrementAndGet();
+        }
+        return indexer;
+    }
+
+    /**
+     * Resets the indexer, releasing any document it holds, and returns it to the pool.  If the pool
+     * is full, the indexer is discarded.
+     * @param indexer an indexer obtained from {@link #checkout()}
+     */
+    public void release (XmlIndexer indexer) {
+        if (indexer.getConfiguration() != config) {
+            throw new IllegalArgumentException ("indexer was not created by this pool");
+        }
+        indexer.reset();
+        pool.offer(indexer);
+    }
+
+    /** @return the configuration shared by the pooled indexers */
+    public IndexConfiguration getConfiguration () {
+        return config;
+    }
+
+    /** @return the number of idle indexers in the pool */
+    public int size () {
+        return pool.size();
+    }
+
+    /** @return the maximum number of idle indexers retained by the pool */
+    public int getMaxSize () {
+        return pool.size() + pool.remainingCapacity();
+    }
+
+    /** @return the total number of indexers created by the pool */
+    public int getCreated () {
+        return created.get();
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
@@ -2,13 +2,18 @@ package lux.index.field;
 
 import java.util.Collections;
 
+import lux.exception.LuxException;
+import lux.index.IndexConfiguration;
 import lux.index.XmlIndexer;
+import lux.xml.TinyBinary;
+import net.sf.saxon.trans.XPathException;
 
 import org.apache.lucene.document.Field.Store;
 
 /**
- * A stored field that is used to store the entire XML document.
- *
+ * A stored field that is used to store the entire XML document.  Documents are stored as serialized XML text,
+ * or, if the {@link IndexConfiguration#STORE_TINY_BINARY} option is set, in the binary format defined by
+ * {@link TinyBinary}.  Non-XML documents are stored as bytes.
  */
 public class DocumentField extends FieldDefinition {
     
@@ -28,6 +33,13 @@ public class DocumentField extends FieldDefinition {
         if (bytes != null) {
             return Collections.singleton(bytes);
         }
+        if (indexer.getConfiguration().isOption(IndexConfiguration.STORE_TINY_BINARY)) {
+            try {
+                return Collections.singleton(TinyBinary.encode(indexer.getXdmNode().getUnderlyingNode()));
+            } catch (XPathException e) {
+                throw new LuxException (e);
+            }
+        }
         return Collections.singleton(indexer.getDocumentText());
     }
 
@@ -44,18 +44,27 @@ public abstract class FieldDefinition {
 
     /** Represents the type of data fed to the index for a given field.
      * TOKENS-type fields are expected to provide a TokenStream, where the
-     * other types provide each values as a Java object.
+     * other types provide each values as a Java object.  DATE values are indexed
+     * as the number of milliseconds since the epoch (see {@link XPathField#getDateMillis(CharSequence)}).
      */
     public enum Type {
-        TOKENS, STRING, BYTES, INT, LONG, TEXT;
+        TOKENS, STRING, BYTES, INT, LONG, TEXT, DOUBLE, DATE;
         public SortField.Type getLuceneSortFieldType () {
             switch (this) {
             case STRING: return SortField.Type.STRING;
             case INT: return SortField.Type.INT;
-            case LONG: return SortField.Type.LONG;
+            case LONG: case DATE: return SortField.Type.LONG;
+            case DOUBLE: return SortField.Type.DOUBLE;
             default: return SortField.Type.DOC; // ignore??
             }
         }
+        /**
+         * @return whether values of this type are indexed as Lucene numeric fields, and may be
+         * queried using numeric range queries
+         */
+        public boolean isNumeric () {
+            return this == INT || this == LONG || this == DOUBLE || this == DATE;
+        }
     };
     
     private final Type type;    
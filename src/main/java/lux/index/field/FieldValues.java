@@ -4,6 +4,7 @@ import java.util.Iterator;
 
 import lux.index.IndexConfiguration;
 
+import org.apache.lucene.document.DoubleField;
 import org.apache.lucene.document.IntField;
 import org.apache.lucene.document.LongField;
 import org.apache.lucene.document.StoredField;
@@ -59,8 +60,12 @@ public class FieldValues implements Iterable<IndexableField> {
                 return new IntField(fieldName, ((Integer)value).intValue(), field.isStored());
 
             case LONG:
+            case DATE:
                 return new LongField(fieldName, ((Long)value).longValue(), field.isStored());
 
+            case DOUBLE:
+                return new DoubleField(fieldName, ((Double)value).doubleValue(), field.isStored());
+
             case TOKENS:
                 return (IndexableField) value;
 
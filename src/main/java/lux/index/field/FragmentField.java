@@ -0,0 +1,49 @@
+package lux.index.field;
+
+import java.util.Collections;
+import java.util.Set;
+
+import lux.index.IndexConfiguration;
+import lux.index.XmlIndexer;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.StringField;
+
+/**
+ * Identifies a Lucene document representing a fragment of an XML document: an element that has been indexed
+ * as a document in its own right (see {@link IndexConfiguration#addFragment(String)}).  The value of the field
+ * is the path to the element within its document, as a sequence of positional steps, such as <code>/*[1]/*[3]</code>.
+ * Whole documents have no value for this field.
+ */
+public class FragmentField extends FieldDefinition {
+    
+    private static final FragmentField instance = new FragmentField();
+    
+    public static FragmentField getInstance() {
+        return instance;
+    }
+    
+    protected FragmentField () {
+        super ("lux_fragment", new KeywordAnalyzer(), Store.YES, Type.STRING, true);
+    }
+    
+    @Override
+    public Set<StringField> getFieldValues(XmlIndexer indexer) {
+        String path = indexer.getFragmentPath();
+        if (path == null) {
+            return Collections.emptySet();
+        }
+        return Collections.singleton(new StringField(indexer.getConfiguration().getFieldName(this), path, Store.YES)); 
+    }
+    
+    @Override
+    public boolean isSingleValued() {
+        return true;
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
@@ -4,10 +4,15 @@ import java.util.Iterator;
 
 import lux.exception.LuxException;
 import lux.index.XmlIndexer;
+import net.sf.saxon.lib.ConversionRules;
 import net.sf.saxon.s9api.SaxonApiException;
 import net.sf.saxon.s9api.XdmItem;
 import net.sf.saxon.s9api.XdmSequenceIterator;
 import net.sf.saxon.s9api.XdmValue;
+import net.sf.saxon.type.ConversionResult;
+import net.sf.saxon.type.ValidationFailure;
+import net.sf.saxon.value.CalendarValue;
+import net.sf.saxon.value.Whitespace;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.document.Field.Store;
@@ -15,17 +20,59 @@ import org.apache.lucene.document.Field.Store;
 /**
  * Indexes the values of the XPath expression evaluated with the document as the context item
  * @param <T> the type of value stored in or indexed by the field; must correspond with the {@link FieldDefinition.Type}:
- * STRING =&gt; String, and INT =&gt; Integer
+ * STRING =&gt; String, INT =&gt; Integer, LONG =&gt; Long, DOUBLE =&gt; Double, and DATE =&gt; Long (see
+ * {@link #getDateMillis(CharSequence)}).  Comparisons between paths that match the xpath of a numeric field and
+ * literal values are optimized as range queries.
  */
 public class XPathField<T> extends FieldDefinition {
     
+    private static final ConversionRules CONVERSION_RULES = new ConversionRules();
+
     private final String xpath;
+
+    private final boolean isSingleValued;
     
     public XPathField (String name, String xpath, Analyzer analyzer, Store isStored, Type type) {
+        this (name, xpath, analyzer, isStored, type, false);
+    }
+
+    /**
+     * @param isSingleValued whether the xpath yields at most one value for each document.  FLWOR order by
+     * clauses are optimized as sorts using only single-valued fields.
+     */
+    public XPathField (String name, String xpath, Analyzer analyzer, Store isStored, Type type, boolean isSingleValued) {
         super (name, analyzer, isStored, type);
         this.xpath = xpath;
+        this.isSingleValued = isSingleValued;
     }
     
+    /**
+     * @return the xpath expression whose values are indexed
+     */
+    public String getXPath () {
+        return xpath;
+    }
+
+    @Override
+    public boolean isSingleValued () {
+        return isSingleValued;
+    }
+
+    /**
+     * Converts an xs:date or xs:dateTime to the value indexed by DATE fields: the number of milliseconds since
+     * the epoch.  Values with no timezone are treated as UTC.
+     * @param value the lexical form of an xs:date or xs:dateTime
+     * @return the number of milliseconds since 1970-01-01T00:00:00Z
+     * @throws LuxException if the value is not a valid date or dateTime
+     */
+    public static long getDateMillis (CharSequence value) {
+        ConversionResult result = CalendarValue.makeCalendarValue(Whitespace.trim(value), CONVERSION_RULES);
+        if (result instanceof ValidationFailure) {
+            throw new LuxException ("invalid date: " + value);
+        }
+        return ((CalendarValue) result).getCalendar().getTimeInMillis();
+    }
+
     @Override
     public Iterable<T> getValues(XmlIndexer indexer) {
         XdmValue value;
@@ -55,7 +102,10 @@ public class XPathField<T> extends FieldDefinition {
             XdmItem item = sequence.next();
             switch (getType()) {
             case STRING: return (T) item.getStringValue();
-            case INT: return (T) Integer.valueOf (item.getStringValue());
+            case INT: return (T) Integer.valueOf (item.getStringValue().trim());
+            case LONG: return (T) Long.valueOf (item.getStringValue().trim());
+            case DOUBLE: return (T) Double.valueOf (item.getStringValue().trim());
+            case DATE: return (T) Long.valueOf (getDateMillis (item.getStringValue()));
             default: throw new IllegalStateException (getType() + " is not a valid type for an XPathField");
             }
         }
@@ -3,6 +3,7 @@ package lux.query;
 import lux.index.IndexConfiguration;
 import lux.query.parser.LuxQueryParser;
 import lux.xml.QName;
+import lux.xpath.AbstractExpression;
 import lux.xpath.LiteralExpression;
 import lux.xquery.AttributeConstructor;
 import lux.xquery.ElementConstructor;
@@ -48,7 +49,26 @@ public class NodeTextQuery extends ParseableQuery {
         return toXmlNode(field, QUERY_QNAME);
     }
     
+    /**
+     * @param field the default field
+     * @param text an expression supplying the text of the query, in place of the term's text
+     * @return the query element
+     */
+    protected ElementConstructor toXmlNode (String field, AbstractExpression text) {
+        return toXmlNode(field, QUERY_QNAME, text);
+    }
+
     protected ElementConstructor toXmlNode (String field, QName elementName) {
+        return toXmlNode (field, elementName, new LiteralExpression(term.text()));
+    }
+
+    /**
+     * @param field the default field
+     * @param elementName the name of the query element
+     * @param text an expression supplying the text of the query, in place of the term's text
+     * @return the query element
+     */
+    protected ElementConstructor toXmlNode (String field, QName elementName, AbstractExpression text) {
         AttributeConstructor fieldAtt=null;
         if (! term.field().isEmpty()) {
             // term field overrides field passed from context
@@ -64,7 +84,7 @@ public class NodeTextQuery extends ParseableQuery {
             qNameAtt = new AttributeConstructor(QNAME_ATTR_NAME, new LiteralExpression (qName));
         }
         return new ElementConstructor
-                (elementName, new LiteralExpression(term.text()), fieldAtt, qNameAtt, boostAtt);
+                (elementName, text, fieldAtt, qNameAtt, boostAtt);
     }
 
     /**
@@ -73,9 +93,17 @@ public class NodeTextQuery extends ParseableQuery {
      */
     @Override
     public String toQueryString (String field, IndexConfiguration config) {
+        return toQueryString (config, LuxQueryParser.escapeQParser(term.text()));
+    }
+
+    /**
+     * @param config the index configuration
+     * @param text the (escaped) text of the query, in place of the term's text
+     * @return the query rendered in the Lux query parser syntax
+     */
+    protected String toQueryString (IndexConfiguration config, String text) {
         StringBuilder buf = new StringBuilder ();
         String tf = term.field();
-        String text = LuxQueryParser.escapeQParser(term.text());
         if (StringUtils.isBlank(qName)) {
             buf.append ('<').append(':').append(text);
         }
@@ -0,0 +1,140 @@
+package lux.query;
+
+import lux.index.IndexConfiguration;
+import lux.index.field.FieldDefinition.Type;
+import lux.xml.QName;
+import lux.xpath.LiteralExpression;
+import lux.xquery.AttributeConstructor;
+import lux.xquery.ElementConstructor;
+
+/**
+ * Parseable analogue of NumericRangeQuery.  Either bound may be null, indicating an open-ended range.
+ */
+public class NumericRangePQuery extends ParseableQuery {
+
+    private static final LiteralExpression FIELD_ATTR_NAME = new LiteralExpression("fieldName");
+
+    private static final LiteralExpression LOWER_ATTR_NAME = new LiteralExpression("lowerTerm");
+
+    private static final LiteralExpression UPPER_ATTR_NAME = new LiteralExpression("upperTerm");
+
+    private static final LiteralExpression INCLUDE_LOWER_ATTR_NAME = new LiteralExpression("includeLower");
+
+    private static final LiteralExpression INCLUDE_UPPER_ATTR_NAME = new LiteralExpression("includeUpper");
+
+    private static final LiteralExpression TYPE_ATTR_NAME = new LiteralExpression("type");
+
+    private static final QName RANGE_QUERY_QNAME = new QName("NumericRangeQuery");
+
+    private final String fieldName;
+
+    private final Type type;
+
+    private final String lowerTerm;
+
+    private final String upperTerm;
+
+    private final boolean includeLower;
+
+    private final boolean includeUpper;
+
+    /**
+     * @param fieldName the name of the field to query
+     * @param type the type of the field: INT, LONG, DOUBLE or DATE (which is indexed as LONG)
+     * @param lowerTerm the lower bound of the range, or null if there is none
+     * @param upperTerm the upper bound of the range, or null if there is none
+     * @param includeLower whether the lower bound is included in the range
+     * @param includeUpper whether the upper bound is included in the range
+     * @throws IllegalArgumentException if the type is not numeric
+     */
+    public NumericRangePQuery (String fieldName, Type type, String lowerTerm, String upperTerm, boolean includeLower, boolean includeUpper) {
+        if (! type.isNumeric()) {
+            throw new IllegalArgumentException ("not a numeric field type: " + type);
+        }
+        this.fieldName = fieldName;
+        this.type = type;
+        this.lowerTerm = lowerTerm;
+        this.upperTerm = upperTerm;
+        this.includeLower = includeLower;
+        this.includeUpper = includeUpper;
+    }
+
+    public String getFieldName() {
+        return fieldName;
+    }
+
+    public String getLowerTerm() {
+        return lowerTerm;
+    }
+
+    public String getUpperTerm() {
+        return upperTerm;
+    }
+
+    @Override
+    public ElementConstructor toXmlNode(String field) {
+        // The xml query parser requires both bounds; replace missing bounds with the extreme values of the type
+        String lower = lowerTerm, upper = upperTerm;
+        boolean incLower = includeLower, incUpper = includeUpper;
+        if (lower == null) {
+            lower = getMinimumValue();
+            incLower = true;
+        }
+        if (upper == null) {
+            upper = getMaximumValue();
+            incUpper = true;
+        }
+        return new ElementConstructor (RANGE_QUERY_QNAME,
+                new AttributeConstructor(FIELD_ATTR_NAME, new LiteralExpression (fieldName)),
+                new AttributeConstructor(TYPE_ATTR_NAME, new LiteralExpression (getLuceneType())),
+                new AttributeConstructor(LOWER_ATTR_NAME, new LiteralExpression (lower)),
+                new AttributeConstructor(UPPER_ATTR_NAME, new LiteralExpression (upper)),
+                new AttributeConstructor(INCLUDE_LOWER_ATTR_NAME, new LiteralExpression (Boolean.toString(incLower))),
+                new AttributeConstructor(INCLUDE_UPPER_ATTR_NAME, new LiteralExpression (Boolean.toString(incUpper))));
+    }
+
+    /**
+     * renders the query in the Lucene range query syntax, as field:[lower TO upper], with curly braces
+     * marking excluded bounds, and * marking open bounds.
+     */
+    @Override
+    public String toQueryString(String field, IndexConfiguration config) {
+        StringBuilder buf = new StringBuilder ();
+        buf.append (fieldName).append(':');
+        buf.append (includeLower ? '[' : '{');
+        buf.append (lowerTerm == null ? "*" : lowerTerm);
+        buf.append (" TO ");
+        buf.append (upperTerm == null ? "*" : upperTerm);
+        buf.append (includeUpper ? ']' : '}');
+        return buf.toString();
+    }
+
+    private String getLuceneType () {
+        switch (type) {
+        case INT: return "int";
+        case DOUBLE: return "double";
+        default: return "long";
+        }
+    }
+
+    private String getMinimumValue () {
+        switch (type) {
+        case INT: return Integer.toString(Integer.MIN_VALUE);
+        case DOUBLE: return Double.toString(Double.NEGATIVE_INFINITY);
+        default: return Long.toString(Long.MIN_VALUE);
+        }
+    }
+
+    private String getMaximumValue () {
+        switch (type) {
+        case INT: return Integer.toString(Integer.MAX_VALUE);
+        case DOUBLE: return Double.toString(Double.POSITIVE_INFINITY);
+        default: return Long.toString(Long.MAX_VALUE);
+        }
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
@@ -0,0 +1,68 @@
+package lux.query;
+
+import lux.index.IndexConfiguration;
+import lux.xml.QName;
+import lux.xml.ValueType;
+import lux.xpath.AbstractExpression;
+import lux.xpath.FunCall;
+import lux.xquery.ElementConstructor;
+import lux.xquery.FLWOR;
+import lux.xquery.ForClause;
+import lux.xquery.Variable;
+
+/**
+ * A parseable query template that generates a QNameTextQuery for each value of an expression, such as
+ * an external variable, whose value is not known until the query is evaluated.  The queries are combined
+ * in a BooleanQuery with SHOULD occurrence, so the query matches nodes equal to any of the values, and
+ * matches nothing when the expression is empty.
+ */
+public class ParameterizedTextQuery extends ParseableQuery {
+
+    private static final QName TERM_VARIABLE_QNAME = new QName("lux_term");
+
+    private final NodeTextQuery template;
+
+    private final AbstractExpression parameter;
+
+    /**
+     * @param template supplies the field, qName and boost of the generated queries; its term text is ignored
+     * @param parameter an expression whose atomized values supply the text of the generated queries.
+     * The expression is evaluated wherever the query is evaluated, so it must not depend on the context.
+     */
+    public ParameterizedTextQuery (NodeTextQuery template, AbstractExpression parameter) {
+        this.template = template;
+        this.parameter = parameter;
+    }
+
+    public AbstractExpression getParameter () {
+        return parameter;
+    }
+
+    @Override
+    public ElementConstructor toXmlNode(String field) {
+        Variable term = new Variable (TERM_VARIABLE_QNAME);
+        ElementConstructor termQuery = template.toXmlNode(field, new FunCall (FunCall.FN_STRING, ValueType.STRING, term));
+        ElementConstructor clause = new ElementConstructor(BooleanPQuery.CLAUSE_QNAME, termQuery, BooleanPQuery.SHOULD_OCCUR_ATT);
+        AbstractExpression values = parameter;
+        if (! (parameter instanceof FunCall && ((FunCall) parameter).getName().equals(FunCall.FN_DATA))) {
+            values = new FunCall (FunCall.FN_DATA, ValueType.ATOMIC, parameter);
+        }
+        FLWOR clauses = new FLWOR (clause, new ForClause(term, null, values));
+        return new ElementConstructor (BooleanPQuery.BOOLEAN_QUERY_QNAME, clauses);
+    }
+
+    /**
+     * The parameter values are unknown when the query is rendered as a string, so the parameter expression
+     * is rendered, enclosed in braces, in place of the query text.  This representation is not parseable;
+     * it is useful only for debugging.
+     */
+    @Override
+    public String toQueryString(String field, IndexConfiguration config) {
+        return template.toQueryString(config, '{' + parameter.toString() + '}');
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
@@ -0,0 +1,60 @@
+package lux.search;
+
+/**
+ * A cooperative limit on the time spent evaluating a query.  Long-running operations (iterating over search
+ * results, collecting hits, and reading documents) check the deadline periodically, and stop early once it has
+ * expired or been cancelled, so that the query returns partial results rather than running on.
+ * The deadline is checked by the thread evaluating the query; it may be cancelled from any thread.
+ */
+public class Deadline {
+
+    private final long expiration;
+    private volatile boolean cancelled;
+    private volatile boolean expired;
+
+    /**
+     * @param timeAllowed the time allowed, in milliseconds, starting now.  If this is not positive,
+     * the deadline never expires, although it may be cancelled.
+     */
+    public Deadline (long timeAllowed) {
+        expiration = timeAllowed > 0 ? System.currentTimeMillis() + timeAllowed : Long.MAX_VALUE;
+    }
+
+    /**
+     * Causes the deadline to expire immediately.  Operations checking the deadline will stop at their
+     * next check.
+     */
+    public void cancel () {
+        cancelled = true;
+    }
+
+    public boolean isCancelled () {
+        return cancelled;
+    }
+
+    /**
+     * Operations call this method to check whether they should stop.
+     * @return whether the time allowed has elapsed, or the deadline has been cancelled.  Once this has
+     * returned true, it always will.
+     */
+    public boolean isExpired () {
+        if (! expired && (cancelled || System.currentTimeMillis() > expiration)) {
+            expired = true;
+        }
+        return expired;
+    }
+
+    /**
+     * @return whether some operation found that the deadline had expired, and so may have been cut short.
+     * Unlike {@link #isExpired()}, this doesn't consult the clock: a deadline may have passed after all
+     * the work was done.
+     */
+    public boolean wasEnforced () {
+        return expired;
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
@@ -0,0 +1,72 @@
+package lux.search;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.Scorer;
+
+/**
+ * A Collector that passes hits through to another Collector until a {@link Deadline} expires, and then stops the
+ * search by throwing {@link DeadlineExpiredException}.  The deadline is checked once for every
+ * {@link #CHECK_INTERVAL} hits, and at the start of each segment.
+ */
+class DeadlineCollector extends Collector {
+
+    static final int CHECK_INTERVAL = 1024;
+
+    private final Collector collector;
+    private final Deadline deadline;
+    private int count;
+
+    DeadlineCollector (Collector collector, Deadline deadline) {
+        this.collector = collector;
+        this.deadline = deadline;
+    }
+
+    @Override
+    public void setScorer(Scorer scorer) throws IOException {
+        collector.setScorer(scorer);
+    }
+
+    @Override
+    public void collect(int doc) throws IOException {
+        if (++count % CHECK_INTERVAL == 0 && deadline.isExpired()) {
+            throw new DeadlineExpiredException();
+        }
+        collector.collect(doc);
+    }
+
+    @Override
+    public void setNextReader(AtomicReaderContext context) throws IOException {
+        if (deadline.isExpired()) {
+            throw new DeadlineExpiredException();
+        }
+        collector.setNextReader(context);
+    }
+
+    @Override
+    public boolean acceptsDocsOutOfOrder() {
+        return collector.acceptsDocsOutOfOrder();
+    }
+
+    /**
+     * Thrown to abort a search when its deadline has expired.
+     */
+    static class DeadlineExpiredException extends RuntimeException {
+        DeadlineExpiredException () {
+            super ("deadline expired");
+        }
+        
+        // this is used for control flow, so don't bother with the stack trace
+        @Override
+        public synchronized Throwable fillInStackTrace () {
+            return this;
+        }
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
@@ -0,0 +1,43 @@
+package lux.search;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.search.DocIdSetIterator;
+
+/**
+ * A DocIdSetIterator over the results of a search against a composite index reader.  The docIDs
+ * returned are relative to the top-level reader, but the segment (leaf) containing the current document is
+ * also made available, so that documents may be loaded directly from the segment reader, avoiding a search
+ * for the segment containing each docID.
+ */
+public abstract class LeafDocIdSetIterator extends DocIdSetIterator {
+
+    /**
+     * @return the context of the segment containing the current document, or null if the iterator
+     * is not positioned on a document.  The current document's docID relative to the segment is
+     * {@link #docID()} - getLeaf().docBase.
+     */
+    public abstract AtomicReaderContext getLeaf ();
+
+    /**
+     * Skips over the next n results, leaving the iterator positioned as if {@link #nextDoc()} had been
+     * called n times.  This implementation simply calls nextDoc(); subclasses may provide a more efficient one.
+     * @param n the number of results to skip
+     * @return the number of results skipped.  This is less than n if the results were exhausted, in which
+     * case the iterator is positioned at {@link #NO_MORE_DOCS}.
+     * @throws IOException
+     */
+    public int skip (int n) throws IOException {
+        int i = 0;
+        while (i < n && nextDoc() != NO_MORE_DOCS) {
+            ++i;
+        }
+        return i;
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
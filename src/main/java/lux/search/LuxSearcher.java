@@ -6,12 +6,18 @@ import java.util.List;
 import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.FieldDoc;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
 import org.apache.lucene.search.Scorer;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopFieldCollector;
+import org.apache.lucene.search.TotalHitCountCollector;
 import org.apache.lucene.search.Weight;
 import org.apache.lucene.store.Directory;
 
@@ -19,6 +25,11 @@ public class LuxSearcher extends IndexSearcher {
 
     // a reader managed by this exclusively
   private final IndexReader indexReader;
+
+  /** the default number of sorted results retrieved by each search: see {@link #setBatchSize(int)} */
+  public static final int DEFAULT_BATCH_SIZE = 200;
+
+  private int batchSize = DEFAULT_BATCH_SIZE;
     
   public LuxSearcher (Directory dir) throws IOException {
     super (DirectoryReader.open(dir));
@@ -44,13 +55,82 @@ public class LuxSearcher extends IndexSearcher {
       }
   }
 
+  /**
+   * @return the number of sorted results retrieved by each search
+   */
+  public int getBatchSize () {
+      return batchSize;
+  }
+
+  /**
+   * Sorted results are retrieved in batches: each time a batch is exhausted, another search
+   * retrieves the next batch.  Larger batches require fewer searches, but more memory, and waste more effort
+   * when only the first few results are consumed.
+   * @param batchSize the number of sorted results retrieved by each search
+   */
+  public void setBatchSize (int batchSize) {
+      if (batchSize < 1) {
+          throw new IllegalArgumentException ("batch size must be positive: " + batchSize);
+      }
+      this.batchSize = batchSize;
+  }
+
+  /**
+   * Counts the documents matching a query, without retrieving them.  A query matching all documents
+   * is answered directly by the index reader, without searching.
+   * @param query the Lucene query
+   * @return the number of documents matching the query
+   * @throws IOException
+   */
+  public int count (Query query) throws IOException {
+      return count (query, null);
+  }
+
+  /**
+   * Counts the documents matching a query, without retrieving them, stopping early if the deadline expires.
+   * @param query the Lucene query
+   * @param deadline the deadline, or null if there is none
+   * @return the number of documents matching the query; if the deadline expired, the number counted
+   * before it did.
+   * @throws IOException
+   */
+  public int count (Query query, Deadline deadline) throws IOException {
+      if (query instanceof MatchAllDocsQuery) {
+          return getIndexReader().numDocs();
+      }
+      TotalHitCountCollector collector = new TotalHitCountCollector();
+      search (query, collector, deadline);
+      return collector.getTotalHits();
+  }
+
+  /**
+   * Collects the documents matching a query, stopping early if the deadline expires.
+   * @param query the Lucene query
+   * @param collector receives the matching documents
+   * @param deadline the deadline, or null if there is none
+   * @return true if the search was completed, or false if it was cut short by the deadline
+   * @throws IOException
+   */
+  public boolean search (Query query, Collector collector, Deadline deadline) throws IOException {
+      if (deadline == null) {
+          search (query, collector);
+          return true;
+      }
+      try {
+          search (query, new DeadlineCollector(collector, deadline));
+      } catch (DeadlineCollector.DeadlineExpiredException e) {
+          return false;
+      }
+      return true;
+  }
+
   /**
    * @param query the Lucene query
    * @return the unordered results of the query as a Lucene DocIdSetIterator.  Unordered means the order
    * is not predictable and may change with subsequent calls. 
    * @throws IOException
    */
-  public DocIdSetIterator search (Query query) throws IOException {
+  public LeafDocIdSetIterator search (Query query) throws IOException {
       return new DocIterator (query, false);
   }
   
@@ -58,11 +138,27 @@ public class LuxSearcher extends IndexSearcher {
    * @param query the Lucene query
    * @param sort the sort criteria
    * @return the results of the query as a Lucene DocIdSetIterator, ordered using the sort criterion. 
-   * Results are returned in batches, so deep paging is possible, but expensive.
+   * Results are retrieved in batches of {@link #getBatchSize()}; each batch is retrieved by a search
+   * that collects only the results following the previous batch, so the cost of each search does not grow
+   * as the iteration proceeds.
    * @throws IOException
    */
-  public DocIdSetIterator search (Query query, Sort sort) throws IOException {
-      return new TopDocsIterator (query, sort);
+  public LeafDocIdSetIterator search (Query query, Sort sort) throws IOException {
+      return search (query, sort, null);
+  }
+
+  /**
+   * Like {@link #search(Query, Sort)}, but each batch of results is collected subject to a deadline.
+   * If the deadline expires while a batch is being collected, the results end with the hits collected
+   * up to that point, which are not necessarily the top-sorting ones.
+   * @param query the Lucene query
+   * @param sort the sort criteria
+   * @param deadline the deadline, or null if there is none
+   * @return the results of the query as a Lucene DocIdSetIterator, ordered using the sort criterion. 
+   * @throws IOException
+   */
+  public LeafDocIdSetIterator search (Query query, Sort sort, Deadline deadline) throws IOException {
+      return new TopDocsIterator (query, sort, deadline);
   }
 
   /**
@@ -70,16 +166,17 @@ public class LuxSearcher extends IndexSearcher {
    * @return the results of the query as a Lucene DocIdSetIterator in docID order
    * @throws IOException
    */
-  public DocIdSetIterator searchOrdered (Query query) throws IOException {
+  public LeafDocIdSetIterator searchOrdered (Query query) throws IOException {
       return new DocIterator (query, true);
   }
   
-  class DocIterator extends DocIdSetIterator {
+  class DocIterator extends LeafDocIdSetIterator {
       
       private final Weight weight;
       private final boolean ordered;
       private int nextReader;
       private int docID;
+      private int leafDocID;
       private Scorer scorer;
       private List<AtomicReaderContext> leaves;
       private AtomicReaderContext leaf;
@@ -107,6 +204,7 @@ public class LuxSearcher extends IndexSearcher {
               }
           }
           scorer = null;
+          leaf = null;
       }
       
     @Override
@@ -114,46 +212,84 @@ public class LuxSearcher extends IndexSearcher {
         return docID;
     }
 
+    @Override
+    public AtomicReaderContext getLeaf () {
+        return docID < 0 || docID == NO_MORE_DOCS ? null : leaf;
+    }
+
     @Override
     public int nextDoc() throws IOException {
         while (scorer != null) {
-            docID = scorer.nextDoc();
-            if (docID != NO_MORE_DOCS) {
-                return docID + leaf.docBase;
+            leafDocID = scorer.nextDoc();
+            if (leafDocID != NO_MORE_DOCS) {
+                return docID = leafDocID + leaf.docBase;
             }
             advanceScorer();
         }
-        return NO_MORE_DOCS;
+        return docID = NO_MORE_DOCS;
     }
 
     @Override
     public int advance(int target) throws IOException {
         while (scorer != null) {
-            docID = scorer.advance(target - leaf.docBase);
-            if (docID != NO_MORE_DOCS) {
-                return docID + leaf.docBase;
+            leafDocID = scorer.advance(Math.max(0, target - leaf.docBase));
+            if (leafDocID != NO_MORE_DOCS) {
+                return docID = leafDocID + leaf.docBase;
             }
             advanceScorer();
         }
-        return NO_MORE_DOCS;
+        return docID = NO_MORE_DOCS;
     }
       
   }
   
-  class TopDocsIterator extends DocIdSetIterator {
+  /**
+   * Iterates over sorted search results, which are retrieved in batches.  Each batch is retrieved
+   * using a new search that collects only the hits sorting after the last hit of the previous batch
+   * (by sort values, and then by docID), so the cost of retrieving each batch doesn't depend on
+   * how deep into the results it is.  Lucene can't search after a hit that has no value for one
+   * of the sort fields, though; in that case all the hits up to the end of the next batch are retrieved.
+   */
+  class TopDocsIterator extends LeafDocIdSetIterator {
       
-      private final Query query;
+      private final Weight weight;
       private final Sort sort;
+      private final int batchSize;
       private int docID = -1;
       private int iDocNext = 0;
-      // private int iDocBase = 0;
+      // the number of hits preceding those in topDocs
+      private int iDocBase = 0;
+      private int nDocsRequested;
       private TopDocs topDocs;
-      private static final int BATCH_SIZE = 200;
+      private final List<AtomicReaderContext> leaves;
+      private AtomicReaderContext leaf;
+      private final Deadline deadline;
       
-      TopDocsIterator (Query query, Sort sort) throws IOException {
-          this.query = query;
+      TopDocsIterator (Query query, Sort sort, Deadline deadline) throws IOException {
           this.sort = sort;
-          topDocs = search(createNormalizedWeight(query), BATCH_SIZE, sort, false, false);
+          this.deadline = deadline;
+          batchSize = LuxSearcher.this.batchSize;
+          weight = createNormalizedWeight(query);
+          leaves = getIndexReader().leaves();
+          topDocs = search (null, batchSize);
+      }
+
+      // fillFields must be true so that each hit records the sort values needed to search after it
+      private TopDocs search (FieldDoc after, int nDocs) throws IOException {
+          nDocsRequested = nDocs;
+          if (deadline == null) {
+              return LuxSearcher.this.search(weight, after, nDocs, sort, true, false, false);
+          }
+          int limit = Math.max(1, getIndexReader().maxDoc());
+          TopFieldCollector collector = TopFieldCollector.create(sort, Math.min(nDocs, limit), after, true, false, false, 
+                  !weight.scoresDocsOutOfOrder());
+          try {
+              LuxSearcher.this.search(leafContexts, weight, new DeadlineCollector(collector, deadline));
+          } catch (DeadlineCollector.DeadlineExpiredException e) {
+              // a partial batch marks the end of the results
+              nDocsRequested = Integer.MAX_VALUE;
+          }
+          return collector.topDocs();
       }
 
       @Override
@@ -161,31 +297,111 @@ public class LuxSearcher extends IndexSearcher {
           return docID;
       }
 
+      /**
+       * The hits are sorted, so they may come from any segment: the segment containing the current
+       * hit is looked up only when the hit is not in the same segment as the previous one.
+       */
+      @Override
+      public AtomicReaderContext getLeaf () {
+          if (docID < 0 || docID == NO_MORE_DOCS) {
+              return null;
+          }
+          if (leaf == null || docID < leaf.docBase || docID >= leaf.docBase + leaf.reader().maxDoc()) {
+              leaf = leaves.get(ReaderUtil.subIndex(docID, leaves));
+          }
+          return leaf;
+      }
+
       @Override
       public int nextDoc() throws IOException {
-          if (iDocNext < topDocs.scoreDocs.length) {
-              docID = topDocs.scoreDocs[iDocNext++].doc;
+          if (docID == NO_MORE_DOCS) {
+              return docID;
           }
-          else if (iDocNext < topDocs.totalHits) {
-              // load a larger batch of docs
-              // TODO: a better implementation would remember the previous endpoint
-              // by value (total ordering=sortkey,docID) and skip over the first set of docs,
-              // storing only the next batch - we could possibly add a term to the query expressing
-              // this?
-              // iDocBase = iDocNext;
-              topDocs = search(createNormalizedWeight(query), iDocNext + BATCH_SIZE, sort, false, false);
+          ScoreDoc[] scoreDocs = topDocs.scoreDocs;
+          if (iDocNext >= scoreDocs.length) {
+              if (scoreDocs.length < nDocsRequested) {
+                  // exhausted the entire result set
+                  return docID = NO_MORE_DOCS;
+              }
+              FieldDoc last = (FieldDoc) scoreDocs[scoreDocs.length - 1];
+              if (hasAllValues (last)) {
+                  // retrieve the next batch of hits, following the last one
+                  topDocs = search (last, batchSize);
+                  iDocBase += iDocNext;
+                  iDocNext = 0;
+              } else {
+                  // retrieve all the hits up to the end of the next batch, and skip the ones already seen
+                  iDocNext += iDocBase;
+                  iDocBase = 0;
+                  topDocs = search (null, iDocNext + batchSize);
+              }
+              scoreDocs = topDocs.scoreDocs;
+              if (iDocNext >= scoreDocs.length) {
+                  return docID = NO_MORE_DOCS;
+              }
           }
-          else {
-              // exhausted the entire result set
+          return docID = scoreDocs[iDocNext++].doc;
+      }
+
+      /**
+       * Skips directly to the hit n places further on, by retrieving only the hits up to the end of the batch
+       * following that position, rather than retrieving every batch of hits along the way.
+       */
+      @Override
+      public int skip (int n) throws IOException {
+          if (n <= 0 || docID == NO_MORE_DOCS) {
+              return 0;
+          }
+          int skipped = 0;
+          ScoreDoc[] scoreDocs = topDocs.scoreDocs;
+          int available = scoreDocs.length - iDocNext;
+          if (n > available && scoreDocs.length == nDocsRequested) {
+              // The hits already retrieved don't reach far enough, and there are more.
+              FieldDoc last = (FieldDoc) scoreDocs[scoreDocs.length - 1];
+              if (hasAllValues (last)) {
+                  // retrieve the hits following the last one, up to the end of the batch following the skipped hits
+                  topDocs = search (last, n - available + batchSize);
+                  iDocBase += scoreDocs.length;
+                  iDocNext = 0;
+                  skipped = available;
+              } else {
+                  // retrieve all the hits up to the end of the batch following the skipped hits
+                  iDocNext += iDocBase;
+                  iDocBase = 0;
+                  topDocs = search (null, iDocNext + n + batchSize);
+              }
+              scoreDocs = topDocs.scoreDocs;
+          }
+          int count = Math.min(n - skipped, scoreDocs.length - iDocNext);
+          iDocNext += count;
+          skipped += count;
+          if (skipped < n) {
               docID = NO_MORE_DOCS;
+          } else {
+              docID = scoreDocs[iDocNext - 1].doc;
           }
-          return docID;
+          return skipped;
       }
 
+      private boolean hasAllValues (FieldDoc fieldDoc) {
+          for (Object value : fieldDoc.fields) {
+              if (value == null) {
+                  return false;
+              }
+          }
+          return true;
+      }
+
+    /**
+     * Hits are not in docID order, so this simply returns the next hit, following the current one in sort order,
+     * whose docID is at least target.
+     */
     @Override
     public int advance(int target) throws IOException {
-        // unimplemented - do we need this?
-        return NO_MORE_DOCS;
+        int doc;
+        while ((doc = nextDoc()) < target) {
+        }
+        return doc;
     }
     
   }
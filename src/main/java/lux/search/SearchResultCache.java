@@ -0,0 +1,437 @@
+package lux.search;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexReader.ReaderClosedListener;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopFieldCollector;
+import org.apache.lucene.util.FixedBitSet;
+
+/**
+ * A cache of search results that is shared by all the queries (and threads) searching using a
+ * single {@link lux.Compiler}.  The docIDs matching a query, in docID order or in the order given by
+ * some sort criteria, are cached, so that repeated searches for the same query, as are typical of
+ * paged displays that retrieve successive ranges of the same results, don't require repeated
+ * searches.  Results are keyed by the index reader they were retrieved from, as well as the query and sort
+ * criteria; when a reader is closed, all of its results are dropped from the cache, so results
+ * never outlive the index generation they were computed from.
+ *
+ * <p>Results in docID order are collected in their entirety when they are first retrieved, and stored as a
+ * bitset, or as an array of docIDs when there are relatively few of them.  Sorted results are cached only
+ * if there are no more than {@link #getMaxSortedResults()} of them; a query with more sorted results is remembered
+ * as such, and subsequently searched without the cache.</p>
+ *
+ * <p>The cache is bounded by the estimated size of the cached results in bytes.  The least-recently
+ * used results are evicted first.  This class is thread-safe.  Results are retrieved by the caller, outside
+ * of any lock, so it is possible that two threads will retrieve the same results concurrently; in that case
+ * the last one in wins.</p>
+ */
+public class SearchResultCache implements ReaderClosedListener {
+
+    /** the default maximum size of the cache: 16MB */
+    public static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+    /** the default maximum number of sorted results to cache for a single query */
+    public static final int DEFAULT_MAX_SORTED_RESULTS = 10000;
+
+    // the approximate size of a cache entry, exclusive of its results
+    private static final int ENTRY_OVERHEAD = 64;
+
+    private final long maxBytes;
+    private final int maxSortedResults;
+    private final LinkedHashMap<Key, Entry> cache;
+    private final HashSet<Object> readers;
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param maxBytes the maximum (estimated) size of the cached results, in bytes
+     * @param maxSortedResults the maximum number of sorted results to cache for any one query
+     */
+    public SearchResultCache (long maxBytes, int maxSortedResults) {
+        this.maxBytes = maxBytes;
+        this.maxSortedResults = maxSortedResults;
+        cache = new LinkedHashMap<Key, Entry>(256, 0.75f, true);
+        readers = new HashSet<Object>();
+    }
+
+    public SearchResultCache () {
+        this (DEFAULT_MAX_BYTES, DEFAULT_MAX_SORTED_RESULTS);
+    }
+
+    /**
+     * Retrieves the results of a query from the cache, searching and caching them if they are not already cached.
+     * @param searcher the searcher
+     * @param query the query
+     * @param sort the sort criteria, or null to retrieve results in docID order
+     * @param sortCriteria a string representation of the sort criteria, which must distinguish all distinct sorts:
+     * see {@link lux.SearchResultIterator}.  Null if sort is null.
+     * @return an iterator over the results, or null if the results are not cacheable (because there are too many sorted results),
+     * in which case the caller should search without the cache.
+     * @throws IOException
+     */
+    public LeafDocIdSetIterator search (LuxSearcher searcher, Query query, Sort sort, String sortCriteria) throws IOException {
+        return search (searcher, query, sort, sortCriteria, null);
+    }
+
+    /**
+     * Like {@link #search(LuxSearcher, Query, Sort, String)}, but results that are not already cached are collected
+     * subject to a deadline.  Results that are cut short by the deadline are not cached.
+     * @param searcher the searcher
+     * @param query the query
+     * @param sort the sort criteria, or null to retrieve results in docID order
+     * @param sortCriteria a string representation of the sort criteria
+     * @param deadline the deadline, or null if there is none
+     * @return an iterator over the results, or null if the results are not cacheable, or the deadline expired
+     * before they could be collected.
+     * @throws IOException
+     */
+    public LeafDocIdSetIterator search (LuxSearcher searcher, Query query, Sort sort, String sortCriteria, Deadline deadline) throws IOException {
+        IndexReader reader = searcher.getIndexReader();
+        Key key = new Key (reader.getCombinedCoreAndDeletesKey(), query, sortCriteria);
+        Entry entry;
+        synchronized (this) {
+            entry = cache.get(key);
+            if (entry == null) {
+                ++misses;
+            } else {
+                ++hits;
+            }
+        }
+        boolean hit = entry != null;
+        if (entry == null) {
+            if (deadline != null && deadline.isExpired()) {
+                return null;
+            }
+            entry = sort == null ? collect (searcher, query, deadline) : collect (searcher, query, sort, deadline);
+            if (entry == null) {
+                return null;
+            }
+            put (reader, key, entry);
+        }
+        if (entry.docs == null && entry.bits == null) {
+            return null;
+        }
+        return new CachedResultIterator (entry, reader.leaves(), hit);
+    }
+
+    /**
+     * @param results an iterator returned by {@link #search(LuxSearcher, Query, Sort, String, Deadline)}
+     * @return whether the results were found in the cache, rather than being collected by the search that
+     * returned them
+     */
+    public static boolean isCacheHit (LeafDocIdSetIterator results) {
+        return results instanceof CachedResultIterator && ((CachedResultIterator) results).hit;
+    }
+
+    private Entry collect (LuxSearcher searcher, Query query, Deadline deadline) throws IOException {
+        int maxDoc = searcher.getIndexReader().maxDoc();
+        BitSetCollector collector = new BitSetCollector (maxDoc);
+        if (! searcher.search(query, collector, deadline)) {
+            return null;
+        }
+        FixedBitSet bits = collector.bits;
+        int count = collector.count;
+        if (count * 32L >= maxDoc) {
+            return new Entry (null, bits, bits.getBits().length * 8L);
+        }
+        // sparse results are stored more compactly as an array
+        int[] docs = new int[count];
+        int doc = -1;
+        for (int i = 0; i < count; i++) {
+            docs[i] = doc = bits.nextSetBit(doc + 1);
+        }
+        return new Entry (docs, null, count * 4L);
+    }
+
+    private Entry collect (LuxSearcher searcher, Query query, Sort sort, Deadline deadline) throws IOException {
+        int numHits = Math.min(maxSortedResults + 1, Math.max(1, searcher.getIndexReader().maxDoc()));
+        TopFieldCollector collector = TopFieldCollector.create(sort, numHits, false, false, false, false);
+        if (! searcher.search(query, collector, deadline)) {
+            return null;
+        }
+        TopDocs topDocs = collector.topDocs();
+        if (topDocs.totalHits > maxSortedResults) {
+            // remember that this query's results are not cacheable
+            return new Entry (null, null, 0);
+        }
+        ScoreDoc[] scoreDocs = topDocs.scoreDocs;
+        int[] docs = new int[scoreDocs.length];
+        for (int i = 0; i < docs.length; i++) {
+            docs[i] = scoreDocs[i].doc;
+        }
+        return new Entry (docs, null, docs.length * 4L);
+    }
+
+    private void put (IndexReader reader, Key key, Entry entry) {
+        if (entry.size > maxBytes) {
+            return;
+        }
+        boolean newReader;
+        synchronized (this) {
+            Entry previous = cache.put(key, entry);
+            if (previous != null) {
+                bytes -= previous.size;
+            }
+            bytes += entry.size;
+            Iterator<Entry> entries = cache.values().iterator();
+            while (bytes > maxBytes && entries.hasNext()) {
+                Entry eldest = entries.next();
+                bytes -= eldest.size;
+                entries.remove();
+                ++evictions;
+            }
+            newReader = readers.add(key.reader);
+        }
+        if (newReader) {
+            reader.addReaderClosedListener(this);
+        }
+    }
+
+    /**
+     * Drops all the cached results retrieved from the reader that was closed.
+     */
+    @Override
+    public synchronized void onClose(IndexReader reader) {
+        Object readerKey = reader.getCombinedCoreAndDeletesKey();
+        readers.remove(readerKey);
+        Iterator<Map.Entry<Key, Entry>> entries = cache.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<Key, Entry> entry = entries.next();
+            if (entry.getKey().reader == readerKey) {
+                bytes -= entry.getValue().size;
+                entries.remove();
+            }
+        }
+    }
+
+    /** Drops all cached results.  The hit and miss counts are not affected. */
+    public synchronized void clear () {
+        cache.clear();
+        bytes = 0;
+    }
+
+    /** @return the number of cached results */
+    public synchronized int size () {
+        return cache.size();
+    }
+
+    /** @return the estimated size of all the cached results, in bytes */
+    public synchronized long getBytes () {
+        return bytes;
+    }
+
+    /** @return the maximum size of the cache, in bytes */
+    public long getMaxBytes () {
+        return maxBytes;
+    }
+
+    /** @return the maximum number of sorted results cached for any one query */
+    public int getMaxSortedResults () {
+        return maxSortedResults;
+    }
+
+    /** @return the number of searches whose results were found in the cache */
+    public synchronized long getHits () {
+        return hits;
+    }
+
+    /** @return the number of searches whose results were not found in the cache */
+    public synchronized long getMisses () {
+        return misses;
+    }
+
+    /** @return the number of results that have been evicted to make room for others */
+    public synchronized long getEvictions () {
+        return evictions;
+    }
+
+    @Override
+    public String toString () {
+        return String.format ("%d entries, %d bytes, %d hits, %d misses", size(), getBytes(), getHits(), getMisses());
+    }
+
+    private static final class Key {
+        private final Object reader;
+        private final Query query;
+        private final String sortCriteria;
+
+        Key (Object reader, Query query, String sortCriteria) {
+            this.reader = reader;
+            this.query = query;
+            this.sortCriteria = sortCriteria;
+        }
+
+        @Override
+        public int hashCode () {
+            return (System.identityHashCode(reader) * 31 + query.hashCode()) * 31 +
+                    (sortCriteria == null ? 0 : sortCriteria.hashCode());
+        }
+
+        @Override
+        public boolean equals (Object o) {
+            if (! (o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return other.reader == reader && other.query.equals(query) &&
+                    (sortCriteria == null ? other.sortCriteria == null : sortCriteria.equals(other.sortCriteria));
+        }
+    }
+
+    /*
+     * The results of a query: either an array of docIDs (in docID or sort order), or a bitset; if neither
+     * is present, the results are not cacheable.
+     */
+    private static final class Entry {
+        private final int[] docs;
+        private final FixedBitSet bits;
+        private final long size;
+
+        Entry (int[] docs, FixedBitSet bits, long size) {
+            this.docs = docs;
+            this.bits = bits;
+            this.size = size + ENTRY_OVERHEAD;
+        }
+    }
+
+    private static final class BitSetCollector extends Collector {
+        private final FixedBitSet bits;
+        private int docBase;
+        private int count;
+
+        BitSetCollector (int maxDoc) {
+            bits = new FixedBitSet (maxDoc);
+        }
+
+        @Override
+        public void setScorer(Scorer scorer) {
+        }
+
+        @Override
+        public void collect(int doc) {
+            bits.set(docBase + doc);
+            ++count;
+        }
+
+        @Override
+        public void setNextReader(AtomicReaderContext context) {
+            docBase = context.docBase;
+        }
+
+        @Override
+        public boolean acceptsDocsOutOfOrder() {
+            return true;
+        }
+    }
+
+    /**
+     * Iterates over cached results.
+     */
+    private static final class CachedResultIterator extends LeafDocIdSetIterator {
+
+        private final int[] docs;
+        private final FixedBitSet bits;
+        private final List<AtomicReaderContext> leaves;
+        private final boolean hit;
+        private AtomicReaderContext leaf;
+        private int docID = -1;
+        private int iDocNext = 0;
+
+        CachedResultIterator (Entry entry, List<AtomicReaderContext> leaves, boolean hit) {
+            docs = entry.docs;
+            bits = entry.bits;
+            this.leaves = leaves;
+            this.hit = hit;
+        }
+
+        @Override
+        public int docID() {
+            return docID;
+        }
+
+        @Override
+        public AtomicReaderContext getLeaf () {
+            if (docID < 0 || docID == NO_MORE_DOCS) {
+                return null;
+            }
+            if (leaf == null || docID < leaf.docBase || docID >= leaf.docBase + leaf.reader().maxDoc()) {
+                leaf = leaves.get(ReaderUtil.subIndex(docID, leaves));
+            }
+            return leaf;
+        }
+
+        @Override
+        public int nextDoc() {
+            if (docID == NO_MORE_DOCS) {
+                return docID;
+            }
+            if (bits != null) {
+                return advanceBits (docID + 1);
+            }
+            if (iDocNext >= docs.length) {
+                return docID = NO_MORE_DOCS;
+            }
+            return docID = docs[iDocNext++];
+        }
+
+        /**
+         * Sorted results are not in docID order, so this simply returns the next result whose docID is at
+         * least target.
+         */
+        @Override
+        public int advance(int target) {
+            if (bits != null) {
+                return docID == NO_MORE_DOCS ? docID : advanceBits (Math.max(target, docID + 1));
+            }
+            int doc;
+            while ((doc = nextDoc()) < target) {
+            }
+            return doc;
+        }
+
+        private int advanceBits (int target) {
+            int doc = target < bits.length() ? bits.nextSetBit(target) : -1;
+            return docID = (doc < 0 ? NO_MORE_DOCS : doc);
+        }
+
+        @Override
+        public int skip (int n) throws IOException {
+            if (bits != null) {
+                return super.skip(n);
+            }
+            if (n <= 0 || docID == NO_MORE_DOCS) {
+                return 0;
+            }
+            int count = Math.min(n, docs.length - iDocNext);
+            iDocNext += count;
+            if (count < n) {
+                docID = NO_MORE_DOCS;
+            } else {
+                docID = docs[iDocNext - 1];
+            }
+            return count;
+        }
+
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
@@ -3,9 +3,13 @@ package lux.solr;
 import java.io.IOException;
 import java.io.Writer;
 import java.util.List;
+import java.util.Map;
 
+import lux.QueryStats;
+import lux.exception.LuxException;
 import net.sf.saxon.s9api.SaxonApiException;
 import net.sf.saxon.s9api.Serializer;
+import net.sf.saxon.s9api.XdmItem;
 import net.sf.saxon.s9api.XdmNode;
 
 import org.apache.solr.common.SolrException;
@@ -22,6 +26,13 @@ import org.apache.solr.response.SolrQueryResponse;
  *  of nodes: default is html.  Output is always serialized as utf-8.
  *
  *  lux.xml-xsl-stylesheet
+ *  
+ *  When the results are an {@link XdmResultStream} (see {@link XQueryComponent#LUX_STREAM}), 
+ *  each result is serialized as it is computed, and none of them are retained.  Since the response
+ *  header has been settled by then, a stream cut short by the time allowed is followed by a
+ *  <code>&lt;?lux-partial-results?&gt;</code> processing instruction, and when debugging is requested,
+ *  the query statistics follow as a <code>&lt;?lux-query-stats ...?&gt;</code> processing instruction.
+ *  Processing instructions may follow the document element, so XML results remain well-formed.
  */
 public class LuxResponseWriter implements QueryResponseWriter {
 
@@ -61,30 +72,21 @@ public class LuxResponseWriter implements QueryResponseWriter {
             writeError (writer, error);
         }
         else {
-            NamedList<?> values = (NamedList<?>) response.getValues().get("xpath-results");
+            Object results = response.getValues().get("xpath-results");
+            if (results instanceof XdmResultStream) {
+                writeStream (writer, (XdmResultStream) results, xsl, contentType);
+                return;
+            }
+            NamedList<?> values = (NamedList<?>) results;
             if (values != null) {
-                if (xsl != null) {
-                    writer.write("<?xml-stylesheet type='text/xsl' href='" + xsl + "' ?>\n");
-                    // css?
-                }
+                writeStylesheet(writer, xsl);
                 boolean wrapResults = contentType.equals("text/xml") && (values.size() > 1 || (! (values.getVal(0) instanceof XdmNode)));
                 if (wrapResults) {
                   //writer.write("<?xml-stylesheet type='text/xsl' href='/empty.xsl' ?>\n");
                     writer.write("<results>");
                 }
                 for (int i = 0; i < values.size(); i++) {
-                    Object val = values.getVal(i);
-                    if (val instanceof XdmNode) {
-                        // assume text/html
-                        serializer.setOutputWriter(writer);
-                        try {
-                            serializer.serializeNode((XdmNode) val);
-                        } catch (SaxonApiException e) {
-                            writeError(writer, e.getMessage());
-                        }
-                    } else {
-                        writer.write(val.toString());
-                    }
+                    writeResult (writer, values.getVal(i));
                 }
                 if (wrapResults) {
                     writer.write("</results>");
@@ -92,6 +94,87 @@ public class LuxResponseWriter implements QueryResponseWriter {
             }
         }
     }
+    
+    /*
+     * Serializes results as they are computed.  One result is read ahead in order to determine whether
+     * the results need to be wrapped.  An error raised before anything has been written is reported
+     * as a bad request, as for the non-streaming case; later errors are written inline.
+     */
+    private void writeStream (Writer writer, XdmResultStream results, String xsl, String contentType) throws IOException {
+        try {
+            XdmItem first;
+            boolean hasMore;
+            try {
+                first = results.hasNext() ? results.next() : null;
+                hasMore = results.hasNext();
+            } catch (LuxException e) {
+                throw new SolrException(ErrorCode.BAD_REQUEST, e.getMessage());
+            }
+            writeStylesheet(writer, xsl);
+            boolean wrapResults = contentType.equals("text/xml") && (hasMore || (first != null && ! (first instanceof XdmNode)));
+            if (wrapResults) {
+                writer.write("<results>");
+            }
+            QueryStats stats = results.getQueryStats();
+            if (first != null) {
+                long t = System.nanoTime();
+                writeResult (writer, first);
+                stats.responseTime += System.nanoTime() - t;
+            }
+            try {
+                while (results.hasNext()) {
+                    XdmItem item = results.next();
+                    long t = System.nanoTime();
+                    writeResult (writer, item);
+                    stats.responseTime += System.nanoTime() - t;
+                }
+            } catch (LuxException e) {
+                writeError (writer, e.getMessage());
+            }
+            if (wrapResults) {
+                writer.write("</results>");
+            }
+            if (results.isPartial()) {
+                writer.write("<?lux-partial-results?>");
+            }
+            if (results.isDebug()) {
+                writeQueryStats (writer, stats);
+            }
+        } finally {
+            results.close();
+        }
+    }
+
+    private void writeQueryStats (Writer writer, QueryStats stats) throws IOException {
+        writer.write("<?lux-query-stats");
+        for (Map.Entry<String, Object> entry : stats.toMap().entrySet()) {
+            // "?>" would end the processing instruction
+            String value = String.valueOf(entry.getValue()).replace("?>", "? >");
+            writer.write("\n" + entry.getKey() + ": " + value);
+        }
+        writer.write("?>");
+    }
+    
+    private void writeStylesheet (Writer writer, String xsl) throws IOException {
+        if (xsl != null) {
+            writer.write("<?xml-stylesheet type='text/xsl' href='" + xsl + "' ?>\n");
+            // css?
+        }
+    }
+    
+    private void writeResult (Writer writer, Object val) throws IOException {
+        if (val instanceof XdmNode) {
+            // assume text/html
+            serializer.setOutputWriter(writer);
+            try {
+                serializer.serializeNode((XdmNode) val);
+            } catch (SaxonApiException e) {
+                writeError(writer, e.getMessage());
+            }
+        } else {
+            writer.write(val.toString());
+        }
+    }
 
     private void writeError(Writer writer, String error) throws IOException {
         writer.write(String.format("<html><head><title>Error</title></head><body><h1>Error</h1><code>%s</code></body></html>", error));
@@ -8,6 +8,7 @@ import javax.xml.stream.XMLStreamException;
 import lux.index.FieldName;
 import lux.index.IndexConfiguration;
 import lux.index.XmlIndexer;
+import lux.index.XmlIndexerPool;
 import lux.index.field.FieldDefinition;
 
 import org.apache.lucene.index.IndexableField;
@@ -20,24 +21,31 @@ import org.slf4j.LoggerFactory;
 public class LuxUpdateProcessor extends UpdateRequestProcessor {
 
     private final IndexConfiguration indexConfig;
+    private final XmlIndexerPool indexerPool;
     
-    public LuxUpdateProcessor (IndexConfiguration config, UpdateRequestProcessor next) {
+    /**
+     * @param indexerPool the UpdateProcessor is allocated per-request, but XmlIndexer contains various
+     * expensive components, so indexers are drawn from a pool shared across requests.
+     * @param next the next processor in the chain
+     */
+    public LuxUpdateProcessor (XmlIndexerPool indexerPool, UpdateRequestProcessor next) {
         super(next);
-        indexConfig = config;
-    }
-    
-    private XmlIndexer getIndexer (IndexConfiguration config) {
-        // TODO: pool these across requests - the UpdateProcessor is allocated per-request,
-        // but XmlIndexer contains various expensive components that should be reused
-        return new XmlIndexer(config);
+        this.indexerPool = indexerPool;
+        indexConfig = indexerPool.getConfiguration();
     }
 
     @Override
     public void processAdd (AddUpdateCommand cmd) throws IOException {
-        XmlIndexer xmlIndexer = getIndexer(indexConfig);
         SolrInputDocument solrInputDocument = cmd.getSolrInputDocument();
         Object o = solrInputDocument.getFieldValue(indexConfig.getFieldName(FieldName.XML_STORE));
-        if (o != null) {
+        if (o == null) {
+            if (next != null) {
+                next.processAdd(cmd);
+            }
+            return;
+        }
+        XmlIndexer xmlIndexer = indexerPool.checkout();
+        try {
             String xml = (String) o;
             String uri = (String) solrInputDocument.getFieldValue(indexConfig.getFieldName(FieldName.URI));
             try {
@@ -46,9 +54,12 @@ public class LuxUpdateProcessor extends UpdateRequestProcessor {
                 LoggerFactory.getLogger(LuxUpdateProcessor.class).error ("Failed to parse " + FieldName.XML_STORE, e);
             }
             addDocumentFields (xmlIndexer, solrInputDocument);
-        }
-        if (next != null) {
-            next.processAdd(cmd);
+            // the field values may refer to the indexer's state, so hold on to it until they have been consumed
+            if (next != null) {
+                next.processAdd(cmd);
+            }
+        } finally {
+            indexerPool.release(xmlIndexer);
         }
     }
     
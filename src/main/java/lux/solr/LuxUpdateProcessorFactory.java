@@ -3,8 +3,11 @@ package lux.solr;
 import static lux.index.IndexConfiguration.INDEX_FULLTEXT;
 import static lux.index.IndexConfiguration.INDEX_PATHS;
 
+import lux.index.XmlIndexerPool;
+
 import org.apache.solr.core.PluginInfo;
 import org.apache.solr.core.SolrCore;
+import org.apache.solr.handler.component.SearchComponent;
 import org.apache.solr.request.SolrQueryRequest;
 import org.apache.solr.response.SolrQueryResponse;
 import org.apache.solr.update.processor.UpdateRequestProcessor;
@@ -15,6 +18,8 @@ import org.apache.solr.util.plugin.SolrCoreAware;
 public class LuxUpdateProcessorFactory extends UpdateRequestProcessorFactory implements SolrCoreAware {
 
     SolrIndexConfig indexConfig;
+    
+    private volatile XmlIndexerPool indexerPool;
 
     /** Called when each core is initialized; we ensure that Lux fields are configured.
      */
@@ -27,7 +32,34 @@ public class LuxUpdateProcessorFactory extends UpdateRequestProcessorFactory imp
 
     @Override
     public UpdateRequestProcessor getInstance(SolrQueryRequest req, SolrQueryResponse rsp, UpdateRequestProcessor next) {
-        return new LuxUpdateProcessor (indexConfig.getIndexConfig(), next);
+        return new LuxUpdateProcessor (getIndexerPool(req.getCore()), next);
+    }
+
+    /**
+     * Indexers are pooled across requests.  If the core has an {@link XQueryComponent}, its pool is shared,
+     * since its configuration is compatible with (a superset of) ours; otherwise we create our own pool.
+     * The lookup is deferred until the first request since the order in which plugins are informed
+     * of the core is not defined.
+     * @param core the core
+     * @return the pool from which the update processor obtains indexers
+     */
+    XmlIndexerPool getIndexerPool (SolrCore core) {
+        if (indexerPool == null) {
+            XmlIndexerPool pool = null;
+            for (SearchComponent component : core.getSearchComponents().values()) {
+                if (component instanceof XQueryComponent) {
+                    pool = ((XQueryComponent) component).getIndexerPool();
+                    if (pool != null) {
+                        break;
+                    }
+                }
+            }
+            if (pool == null) {
+                pool = new XmlIndexerPool (indexConfig.getIndexConfig());
+            }
+            indexerPool = pool;
+        }
+        return indexerPool;
     }
 
 }
@@ -14,6 +14,7 @@ import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.core.KeywordAnalyzer;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.util.NumericUtils;
 import org.apache.solr.common.SolrException;
 import org.apache.solr.common.SolrException.ErrorCode;
 import org.apache.solr.common.util.NamedList;
@@ -24,6 +25,7 @@ import org.apache.solr.schema.IndexSchema;
 import org.apache.solr.schema.SchemaField;
 import org.apache.solr.schema.StrField;
 import org.apache.solr.schema.TextField;
+import org.apache.solr.schema.TrieField;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -156,12 +158,27 @@ public class SolrIndexConfig {
             if (fieldType == null) {
                 throw new SolrException(ErrorCode.SERVER_ERROR, "Field " + f.getKey() + " declared in lux config, but not defined in schema");
             }
-            XPathField<String> xpathField = new XPathField<String>(f.getKey(), f.getValue(), fieldType.getAnalyzer(), field.stored() ? Store.YES : Store.NO, Type.STRING);
+            XPathField<?> xpathField = new XPathField<Object>(f.getKey(), f.getValue(), fieldType.getAnalyzer(), field.stored() ? Store.YES : Store.NO, getXPathFieldType(fieldType),
+                    !field.multiValued());
             
             indexConfig.addField(xpathField);
         }
     }
 
+    /* Numeric Solr fields are indexed with numeric values, so that comparisons may be optimized
+     * as range queries, but only if they use Lucene's default precision step, which the optimizer assumes. */
+    private static Type getXPathFieldType (FieldType fieldType) {
+        if (fieldType instanceof TrieField && ((TrieField) fieldType).getPrecisionStep() == NumericUtils.PRECISION_STEP_DEFAULT) {
+            switch (((TrieField) fieldType).getType()) {
+            case INTEGER: return Type.INT;
+            case LONG: return Type.LONG;
+            case DOUBLE: return Type.DOUBLE;
+            default: break;
+            }
+        }
+        return Type.STRING;
+    }
+
     private FieldType getFieldType(FieldDefinition xmlField, IndexSchema schema) {
         // FIXME - we should store a field type name in XmlField and just look that up instead
         // of trying to infer from the analyzer
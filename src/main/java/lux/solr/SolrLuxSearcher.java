@@ -0,0 +1,45 @@
+package lux.solr;
+
+import java.io.IOException;
+
+import lux.search.Deadline;
+import lux.search.LuxSearcher;
+
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.solr.search.SolrIndexSearcher;
+
+/**
+ * A LuxSearcher that searches using a SolrIndexSearcher, and takes advantage of its caches.
+ * Documents are counted using Solr DocSets, which are cached in Solr's filterCache, so repeated counts
+ * of the same query, as are typical of faceted displays, don't require repeated searches.
+ */
+public class SolrLuxSearcher extends LuxSearcher {
+
+    private final SolrIndexSearcher solrSearcher;
+
+    public SolrLuxSearcher (SolrIndexSearcher searcher) {
+        super (searcher);
+        solrSearcher = searcher;
+    }
+
+    /**
+     * Counts using a DocSet, which is cached; the deadline is checked only before counting, since a DocSet
+     * is computed in its entirety.
+     */
+    @Override
+    public int count (Query query, Deadline deadline) throws IOException {
+        if (query instanceof MatchAllDocsQuery) {
+            return super.count(query, deadline);
+        }
+        if (deadline != null && deadline.isExpired()) {
+            return 0;
+        }
+        return solrSearcher.getDocSet(query).size();
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
@@ -10,8 +10,12 @@ import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.xml.transform.TransformerException;
 
@@ -19,12 +23,16 @@ import lux.Compiler;
 import lux.DocWriter;
 import lux.Evaluator;
 import lux.QueryContext;
+import lux.QueryStats;
+import lux.SharedDocCache;
 import lux.TransformErrorListener;
 import lux.XdmResultSet;
 import lux.exception.LuxException;
 import lux.exception.LuxHttpException;
 import lux.index.XmlIndexer;
+import lux.index.XmlIndexerPool;
 import lux.search.LuxSearcher;
+import lux.search.SearchResultCache;
 import lux.xml.QName;
 import net.sf.saxon.s9api.XQueryExecutable;
 import net.sf.saxon.s9api.XdmAtomicValue;
@@ -41,11 +49,13 @@ import org.apache.commons.lang.StringUtils;
 import org.apache.solr.common.params.CommonParams;
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.CloseHook;
 import org.apache.solr.core.PluginInfo;
 import org.apache.solr.core.SolrCore;
 import org.apache.solr.handler.component.QueryComponent;
 import org.apache.solr.handler.component.ResponseBuilder;
 import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.SolrRequestInfo;
 import org.apache.solr.response.SolrQueryResponse;
 import org.apache.solr.search.DocSlice;
 import org.apache.solr.search.SolrIndexSearcher;
@@ -56,18 +66,33 @@ import org.slf4j.LoggerFactory;
 
 /** This component executes searches expressed as XPath or XQuery.
  *  Its queries will match documents that have been indexed using XmlIndexer
- *  with the INDEX_PATHS option.
+ *  with the INDEX_PATHS option.  When debugging is requested (eg with debugQuery=true), the query's
+ *  {@link QueryStats} are reported, as "lux", in the debug section of the response
+ *  (unless the results are streamed), in place of Solr's standard query and results debugging.
  */
 public class XQueryComponent extends QueryComponent implements SolrCoreAware {
     
     public static final String LUX_XQUERY = "lux.xquery";
     public static final String LUX_PATH_INFO = "lux.pathInfo";
+    /**
+     * When this parameter is true, and the response is written by {@link LuxResponseWriter}, results are
+     * computed lazily, and serialized as they are produced, rather than being accumulated in the response.
+     * See {@link XdmResultStream}.
+     */
+    public static final String LUX_STREAM = "lux.stream";
     private static final QName LUX_HTTP = new QName (Evaluator.LUX_NAMESPACE, "http");
     protected Set<String> fields = new HashSet<String>();
     protected Compiler compiler;
-    private ArrayBlockingQueue<XmlIndexer> indexerPool;
-    //protected XmlIndexer indexer;
+    private XmlIndexerPool indexerPool;
     protected SolrIndexConfig solrIndexConfig;
+    private long docCacheSize = SharedDocCache.DEFAULT_MAX_BYTES;
+    private int queryCacheSize = Compiler.DEFAULT_QUERY_CACHE_SIZE;
+    private int xsltCacheSize = Compiler.DEFAULT_XSLT_CACHE_SIZE;
+    private long resultCacheSize = 0;
+    private int sortBatchSize = LuxSearcher.DEFAULT_BATCH_SIZE;
+    private int indexerPoolSize = Runtime.getRuntime().availableProcessors();
+    private int searchThreads = 0;
+    private ExecutorService searchExecutor;
     
     public SolrIndexConfig getSolrIndexConfig() {
         return solrIndexConfig;
@@ -77,7 +102,55 @@ public class XQueryComponent extends QueryComponent implements SolrCoreAware {
     
     public XQueryComponent() {
         logger = LoggerFactory.getLogger(XQueryComponent.class);
-        indexerPool = new ArrayBlockingQueue<XmlIndexer>(8);
+    }
+    
+    /**
+     * Reads the component's configuration.  The "document-cache-size" argument sets the size (in bytes)
+     * of the cache of parsed documents shared across all queries; if it is zero, no documents are shared.
+     * The "query-cache-size" argument sets the maximum number of compiled queries to cache; if it is zero,
+     * queries are compiled every time they are evaluated.  The "xslt-cache-size" argument likewise sets the
+     * maximum number of compiled XSLT stylesheets to cache.  The "result-cache-size" argument sets the size (in bytes)
+     * of the cache of search results shared across all queries (see {@link SearchResultCache}); it defaults to zero, 
+     * which disables the cache.  The "sort-batch-size" argument sets the number of
+     * sorted search results retrieved at a time: see {@link LuxSearcher#setBatchSize(int)}.  The
+     * "indexer-pool-size" argument sets the number of idle {@link XmlIndexer}s retained for reuse;
+     * it defaults to the number of available processors.  The "search-threads" argument sets the number of
+     * threads used to retrieve search results in parallel (see {@link Compiler#setSearchExecutor(ExecutorService, int)});
+     * it defaults to zero, in which case results are retrieved by the thread evaluating the query.
+     */
+    @Override
+    public void init(@SuppressWarnings("rawtypes") NamedList args) {
+        super.init(args);
+        if (args != null) {
+            Object cacheSize = args.get("document-cache-size");
+            if (cacheSize != null) {
+                docCacheSize = Long.parseLong(cacheSize.toString());
+            }
+            Object querySize = args.get("query-cache-size");
+            if (querySize != null) {
+                queryCacheSize = Integer.parseInt(querySize.toString());
+            }
+            Object xsltSize = args.get("xslt-cache-size");
+            if (xsltSize != null) {
+                xsltCacheSize = Integer.parseInt(xsltSize.toString());
+            }
+            Object resultSize = args.get("result-cache-size");
+            if (resultSize != null) {
+                resultCacheSize = Long.parseLong(resultSize.toString());
+            }
+            Object batchSize = args.get("sort-batch-size");
+            if (batchSize != null) {
+                sortBatchSize = Integer.parseInt(batchSize.toString());
+            }
+            Object poolSize = args.get("indexer-pool-size");
+            if (poolSize != null) {
+                indexerPoolSize = Integer.parseInt(poolSize.toString());
+            }
+            Object threads = args.get("search-threads");
+            if (threads != null) {
+                searchThreads = Integer.parseInt(threads.toString());
+            }
+        }
     }
     
     @Override
@@ -87,22 +160,38 @@ public class XQueryComponent extends QueryComponent implements SolrCoreAware {
         PluginInfo info = core.getSolrConfig().getPluginInfo(UpdateRequestProcessorChain.class.getName());
         solrIndexConfig = SolrIndexConfig.makeIndexConfiguration(INDEX_PATHS|INDEX_FULLTEXT|STORE_DOCUMENT, info.initArgs);
         solrIndexConfig.inform(core);
+        indexerPool = new XmlIndexerPool(solrIndexConfig.getIndexConfig(), indexerPoolSize);
         compiler = createXCompiler();
+        if (searchThreads > 0) {
+            searchExecutor = new ThreadPoolExecutor (searchThreads, searchThreads, 0, TimeUnit.MILLISECONDS, 
+                    new LinkedBlockingQueue<Runnable>());
+            compiler.setSearchExecutor(searchExecutor, searchThreads);
+            core.addCloseHook(new CloseHook() {
+                @Override
+                public void preClose(SolrCore c) {
+                }
+                @Override
+                public void postClose(SolrCore c) {
+                    searchExecutor.shutdown();
+                }
+            });
+        }
+    }
+    
+    /**
+     * @return the pool of indexers used to index documents written by queries.  The pool is shared
+     * with any {@link LuxUpdateProcessor}s in the same core.
+     */
+    public XmlIndexerPool getIndexerPool () {
+        return indexerPool;
     }
     
     public XmlIndexer checkoutXmlIndexer () {
-        // In tests it didn't seem to make any appreciable difference whether this
-        // pool was present or not, but it salves my conscience
-        XmlIndexer indexer = indexerPool.poll();
-        if (indexer == null) {
-            indexer = new XmlIndexer (solrIndexConfig.getIndexConfig());
-        }
-        return indexer;
+        return indexerPool.checkout();
     }
     
     public void returnXmlIndexer (XmlIndexer doneWithIt) {
-        indexerPool.offer(doneWithIt);
-        // if the pool was full, we just drop the indexer as garbage
+        indexerPool.release(doneWithIt);
     }
     
     @Override
@@ -112,6 +201,13 @@ public class XQueryComponent extends QueryComponent implements SolrCoreAware {
         if (rb.getQueryString() == null) {
             rb.setQueryString( params.get( CommonParams.Q ) );
         }
+        if (rb.isDebugQuery() || rb.isDebugResults()) {
+            // Solr's standard debugging information describes a single Lucene query and its results, which
+            // an XQuery doesn't have; the query's statistics are reported instead, along with the timings
+            rb.setDebugQuery(false);
+            rb.setDebugResults(false);
+            rb.setDebugTimings(true);
+        }
     }
     
     @Override
@@ -145,14 +241,16 @@ public class XQueryComponent extends QueryComponent implements SolrCoreAware {
         SolrIndexSearcher.QueryResult result = new SolrIndexSearcher.QueryResult();
         SolrIndexSearcher searcher = rb.req.getSearcher();
         DocWriter docWriter = new SolrDocWriter (this, rb.req.getCore());
-        Evaluator evaluator = new Evaluator(compiler, new LuxSearcher(searcher), docWriter);
+        LuxSearcher luxSearcher = new SolrLuxSearcher(searcher);
+        luxSearcher.setBatchSize(sortBatchSize);
+        Evaluator evaluator = new Evaluator(compiler, luxSearcher, docWriter);
         TransformErrorListener errorListener = evaluator.getErrorListener();
         try {
             String queryPath = rb.req.getParams().get(LUX_XQUERY);
-        	expr = compiler.compile(query, errorListener, queryPath == null ? null : java.net.URI.create(queryPath));
+        	expr = compiler.compile(query, errorListener, queryPath == null ? null : java.net.URI.create(queryPath), evaluator.getQueryStats());
         } catch (LuxException ex) {
         	// ex.printStackTrace();
-        	String err = formatError(query, errorListener);
+        	String err = formatError(query, evaluator.getQueryStats(), errorListener.getErrors());
         	if (StringUtils.isEmpty(err)) {
         	    err = ex.getMessage();
         	}
@@ -164,19 +262,45 @@ public class XQueryComponent extends QueryComponent implements SolrCoreAware {
         NamedList<Object> xpathResults = new NamedList<Object>();
         long tstart = System.currentTimeMillis();
         int count = 0;
-        QueryContext context = null;
+        QueryContext context = new QueryContext();
+        // searches within the query stop returning results once the time allowed has elapsed
+        context.setTimeAllowed(timeAllowed);
         String xqueryPath = rb.req.getParams().get(LUX_XQUERY);
         if (xqueryPath != null) {
-            context = new QueryContext();
             context.bindVariable(LUX_HTTP, buildHttpParams(
                     evaluator,
                     rb.req.getParams(), 
                     xqueryPath
                     ));
         }
+        if (isStreaming(req)) {
+            streamResults(rb, evaluator, expr, context, start, len, timeAllowed);
+            return;
+        }
         XdmResultSet queryResults = null;
+        QueryStats stats = evaluator.getQueryStats();
         try {
             queryResults = evaluator.evaluate(expr, context);
+            // results are evaluated as they are retrieved, so evaluation stops once the page is full
+            Iterator<XdmItem> items = queryResults.iterator();
+            while (items.hasNext()) {
+                XdmItem xpathResult = items.next();
+                if (++ count < start) {
+                    continue;
+                }
+                long t = System.nanoTime();
+                addResult (xpathResults, xpathResult);
+                stats.responseTime += System.nanoTime() - t;
+                if (len > 0 && xpathResults.size() >= len) {
+                    // look ahead one result, so that an error raised just past the end of the page,
+                    // or when the page holds the last result, is reported
+                    items.hasNext();
+                    break;
+                }
+                if (timeAllowed > 0 && (System.currentTimeMillis() - tstart) > timeAllowed) {
+                    break;
+                }
+            }
         } catch (LuxHttpException e) {
             // TODO: finish this implementation somehow
             // Solr doesn't provide the ability for us to control the HTTP status
@@ -187,38 +311,80 @@ public class XQueryComponent extends QueryComponent implements SolrCoreAware {
         } finally {
             evaluator.close();
         }
-        if (queryResults != null) {
-            if (queryResults.getErrors().isEmpty()) {
-                for (Object xpathResult : queryResults) {
-                    if (++ count < start) {
-                        continue;
-                    }
-                    addResult (xpathResults, (XdmItem) xpathResult);
-                    if ((len > 0 && xpathResults.size() >= len) || 
-                            (timeAllowed > 0 && (System.currentTimeMillis() - tstart) > timeAllowed)) {
-                        break;
-                    }
-                }
-            }
-            else {
-                String err = formatError(query, queryResults.getErrors());
-                rsp.add ("xpath-error", err);
-            }
+        if (queryResults != null && queryResults.isPartial() && rsp.getResponseHeader() != null) {
+            rsp.getResponseHeader().add("partialResults", Boolean.TRUE);
+        }
+        // getErrors() would complete the evaluation; report the errors raised by the results that were retrieved
+        if (queryResults != null && ! queryResults.getErrorsSoFar().isEmpty()) {
+            String err = formatError(query, evaluator.getQueryStats(), queryResults.getErrorsSoFar());
+            rsp.add ("xpath-error", err);
+            xpathResults.clear();
         }
         rsp.add("xpath-results", xpathResults);
         result.setDocList (new DocSlice(0, 0, null, null, evaluator.getQueryStats().docCount, 0));
         rb.setResult (result);
         rsp.add ("response", rb.getResults().docList);
+        if (rb.isDebug()) {
+            rb.addDebugInfo("lux", toNamedList(evaluator.getQueryStats()));
+        }
         logger.debug ("retrieved: " + ((Evaluator)evaluator).getDocReader().getCacheMisses() + " docs, " +
                     xpathResults.size() + " results, " + (System.currentTimeMillis() - tstart) + "ms");
     }
+    
+    /*
+     * Reports query statistics in the debug section of the response.
+     */
+    private static NamedList<Object> toNamedList (QueryStats stats) {
+        NamedList<Object> list = new NamedList<Object>();
+        for (Map.Entry<String, Object> entry : stats.toMap().entrySet()) {
+            list.add(entry.getKey(), entry.getValue());
+        }
+        return list;
+    }
 
-    private String formatError(String query, TransformErrorListener errorListener) {
-        ArrayList<TransformerException> errors = errorListener.getErrors();
-        return formatError(query, errors);
+    private boolean isStreaming (SolrQueryRequest req) {
+        return req.getParams().getBool(LUX_STREAM, false) && 
+                req.getCore().getQueryResponseWriter(req) instanceof LuxResponseWriter;
+    }
+    
+    /*
+     * Adds a stream of results to the response, to be evaluated as the response is written.  The stream
+     * takes responsibility for closing the evaluator; it is closed when the request is, in case the
+     * response is never written.
+     */
+    private void streamResults (ResponseBuilder rb, Evaluator evaluator, XQueryExecutable expr, QueryContext context,
+            int start, int len, long timeAllowed) {
+        SolrQueryResponse rsp = rb.rsp;
+        Iterator<XdmItem> items;
+        try {
+            items = evaluator.iterator(expr, context);
+        } catch (LuxException e) {
+            String err = formatError(rb.getQueryString(), evaluator.getQueryStats(), evaluator.getErrorListener().getErrors());
+            rsp.add ("xpath-error", StringUtils.isEmpty(err) ? e.getMessage() : err);
+            evaluator.close();
+            return;
+        }
+        XdmResultStream stream = new XdmResultStream(items, evaluator, start, len, timeAllowed, rb.isDebug());
+        SolrRequestInfo requestInfo = SolrRequestInfo.getRequestInfo();
+        if (requestInfo != null) {
+            requestInfo.addCloseHook(stream);
+        }
+        rsp.add("xpath-results", stream);
+        // the number of documents retrieved is not known until the results have been written
+        SolrIndexSearcher.QueryResult result = new SolrIndexSearcher.QueryResult();
+        result.setDocList (new DocSlice(0, 0, null, null, 0, 0));
+        rb.setResult (result);
+        rsp.add ("response", rb.getResults().docList);
     }
 
-    private String formatError(String query, List<TransformerException> errors) {
+    /*
+     * Error locations refer to the query that was actually compiled, which is the optimized query
+     * recorded in this request's stats, if any.
+     */
+    private String formatError(String query, QueryStats stats, List<TransformerException> errors) {
+        if (stats.optimizedQuery != null) {
+            query = stats.optimizedQuery;
+        }
         StringBuilder buf = new StringBuilder();
         for (TransformerException te : errors) {
             if (te instanceof XPathException) {
@@ -232,9 +398,6 @@ public class XQueryComponent extends QueryComponent implements SolrCoreAware {
             if (te.getLocator() != null) {
                 int lineNumber = te.getLocator().getLineNumber();
                 int column = te.getLocator().getColumnNumber();
-                if (compiler.getLastOptimized() != null) {
-                    query = compiler.getLastOptimized().toString();
-                }
                 String[] lines = query.split("\r?\n");
                 if (lineNumber <= lines.length && lineNumber > 0) {
                     String line = lines[lineNumber-1];
@@ -251,7 +414,16 @@ public class XQueryComponent extends QueryComponent implements SolrCoreAware {
     }
 
     private Compiler createXCompiler() {
-        return new Compiler(solrIndexConfig.getIndexConfig());
+        Compiler xcompiler = new Compiler(solrIndexConfig.getIndexConfig());
+        if (docCacheSize > 0) {
+            xcompiler.setDocCache(new SharedDocCache(docCacheSize));
+        }
+        xcompiler.setQueryCacheSize(queryCacheSize);
+        xcompiler.setXsltCacheSize(xsltCacheSize);
+        if (resultCacheSize > 0) {
+            xcompiler.setResultCache(new SearchResultCache(resultCacheSize, SearchResultCache.DEFAULT_MAX_SORTED_RESULTS));
+        }
+        return xcompiler;
     }
     
     protected void addResult(NamedList<Object> xpathResults, XdmItem item) {
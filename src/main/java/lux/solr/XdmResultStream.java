@@ -0,0 +1,150 @@
+package lux.solr;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import lux.Evaluator;
+import lux.QueryStats;
+import lux.search.Deadline;
+import net.sf.saxon.s9api.XdmItem;
+
+/**
+ * A page of query results that is computed lazily, as the results are serialized by {@link LuxResponseWriter}.
+ * {@link XQueryComponent} places one of these in the response, in place of the usual list of results, when
+ * streaming is requested (see {@link XQueryComponent#LUX_STREAM}).  The stream skips results preceding the
+ * start of the page, and ends after the requested number of rows, or when the time allowed has elapsed, in which
+ * case the results are partial: see {@link #isPartial()}.
+ *
+ * The stream owns the {@link Evaluator} that produces its results, and closes it when the results are exhausted,
+ * or when {@link #close()} is called, whichever happens first.
+ */
+public class XdmResultStream implements Iterator<XdmItem>, Closeable {
+
+    private final Iterator<XdmItem> items;
+    private final Evaluator evaluator;
+    private final int start;
+    private final int len;
+    private final long timeAllowed;
+    private final boolean debug;
+    private final long tstart;
+    private int count;
+    private boolean partial;
+    private boolean ready;
+    private boolean closed;
+
+    /**
+     * @param items the results of a query evaluation
+     * @param evaluator the evaluator that produces the results
+     * @param start the (1-based) position of the first result to return
+     * @param len the maximum number of results to return; if not positive, all results are returned
+     * @param timeAllowed the maximum number of milliseconds to spend retrieving results; if not positive,
+     * there is no limit.
+     * @param debug whether the query statistics are to be reported along with the results
+     */
+    public XdmResultStream (Iterator<XdmItem> items, Evaluator evaluator, int start, int len, long timeAllowed, boolean debug) {
+        this.items = items;
+        this.evaluator = evaluator;
+        this.start = start;
+        this.len = len;
+        this.timeAllowed = timeAllowed;
+        this.debug = debug;
+        tstart = System.currentTimeMillis();
+    }
+
+    /**
+     * @throws lux.exception.LuxException if an error occurs while evaluating the query.  The stream is closed
+     * in that case.
+     */
+    @Override
+    public boolean hasNext() {
+        if (closed) {
+            return false;
+        }
+        if (ready) {
+            // the deadline isn't checked again between hasNext() and next()
+            return true;
+        }
+        try {
+            while (count < start - 1 && items.hasNext()) {
+                items.next();
+                ++count;
+            }
+            if (len > 0 && count - Math.max(start - 1, 0) >= len) {
+                close ();
+                return false;
+            }
+            boolean expired = timeAllowed > 0 && (System.currentTimeMillis() - tstart) > timeAllowed;
+            if (expired || ! items.hasNext()) {
+                // searches within the query stop returning results once the deadline has passed, so
+                // the results may also have been cut short by the evaluation's own deadline
+                Deadline deadline = evaluator.getDeadline();
+                partial = expired || (deadline != null && deadline.wasEnforced());
+                close ();
+                return false;
+            }
+        } catch (RuntimeException e) {
+            close ();
+            throw e;
+        }
+        ready = true;
+        return true;
+    }
+
+    @Override
+    public XdmItem next() {
+        if (! hasNext()) {
+            throw new NoSuchElementException();
+        }
+        ready = false;
+        ++count;
+        return items.next();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Releases the evaluator.  This may safely be called more than once.
+     */
+    @Override
+    public void close() {
+        if (! closed) {
+            closed = true;
+            evaluator.close();
+        }
+    }
+
+    public boolean isClosed () {
+        return closed;
+    }
+
+    /**
+     * @return whether the results were cut short because the time allowed elapsed.  This is known only
+     * once {@link #hasNext()} has returned false.
+     */
+    public boolean isPartial () {
+        return partial;
+    }
+
+    /**
+     * @return whether the query statistics are to be reported along with the results
+     */
+    public boolean isDebug () {
+        return debug;
+    }
+
+    /**
+     * @return the statistics gathered by the evaluator; these are complete once the results are exhausted
+     */
+    public QueryStats getQueryStats () {
+        return evaluator.getQueryStats();
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
@@ -0,0 +1,403 @@
+package lux.xml;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.event.PipelineConfiguration;
+import net.sf.saxon.event.Receiver;
+import net.sf.saxon.om.CodedName;
+import net.sf.saxon.om.CopyOptions;
+import net.sf.saxon.om.NamePool;
+import net.sf.saxon.om.NamespaceBinding;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.om.NodeName;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.tree.tiny.TinyBuilder;
+import net.sf.saxon.tree.tiny.TinyDocumentImpl;
+import net.sf.saxon.type.BuiltInAtomicType;
+import net.sf.saxon.type.SchemaType;
+import net.sf.saxon.type.SimpleType;
+import net.sf.saxon.type.Untyped;
+
+/**
+ * A compact binary encoding of an XML document tree, used as an alternative to storing serialized XML text.
+ * A document is rebuilt from its encoding by replaying the tree-construction events it records, so no XML
+ * parsing (character decoding, tokenizing, entity expansion, name checking) is required.  Each distinct name is
+ * written once per document, and is thereafter referred to by its position in the document's name table;
+ * names are allocated in the receiving Saxon NamePool only once per document.
+ *
+ * <p>To encode a document, call {@link #encode(NodeInfo)}.  To decode it, call {@link #build(Configuration, String)},
+ * or {@link #send(Receiver)} to send its events to some other Receiver.</p>
+ */
+public class TinyBinary {
+
+    private static final byte[] MAGIC = new byte[] { 'L', 'U', 'X', 'T', 1 };
+
+    private static final Charset UTF8 = Charset.forName("utf-8");
+
+    private static final byte START_ELEMENT = 1;
+    private static final byte END_ELEMENT = 2;
+    private static final byte TEXT = 3;
+    private static final byte COMMENT = 4;
+    private static final byte PROCESSING_INSTRUCTION = 5;
+    private static final byte NAMESPACE = 6;
+    private static final byte ATTRIBUTE = 7;
+    private static final byte START_CONTENT = 8;
+    private static final byte END_DOCUMENT = 9;
+
+    private final byte[] bytes;
+    private final int offset;
+    private final int length;
+
+    /**
+     * @param bytes a buffer holding an encoded document
+     * @param offset the position of the encoding in the buffer
+     * @param length the length of the encoding
+     */
+    public TinyBinary (byte[] bytes, int offset, int length) {
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * @param bytes a buffer holding an encoded document
+     * @param offset the position of the encoding in the buffer
+     * @param length the length of the encoding
+     * @return whether the bytes begin with the marker that identifies this encoding.
+     */
+    public static boolean isTinyBinary (byte[] bytes, int offset, int length) {
+        if (length < MAGIC.length) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (bytes[offset + i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param doc a document (or element) node
+     * @return the binary encoding of the node and all of its descendants
+     * @throws XPathException if there is an error traversing the node
+     */
+    public static byte[] encode (NodeInfo doc) throws XPathException {
+        Encoder encoder = new Encoder (doc.getConfiguration().makePipelineConfiguration());
+        encoder.startDocument(0);
+        if (doc.getNodeKind() == net.sf.saxon.type.Type.DOCUMENT) {
+            doc.copy(encoder, CopyOptions.LOCAL_NAMESPACES, 0);
+        } else {
+            doc.copy(encoder, CopyOptions.ALL_NAMESPACES, 0);
+        }
+        encoder.endDocument();
+        return encoder.toByteArray();
+    }
+
+    /**
+     * Decodes the document, building a TinyTree.
+     * @param config the Saxon configuration; its document number allocator assigns the new document's number
+     * @param systemId the system id (and base uri) of the new document
+     * @return the new document
+     * @throws XPathException if the encoding is invalid
+     */
+    public TinyDocumentImpl build (Configuration config, String systemId) throws XPathException {
+        TinyBuilder builder = new TinyBuilder(config.makePipelineConfiguration());
+        builder.setSystemId(systemId);
+        send (builder);
+        return (TinyDocumentImpl) builder.getCurrentRoot();
+    }
+
+    /**
+     * Decodes the document, sending its events to the receiver.
+     * @param out the receiver, usually a tree builder
+     * @throws XPathException if the encoding is invalid
+     */
+    public void send (Receiver out) throws XPathException {
+        if (! isTinyBinary (bytes, offset, length)) {
+            throw new XPathException ("invalid binary document encoding");
+        }
+        NamePool namePool = out.getPipelineConfiguration().getConfiguration().getNamePool();
+        ArrayList<NodeName> names = new ArrayList<NodeName>();
+        ArrayList<String> uris = new ArrayList<String>();
+        DataInputStream in = new DataInputStream(new java.io.ByteArrayInputStream(bytes, offset + MAGIC.length, length - MAGIC.length));
+        SchemaType untyped = Untyped.getInstance();
+        SimpleType untypedAtomic = BuiltInAtomicType.UNTYPED_ATOMIC;
+        try {
+            out.open();
+            out.startDocument(0);
+            for (;;) {
+                byte event = in.readByte();
+                switch (event) {
+                case START_ELEMENT:
+                    out.startElement(readName(in, names, uris, namePool), untyped, 0, 0);
+                    break;
+                case NAMESPACE:
+                    out.namespace(new NamespaceBinding(readString(in), readURI(in, uris)), 0);
+                    break;
+                case ATTRIBUTE:
+                    NodeName attName = readName(in, names, uris, namePool);
+                    out.attribute(attName, untypedAtomic, readString(in), 0, 0);
+                    break;
+                case START_CONTENT:
+                    out.startContent();
+                    break;
+                case END_ELEMENT:
+                    out.endElement();
+                    break;
+                case TEXT:
+                    out.characters(readString(in), 0, 0);
+                    break;
+                case COMMENT:
+                    out.comment(readString(in), 0, 0);
+                    break;
+                case PROCESSING_INSTRUCTION:
+                    String target = readString(in);
+                    out.processingInstruction(target, readString(in), 0, 0);
+                    break;
+                case END_DOCUMENT:
+                    out.endDocument();
+                    out.close();
+                    return;
+                default:
+                    throw new XPathException ("invalid binary document encoding: unknown event " + event);
+                }
+            }
+        } catch (IOException e) {
+            throw new XPathException ("invalid binary document encoding", e);
+        }
+    }
+
+    private static NodeName readName (DataInputStream in, ArrayList<NodeName> names, ArrayList<String> uris, NamePool namePool) throws IOException {
+        int code = readInt(in);
+        if (code < names.size()) {
+            return names.get(code);
+        }
+        // a new name
+        String prefix = readString (in);
+        String uri = readURI (in, uris);
+        String localName = readString (in);
+        NodeName name = new CodedName (namePool.allocate(prefix, uri, localName), namePool);
+        names.add(name);
+        return name;
+    }
+
+    private static String readURI (DataInputStream in, ArrayList<String> uris) throws IOException {
+        int code = readInt(in);
+        if (code < uris.size()) {
+            return uris.get(code);
+        }
+        String uri = readString (in);
+        uris.add(uri);
+        return uri;
+    }
+
+    private static String readString (DataInputStream in) throws IOException {
+        int len = readInt(in);
+        byte[] buf = new byte[len];
+        in.readFully(buf);
+        return new String (buf, UTF8);
+    }
+
+    private static int readInt (DataInputStream in) throws IOException {
+        int value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    /**
+     * Receives tree-construction events and writes them in the binary format.
+     */
+    private static class Encoder implements Receiver {
+
+        private final ByteArrayOutputStream buffer;
+        private final DataOutputStream out;
+        private final HashMap<Object, Integer> names;
+        private final HashMap<String, Integer> uris;
+        private PipelineConfiguration pipe;
+        private String systemId;
+        private int depth;
+
+        Encoder (PipelineConfiguration pipe) {
+            this.pipe = pipe;
+            buffer = new ByteArrayOutputStream();
+            out = new DataOutputStream(buffer);
+            names = new HashMap<Object, Integer>();
+            uris = new HashMap<String, Integer>();
+            buffer.write(MAGIC, 0, MAGIC.length);
+        }
+
+        byte[] toByteArray () {
+            return buffer.toByteArray();
+        }
+
+        @Override
+        public void setPipelineConfiguration(PipelineConfiguration pipe) {
+            this.pipe = pipe;
+        }
+
+        @Override
+        public PipelineConfiguration getPipelineConfiguration() {
+            return pipe;
+        }
+
+        @Override
+        public void setSystemId(String systemId) {
+            this.systemId = systemId;
+        }
+
+        @Override
+        public String getSystemId() {
+            return systemId;
+        }
+
+        @Override
+        public void open() {
+        }
+
+        @Override
+        public void startDocument(int properties) {
+            // a document node copies itself by calling startDocument; only the outermost one is recorded
+            ++depth;
+        }
+
+        @Override
+        public void endDocument() throws XPathException {
+            if (--depth == 0) {
+                write (END_DOCUMENT);
+            }
+        }
+
+        @Override
+        public void setUnparsedEntity(String name, String systemID, String publicID) {
+        }
+
+        @Override
+        public void startElement(NodeName elemName, SchemaType typeCode, int locationId, int properties) throws XPathException {
+            write (START_ELEMENT);
+            writeName (elemName);
+        }
+
+        @Override
+        public void namespace(NamespaceBinding namespaceBinding, int properties) throws XPathException {
+            write (NAMESPACE);
+            writeString (namespaceBinding.getPrefix());
+            writeURI (namespaceBinding.getURI());
+        }
+
+        @Override
+        public void attribute(NodeName attName, SimpleType typeCode, CharSequence value, int locationId, int properties) throws XPathException {
+            write (ATTRIBUTE);
+            writeName (attName);
+            writeString (value);
+        }
+
+        @Override
+        public void startContent() throws XPathException {
+            write (START_CONTENT);
+        }
+
+        @Override
+        public void endElement() throws XPathException {
+            write (END_ELEMENT);
+        }
+
+        @Override
+        public void characters(CharSequence chars, int locationId, int properties) throws XPathException {
+            write (TEXT);
+            writeString (chars);
+        }
+
+        @Override
+        public void processingInstruction(String name, CharSequence data, int locationId, int properties) throws XPathException {
+            write (PROCESSING_INSTRUCTION);
+            writeString (name);
+            writeString (data);
+        }
+
+        @Override
+        public void comment(CharSequence content, int locationId, int properties) throws XPathException {
+            write (COMMENT);
+            writeString (content);
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public boolean usesTypeAnnotations() {
+            return false;
+        }
+
+        private void write (byte event) {
+            buffer.write(event);
+        }
+
+        private void writeName (NodeName name) throws XPathException {
+            // NodeName equality ignores the prefix, which we need to preserve
+            Object key = name.hasFingerprint() ? Integer.valueOf(name.getNameCode()) :
+                name.getDisplayName() + '{' + name.getURI();
+            Integer code = names.get(key);
+            if (code != null) {
+                writeInt (code);
+                return;
+            }
+            int next = names.size();
+            names.put(key, next);
+            writeInt (next);
+            writeString (name.getPrefix());
+            writeURI (name.getURI());
+            writeString (name.getLocalPart());
+        }
+
+        private void writeURI (String uri) throws XPathException {
+            Integer code = uris.get(uri);
+            if (code != null) {
+                writeInt (code);
+                return;
+            }
+            int next = uris.size();
+            uris.put(uri, next);
+            writeInt (next);
+            writeString (uri);
+        }
+
+        private void writeString (CharSequence s) throws XPathException {
+            byte[] b = s.toString().getBytes(UTF8);
+            writeInt (b.length);
+            try {
+                out.write(b);
+            } catch (IOException e) {
+                throw new XPathException (e);
+            }
+        }
+
+        private void writeInt (int value) {
+            while ((value & ~0x7f) != 0) {
+                buffer.write((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            buffer.write(value);
+        }
+
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
@@ -58,6 +58,7 @@ public class FunCall extends AbstractExpression {
     public static final QName FN_ROOT = new QName (FN_NAMESPACE, "root", "fn");
     public static final QName FN_LAST = new QName (FN_NAMESPACE, "last", "fn");
     public static final QName FN_DATA = new QName (FN_NAMESPACE, "data", "fn");
+    public static final QName FN_STRING = new QName (FN_NAMESPACE, "string", "fn");
     public static final QName FN_SUBSEQUENCE = new QName (FN_NAMESPACE, "subsequence", "fn");
     public static final QName FN_COUNT = new QName (FN_NAMESPACE, "count", "fn");
     public static final QName FN_EXISTS = new QName (FN_NAMESPACE, "exists", "fn");
@@ -66,9 +67,12 @@ public class FunCall extends AbstractExpression {
     public static final QName FN_COLLECTION = new QName (FN_NAMESPACE, "collection", "fn");
     public static final QName FN_STRING_JOIN = new QName (FN_NAMESPACE, "string-join", "fn");
     public static final QName FN_CONTAINS = new QName(FN_NAMESPACE, "contains", "fn");
+    public static final QName FN_MAX = new QName(FN_NAMESPACE, "max", "fn");
+    public static final QName FN_MIN = new QName(FN_NAMESPACE, "min", "fn");
 
     public static final String LOCAL_NAMESPACE = "http://www.w3.org/2005/xquery-local-functions";
     public static final String XS_NAMESPACE = "http://www.w3.org/2001/XMLSchema";    
+    public static final QName XS_STRING = new QName(XS_NAMESPACE, "string", "xs");
     
     // represent last() in Subsequence(foo, last()); ie foo[last()].
     public static final FunCall LastExpression = new FunCall (FN_LAST, ValueType.VALUE);
@@ -92,12 +92,13 @@ public class SearchCall extends FunCall {
                 if (sortField.getReverse()) {
                     buf.append (" descending");
                 }
-                if (SearchResultIterator.MISSING_LAST.equals(sortField.getComparatorSource())) {
+                if (SearchResultIterator.isEmptyGreatest(sortField)) {
                     buf.append (" empty greatest");
                 }
                 switch (sortField.getType()) {
                 case INT: buf.append(" int"); break;
                 case LONG: buf.append(" long"); break;
+                case DOUBLE: buf.append(" double"); break;
                 default: // default is string
                 }
                 buf.append (",");
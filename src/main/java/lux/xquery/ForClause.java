@@ -18,6 +18,13 @@ public class ForClause extends VariableBindingClause {
         this.pos = pos;
     }
     
+    /**
+     * @return the position variable (at $n), or null if there is none
+     */
+    public Variable getPositionalVariable () {
+        return pos;
+    }
+
     @Override
     public void toString(StringBuilder buf) {
         buf.append ("for ");
@@ -14,6 +14,10 @@ public class VariableDefinition implements Comparable<VariableDefinition> {
         this.typeDesc = typeDesc;
         this.order = order;
     }
+
+    public AbstractExpression getVariable () {
+        return variable;
+    }
     
     public void toString (StringBuilder buf) {
         buf.append ("declare variable ");
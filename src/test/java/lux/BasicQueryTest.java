@@ -403,7 +403,7 @@ public class BasicQueryTest {
 
     private void assertSortKeys(String xpath, String ... sortFields) {
         compiler.compile(xpath);
-        XQuery optimizedQuery = compiler.getLastOptimized();
+        XQuery optimizedQuery = compiler.optimize(xpath);
         AbstractExpression ex = optimizedQuery.getBody();
         SortExtractor extractor = new SortExtractor();
         ex.accept(extractor);
@@ -417,7 +417,7 @@ public class BasicQueryTest {
             String ... queries) 
     {
         compiler.compile(xpath);
-        XQuery optimizedQuery = compiler.getLastOptimized();
+        XQuery optimizedQuery = compiler.optimize(xpath);
         AbstractExpression ex = optimizedQuery.getBody();
         if (expectedOptimized != null) {
             assertEquals (expectedOptimized, optimizedQuery.toString());
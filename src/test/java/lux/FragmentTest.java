@@ -0,0 +1,112 @@
+package lux;
+
+import static lux.index.IndexConfiguration.*;
+import static org.junit.Assert.*;
+
+import java.util.Iterator;
+
+import lux.index.IndexConfiguration;
+import lux.index.XmlIndexer;
+import lux.index.field.FieldDefinition.Type;
+import lux.index.field.XPathField;
+import lux.search.LuxSearcher;
+import net.sf.saxon.s9api.XdmItem;
+
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the indexing and retrieval of document fragments (see {@link IndexConfiguration#addFragment(String)}).
+ */
+public class FragmentTest {
+
+    private XmlIndexer indexer;
+    private RAMDirectory dir;
+
+    @Before
+    public void setup () throws Exception {
+        indexer = new XmlIndexer(INDEX_QNAMES | INDEX_PATHS | INDEX_FULLTEXT | STORE_DOCUMENT | BUILD_DOCUMENT);
+        indexer.getConfiguration().addFragment("//speech");
+        indexer.getConfiguration().addField(new XPathField<String>("root", "name(/*)", null, Store.YES, Type.STRING));
+        dir = new RAMDirectory();
+        IndexWriter indexWriter = indexer.newIndexWriter(dir);
+        indexer.indexDocument(indexWriter, "/act1", 
+                "<act><scene><speech>to be</speech><speech>or not</speech></scene><scene><speech>to be</speech></scene></act>");
+        indexer.indexDocument(indexWriter, "/act2", "<act><scene><title>silence</title></scene></act>");
+        indexWriter.close();
+    }
+
+    private Evaluator newEvaluator () throws Exception {
+        return new Evaluator(new Compiler(indexer.getConfiguration()), new LuxSearcher(DirectoryReader.open(dir)), null);
+    }
+
+    private String evaluate (Evaluator eval, String query) {
+        XdmResultSet results = eval.evaluate(query);
+        assertTrue (results.getErrors().toString(), results.getErrors().isEmpty());
+        StringBuilder buf = new StringBuilder();
+        Iterator<XdmItem> iter = results.iterator();
+        while (iter.hasNext()) {
+            if (buf.length() > 0) {
+                buf.append(' ');
+            }
+            buf.append(iter.next().getStringValue());
+        }
+        return buf.toString();
+    }
+
+    @Test
+    public void testExcludeFragments () throws Exception {
+        Evaluator eval = newEvaluator();
+        // fragments are not returned by ordinary searches
+        assertEquals ("2", evaluate(eval, "count(collection())"));
+        assertEquals ("lux://act1 lux://act2", evaluate(eval, "collection()/base-uri()"));
+        assertEquals ("1", evaluate(eval, "count(lux:search('<speech:be'))"));
+        assertEquals ("1", evaluate(eval, "lux:count('<speech:be')"));
+        assertEquals ("true", evaluate(eval, "lux:exists('<speech:be')"));
+        assertEquals ("act", evaluate(eval, "name(doc('/act1')/*)"));
+    }
+
+    @Test
+    public void testSearchFragments () throws Exception {
+        Evaluator eval = newEvaluator();
+        assertEquals ("to be to be", evaluate(eval, "lux:search-fragments('<speech:be')/speech/string()"));
+        assertEquals ("lux://act1 lux://act1", evaluate(eval, "lux:search-fragments('<speech:be')/base-uri()"));
+        assertEquals ("/*[1]/*[1]/*[1] /*[1]/*[2]/*[1]", 
+                evaluate(eval, "lux:search-fragments('<speech:be')/lux:field-values('lux_fragment', .)"));
+        assertEquals ("3", evaluate(eval, "count(lux:search-fragments('*:*'))"));
+        assertEquals ("", evaluate(eval, "lux:search-fragments('<title:silence')"));
+    }
+
+    @Test
+    public void testFieldTermsAndValues () throws Exception {
+        Evaluator eval = newEvaluator();
+        // the fragments' root elements are speech, but no whole document's is
+        assertEquals ("act", evaluate(eval, "lux:field-terms('root')"));
+        assertEquals ("", evaluate(eval, "lux:field-terms('root', 'b')"));
+        assertEquals ("act act", evaluate(eval, "collection()/lux:field-values('root', .)"));
+        // a fragment has the field values of the document containing it, apart from its position
+        assertEquals ("act act", evaluate(eval, "lux:search-fragments('<speech:be')/lux:field-values('root', .)"));
+        assertEquals ("/act1", evaluate(eval, "lux:search-fragments('<speech:not')/lux:field-values('lux_uri', .)"));
+    }
+
+    @Test
+    public void testDeleteFragments () throws Exception {
+        IndexWriter indexWriter = indexer.newIndexWriter(dir);
+        DirectDocWriter writer = new DirectDocWriter(indexer, indexWriter);
+        writer.delete("/act1");
+        writer.commit();
+        indexWriter.close();
+        Evaluator eval = newEvaluator();
+        assertEquals ("0", evaluate(eval, "count(lux:search-fragments('*:*'))"));
+        assertEquals ("1", evaluate(eval, "count(collection())"));
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
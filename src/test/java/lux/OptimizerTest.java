@@ -34,7 +34,7 @@ public class OptimizerTest {
         // TODO Auto-generated method stub
         Compiler compiler = eval.getCompiler();
         compiler.compile(query);
-        XQuery optimizedQuery = compiler.getLastOptimized();
+        XQuery optimizedQuery = compiler.optimize(query);
         AbstractExpression optimizedExpression = optimizedQuery.getBody();
         SearchExtractor extractor = new SearchExtractor();
         optimizedExpression.accept(extractor);
@@ -0,0 +1,152 @@
+package lux;
+
+import static lux.index.IndexConfiguration.*;
+import static org.junit.Assert.*;
+
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import lux.index.XmlIndexer;
+import lux.search.LuxSearcher;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.s9api.XdmItem;
+import net.sf.saxon.s9api.XdmNode;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests the retrieval of search results in parallel, using {@link ParallelDocLoader}.
+ */
+public class ParallelSearchTest {
+
+    private static final int SEGMENTS = 5;
+    private static final int DOCS_PER_SEGMENT = 50;
+    private static final int TOTAL = SEGMENTS * DOCS_PER_SEGMENT;
+
+    private static XmlIndexer indexer;
+    private static LuxSearcher searcher;
+    private static ExecutorService executor;
+
+    @BeforeClass
+    public static void setup () throws Exception {
+        indexer = new XmlIndexer(INDEX_QNAMES | STORE_DOCUMENT | BUILD_DOCUMENT);
+        RAMDirectory dir = new RAMDirectory();
+        IndexWriter indexWriter = indexer.newIndexWriter(dir);
+        int n = 0;
+        for (int i = 0; i < SEGMENTS; i++) {
+            for (int j = 0; j < DOCS_PER_SEGMENT; j++, n++) {
+                indexer.indexDocument(indexWriter, String.format("/doc%03d", n),
+                        "<doc" + (n % 2 == 0 ? " even=\"yes\"" : "") + ">" + n + "</doc>");
+            }
+            indexWriter.commit();
+        }
+        indexWriter.close();
+        searcher = new LuxSearcher(DirectoryReader.open(dir));
+        executor = Executors.newFixedThreadPool(3);
+    }
+
+    @AfterClass
+    public static void tearDown () throws Exception {
+        executor.shutdown();
+        searcher.close();
+    }
+
+    private Evaluator newEvaluator (boolean parallel) {
+        Compiler compiler = new Compiler(indexer.getConfiguration());
+        if (parallel) {
+            compiler.setSearchExecutor(executor, 3);
+        }
+        return new Evaluator(compiler, searcher, null);
+    }
+
+    @Test
+    public void testDocumentOrder () throws Exception {
+        Evaluator eval = newEvaluator(true);
+        XdmResultSet results = eval.evaluate("collection()/doc");
+        assertTrue (results.getErrors().isEmpty());
+        assertEquals (TOTAL, results.size());
+        long lastNumber = -1;
+        int i = 0;
+        for (XdmItem item : results) {
+            // results are returned in document order, and Saxon's document numbers are the docIDs
+            assertEquals (String.valueOf(i++), item.getStringValue());
+            NodeInfo node = (NodeInfo) ((XdmNode) item).getUnderlyingValue();
+            long number = node.getDocumentNumber();
+            assertTrue (number > lastNumber);
+            lastNumber = number;
+        }
+        assertEquals (TOTAL, eval.getQueryStats().docCount);
+        assertEquals (TOTAL, eval.getDocReader().getCacheMisses());
+    }
+
+    @Test
+    public void testSameResults () throws Exception {
+        String[] queries = new String[] {
+                "for $doc in lux:search('<@even:yes') return $doc/doc/string()",
+                "(collection()/doc)[last()]/string()",
+                "subsequence(collection()/doc, 40, 20)/string()",
+                "count(collection()/doc[. mod 3 = 0])",
+                "collection()[.//doc = '123']/doc/string()",
+                "for $doc in lux:search('<@even:yes', (), 'lux_uri descending') return $doc/string()"
+        };
+        for (String query : queries) {
+            XdmResultSet expected = newEvaluator(false).evaluate(query);
+            XdmResultSet actual = newEvaluator(true).evaluate(query);
+            assertTrue (actual.getErrors().isEmpty());
+            assertEquals (query, expected.size(), actual.size());
+            Iterator<XdmItem> actualItems = actual.iterator();
+            for (XdmItem item : expected) {
+                assertEquals (query, item.getStringValue(), actualItems.next().getStringValue());
+            }
+        }
+    }
+
+    @Test
+    public void testFirstResults () throws Exception {
+        // a single thread runs the tasks in the order they are submitted
+        ExecutorService singleThread = Executors.newSingleThreadExecutor();
+        try {
+            SharedDocCache docCache = new SharedDocCache();
+            Compiler compiler = new Compiler(indexer.getConfiguration());
+            compiler.setSearchExecutor(singleThread, 3);
+            compiler.setDocCache(docCache);
+            Evaluator eval = new Evaluator(compiler, searcher, null);
+            XdmResultSet results = eval.evaluate("(collection()/doc)[1]/string()");
+            assertTrue (results.getErrors().isEmpty());
+            assertEquals ("0", results.iterator().next().getStringValue());
+            // wait for the tasks submitted by the query to finish
+            singleThread.submit(new Runnable() { public void run () { } }).get();
+            // every document read by a task is added to the shared cache: the first chunk of each segment is
+            // a single document, and the next chunk of the first segment, two
+            assertTrue ("read " + docCache.size() + " documents", docCache.size() <= 5);
+        } finally {
+            singleThread.shutdown();
+        }
+    }
+
+    @Test
+    public void testLazyRetrieval () throws Exception {
+        Evaluator eval = newEvaluator(true);
+        XdmResultSet results = eval.evaluate("collection()/doc/string()");
+        Iterator<XdmItem> iter = results.iterator();
+        assertEquals ("0", iter.next().getStringValue());
+        assertEquals ("1", iter.next().getStringValue());
+        // documents are retrieved ahead of the query, but only those consumed are added to the reader
+        assertTrue (eval.getDocReader().getCacheMisses() < TOTAL);
+        // abandon the results
+        eval.cancel();
+        assertTrue (results.size() < TOTAL);
+        assertTrue (results.isPartial());
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
@@ -0,0 +1,301 @@
+package lux;
+
+import static lux.index.IndexConfiguration.*;
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import lux.index.XmlIndexer;
+import lux.index.field.FieldDefinition.Type;
+import lux.index.field.XPathField;
+import lux.search.LuxSearcher;
+import lux.xml.QName;
+import net.sf.saxon.s9api.XdmAtomicValue;
+import net.sf.saxon.s9api.XdmEmptySequence;
+import net.sf.saxon.s9api.XdmItem;
+import net.sf.saxon.s9api.XdmValue;
+
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests the optimization of comparisons with the values of numeric XPathFields as range queries, 
+ * the use of XPathFields to optimize FLWOR where and order by clauses, and the optimization of
+ * comparisons with external variables.
+ */
+public class RangeComparisonTest {
+
+    private static final int DOC_COUNT = 50;
+
+    private static XmlIndexer indexer;
+    private static LuxSearcher searcher;
+    private static LuxSearcher refundSearcher;
+    private static LuxSearcher invoiceSearcher;
+
+    @BeforeClass
+    public static void setup () throws Exception {
+        indexer = new XmlIndexer (INDEX_QNAMES|INDEX_PATHS|INDEX_FULLTEXT|STORE_DOCUMENT|BUILD_DOCUMENT);
+        indexer.getConfiguration().addField(new XPathField<Integer>("total", "//order/total", null, Store.YES, Type.INT, true));
+        indexer.getConfiguration().addField(new XPathField<Long>("id", "/order/@id", null, Store.NO, Type.LONG));
+        indexer.getConfiguration().addField(new XPathField<Double>("price", "/order/price", null, Store.NO, Type.DOUBLE, true));
+        indexer.getConfiguration().addField(new XPathField<Long>("date", "/order/@date", null, Store.NO, Type.DATE));
+        indexer.getConfiguration().addField(new XPathField<String>("name", "/order/name", null, Store.NO, Type.STRING, true));
+        RAMDirectory dir = new RAMDirectory();
+        IndexWriter indexWriter = indexer.newIndexWriter(dir);
+        for (int i = 0; i < DOC_COUNT; i++) {
+            String date = String.format("2012-%02d-%02d", i / 25 + 1, i % 25 + 1);
+            indexer.indexDocument(indexWriter, "/order" + i, "<order id='" + i + "' date='" + date + "'><total>" + (i * 100) +
+                    "</total><price>" + (i * 0.25) + "</price><name>order" + i + "</name></order>");
+        }
+        indexWriter.close();
+        searcher = new LuxSearcher(DirectoryReader.open(dir));
+        // values that change when cast to a narrower type
+        indexer.getConfiguration().addField(new XPathField<Double>("amount", "/refund/amount", null, Store.NO, Type.DOUBLE));
+        indexer.getConfiguration().addField(new XPathField<Long>("time", "/refund/@time", null, Store.NO, Type.DATE));
+        indexer.getConfiguration().addField(new XPathField<String>("reason", "/refund/reason", null, Store.NO, Type.STRING));
+        refundSearcher = makeSearcher (
+                "<refund time='2020-01-02T23:00:00'><amount>-1.9</amount><reason>late</reason><reason>damaged</reason></refund>",
+                "<refund time='2020-01-03T01:00:00'><amount>-2.5</amount><reason>late</reason></refund>");
+        // a field whose xpath has a predicate selects only some of the nodes matching its path
+        indexer.getConfiguration().addField(new XPathField<Integer>("net", "/invoice/total[@type='net']", null, Store.NO, Type.INT, true));
+        invoiceSearcher = makeSearcher ("<invoice><total type='net'>5</total><total type='gross'>5000</total></invoice>",
+                "<invoice><total type='gross'>3000</total></invoice>", "<invoice><total type='net'>100</total></invoice>");
+    }
+
+    private static LuxSearcher makeSearcher (String ... docs) throws Exception {
+        RAMDirectory dir = new RAMDirectory();
+        IndexWriter indexWriter = indexer.newIndexWriter(dir);
+        for (int i = 0; i < docs.length; i++) {
+            indexer.indexDocument(indexWriter, "/doc" + i, docs[i]);
+        }
+        indexWriter.close();
+        return new LuxSearcher(DirectoryReader.open(dir));
+    }
+
+    @AfterClass
+    public static void tearDown () throws Exception {
+        searcher.close();
+        refundSearcher.close();
+        invoiceSearcher.close();
+    }
+
+    @Test
+    public void testIntRange () throws Exception {
+        assertRangeQuery ("//order[total > 1000]", 39);
+        assertRangeQuery ("//order[xs:int(total) gt 1000]", 39);
+        assertRangeQuery ("//order[1000 >= total]", 11);
+        assertRangeQuery ("//order[total <= 1000.5]", 11);
+        assertRangeQuery ("//order[total >= 1000.5]", 39);
+        assertRangeQuery ("count(//order[total < 500])", 1, 5);
+    }
+
+    @Test
+    public void testLongRange () throws Exception {
+        assertRangeQuery ("/order[@id >= 45]", 5);
+    }
+
+    @Test
+    public void testDoubleRange () throws Exception {
+        assertRangeQuery ("/order[price < 2]", 8);
+        assertRangeQuery ("/order[price >= 11.5]", 4);
+    }
+
+    @Test
+    public void testDateRange () throws Exception {
+        assertRangeQuery ("/order[@date >= xs:date('2012-02-01')]", 25);
+        // the range is widened to allow for timezones, so the document dated 2012-01-10 is retrieved
+        assertRangeQuery ("/order[xs:date('2012-01-10') > @date]", 9, 10);
+    }
+
+    @Test
+    public void testInexactCast () throws Exception {
+        // casts that change the indexed value are not removed
+        assertRefundCount ("/refund[xs:int(xs:double(amount)) ge -1]", false, 1);
+        assertRefundCount ("/refund[xs:date(xs:dateTime(@time)) le xs:date('2020-01-02')]", false, 1);
+        assertRefundCount ("for $doc in collection() where xs:int(xs:double($doc/refund/amount)) ge -1 return $doc", false, 1);
+        // casts that don't are
+        assertRefundCount ("/refund[xs:double(amount) ge -2]", true, 1);
+        assertRefundCount ("/refund[xs:dateTime(@time) le xs:dateTime('2020-01-02T23:30:00')]", true, 1);
+    }
+
+    @Test
+    public void testFieldXPathPredicate () throws Exception {
+        // fields whose xpaths have predicates are not used to optimize comparisons with their path
+        assertCount (invoiceSearcher, "count(/invoice[total > 1000])", false, 2);
+        assertCount (invoiceSearcher, "count(/invoice[total[@type='gross'] > 1000])", false, 2);
+    }
+
+    @Test
+    public void testFieldValues () throws Exception {
+        // lux:field-values() returns strings
+        assertRangeQuery ("collection()[xs:int(lux:field-values('total')) > 4500]", 4);
+    }
+
+    @Test
+    public void testNoRange () throws Exception {
+        // the path doesn't match any field's xpath
+        Evaluator eval = new Evaluator(new Compiler(indexer.getConfiguration()), searcher, null);
+        XdmResultSet results = eval.evaluate("//total[. > 1000]");
+        assertEquals (39, results.size());
+        assertFalse (eval.getQueryStats().optimizedQuery.contains("NumericRangeQuery"));
+    }
+
+    @Test
+    public void testWhereClause () throws Exception {
+        // Saxon leaves where clauses that refer to let variables in place
+        assertRangeQuery ("for $doc in collection() let $t := $doc//order/total where $t > 1000 return $doc", 39);
+        assertDocCount ("for $doc in collection() let $n := $doc/order/name where $n = 'order7' return $doc", 1, 1);
+        assertDocCount ("for $doc in collection() let $n := $doc/order/name where $n = 'order7' and $doc/order/price >= 1 return $doc", 1, 1);
+        assertDocCount ("for $doc in collection() where contains($doc/order/@id, '7') return $doc", 5, 5);
+        // filtering the sequence would change the positions
+        Evaluator eval = new Evaluator(new Compiler(indexer.getConfiguration()), searcher, null);
+        XdmResultSet results = eval.evaluate("for $doc at $i in collection() let $t := $doc//order/total where $t > 4600 return $i");
+        assertEquals ("48 49 50", join(results));
+        assertEquals (DOC_COUNT, eval.getQueryStats().docCount);
+    }
+
+    @Test
+    public void testOrderBy () throws Exception {
+        assertOrderBy ("for $doc in collection() order by xs:int($doc//order/total) descending return string($doc/order/@id)",
+                "total descending int", "49 48 47");
+        assertOrderBy ("for $doc in collection() order by xs:double($doc/order/price), $doc/order/name return string($doc/order/@id)",
+                "price double,name", "0 1 2");
+        // Saxon sorts if any key is not indexed
+        assertOrderBy ("for $doc in collection() order by xs:double($doc/order/price), $doc/order/@id return string($doc/order/@id)",
+                null, "0 1 2");
+        assertOrderBy ("for $doc in collection() order by $doc/order/name descending return string($doc/order/@id)",
+                "name descending", "9 8 7");
+        // an atomized path is compared as a string, so it can't be sorted using a numeric field
+        assertOrderBy ("for $doc in collection() order by $doc//order/total return string($doc/order/@id)",
+                null, "0 1 10");
+    }
+
+    @Test
+    public void testOrderByRepeatedKey () throws Exception {
+        // sorting by a field that may have several values for a document would hide the error Saxon raises
+        Evaluator eval = new Evaluator(new Compiler(indexer.getConfiguration()), refundSearcher, null);
+        XdmResultSet results = eval.evaluate("for $doc in collection() order by $doc/refund/reason return $doc");
+        assertFalse (results.getErrors().isEmpty());
+        String optimized = eval.getQueryStats().optimizedQuery;
+        assertTrue (optimized, optimized.contains("order by"));
+    }
+
+    @Test
+    public void testFieldXPathPredicateFLWOR () throws Exception {
+        // nor where clauses or order by clauses
+        assertCount (invoiceSearcher, "count(for $doc in collection() where $doc/invoice/total > 1000 return $doc)", false, 2);
+        Evaluator eval = new Evaluator(new Compiler(indexer.getConfiguration()), invoiceSearcher, null);
+        XdmResultSet results = eval.evaluate("for $doc in collection() where count($doc/invoice/total) = 1 " +
+                "order by xs:int($doc/invoice/total) return string($doc/invoice/total)");
+        assertTrue (results.getErrors().toString(), results.getErrors().isEmpty());
+        assertEquals ("100 3000", join(results));
+        String optimized = eval.getQueryStats().optimizedQuery;
+        assertTrue (optimized, optimized.contains("order by"));
+    }
+
+    @Test
+    public void testExternalVariable () throws Exception {
+        QueryContext context = new QueryContext();
+        context.bindVariable(new QName("q"), new XdmAtomicValue("order7"));
+        assertDocCount ("declare variable $q external; //order[name = $q]", context, 1, 1);
+        assertDocCount ("declare variable $q as xs:string external; collection()[order/name = $q]", context, 1, 1);
+        assertDocCount ("declare variable $q external; for $doc in collection() where $doc/order/name = $q return $doc", context, 1, 1);
+        // any of several values may match
+        context.bindVariable(new QName("q"), new XdmValue(Arrays.<XdmItem>asList(new XdmAtomicValue("order7"), new XdmAtomicValue("order11"))));
+        assertDocCount ("declare variable $q external; //order[name = $q]", context, 2, 2);
+        // the empty sequence matches nothing
+        context.bindVariable(new QName("q"), XdmEmptySequence.getInstance());
+        assertDocCount ("declare variable $q external; //order[name = $q]", context, 0, 0);
+        // a variable depending on the context is not optimized
+        assertDocCount ("for $id in ('7', '11') return //order[@id = $id]", null, 2, DOC_COUNT);
+    }
+
+    private void assertOrderBy (String query, String sortCriteria, String expected) {
+        Evaluator eval = new Evaluator(new Compiler(indexer.getConfiguration()), searcher, null);
+        XdmResultSet results = eval.evaluate("subsequence(" + query + ", 1, 3)");
+        assertTrue (results.getErrors().toString(), results.getErrors().isEmpty());
+        assertEquals (expected, join(results));
+        String optimized = eval.getQueryStats().optimizedQuery;
+        if (sortCriteria == null) {
+            assertTrue (optimized, optimized.contains("order by"));
+        } else {
+            assertTrue (optimized, optimized.contains('"' + sortCriteria + '"'));
+            assertFalse (optimized, optimized.contains("order by"));
+        }
+    }
+
+    private static String join (XdmResultSet results) {
+        StringBuilder buf = new StringBuilder();
+        for (XdmItem item : results) {
+            if (buf.length() > 0) {
+                buf.append(' ');
+            }
+            buf.append(item.getStringValue());
+        }
+        return buf.toString();
+    }
+
+    private void assertDocCount (String query, int count, int docCount) {
+        assertDocCount (query, null, count, docCount);
+    }
+
+    private void assertDocCount (String query, QueryContext context, int count, int docCount) {
+        Evaluator eval = new Evaluator(new Compiler(indexer.getConfiguration()), searcher, null);
+        XdmResultSet results = eval.evaluate(query, context);
+        assertTrue (results.getErrors().toString(), results.getErrors().isEmpty());
+        assertEquals (query, count, results.size());
+        assertEquals (query, docCount, eval.getQueryStats().docCount);
+    }
+
+    private void assertRefundCount (String query, boolean isRangeQuery, int count) {
+        assertCount (refundSearcher, query, isRangeQuery, count);
+    }
+
+    /*
+     * @param count the number of results expected, or for a count() query, its value
+     */
+    private void assertCount (LuxSearcher luxSearcher, String query, boolean isRangeQuery, int count) {
+        Evaluator eval = new Evaluator(new Compiler(indexer.getConfiguration()), luxSearcher, null);
+        XdmResultSet results = eval.evaluate(query);
+        assertTrue (results.getErrors().toString(), results.getErrors().isEmpty());
+        if (query.startsWith("count")) {
+            assertEquals (query, String.valueOf(count), results.iterator().next().getStringValue());
+        } else {
+            assertEquals (query, count, results.size());
+        }
+        String optimized = eval.getQueryStats().optimizedQuery;
+        assertEquals (optimized, isRangeQuery, optimized.contains("NumericRangeQuery"));
+    }
+
+    private void assertRangeQuery (String query, int count) {
+        assertRangeQuery (query, count, count);
+    }
+
+    /*
+     * @param count the number of results expected
+     * @param docCount the number of documents expected to be retrieved
+     */
+    private void assertRangeQuery (String query, int count, int docCount) {
+        Evaluator eval = new Evaluator(new Compiler(indexer.getConfiguration()), searcher, null);
+        XdmResultSet results = eval.evaluate(query);
+        assertTrue (results.getErrors().toString(), results.getErrors().isEmpty());
+        String optimized = eval.getQueryStats().optimizedQuery;
+        assertTrue (optimized, optimized.contains("NumericRangeQuery"));
+        if (query.startsWith("count")) {
+            assertEquals (String.valueOf(docCount), results.iterator().next().getStringValue());
+        } else {
+            assertEquals (query, count, results.size());
+        }
+        assertEquals (query, docCount, eval.getQueryStats().docCount);
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
@@ -9,7 +9,9 @@ import lux.exception.LuxException;
 import lux.saxon.UnOptimizer;
 import lux.xpath.AbstractExpression;
 import lux.xquery.XQuery;
+import net.sf.saxon.s9api.Processor;
 import net.sf.saxon.s9api.XQueryExecutable;
+import net.sf.saxon.s9api.XdmItem;
 import net.sf.saxon.s9api.XdmNode;
 
 import org.junit.BeforeClass;
@@ -88,6 +90,35 @@ public class SearchTest extends BaseSearchTest {
         assertSearch ("true", "not(//SCENE//ACT)", QUERY_NO_DOCS, 0);
     }
     
+    @Test
+    public void testNegatedPredicate () throws Exception {
+        // documents not matching the negated expression are counted without being retrieved
+        XdmResultSet results = assertSearch ("count(collection()) - count(collection()[.//SCENE])", QUERY_NO_DOCS);
+        String expected = results.iterator().next().toString();
+        assertSearch (expected, "count(collection()[not(.//SCENE)])", QUERY_NO_DOCS, null);
+        assertSearch (expected, "count(collection()[empty(.//SCENE)])", QUERY_NO_DOCS, null);
+        // and only the documents satisfying the predicate are retrieved
+        assertSearch ("collection()[not(.//SCENE)]", QUERY_EXACT);
+        assertSearch ("collection()[not(.//ACT//SCENE)]", QUERY_EXACT);
+        assertSearch ("true", "exists(collection()[not(.//SCENE)])", QUERY_NO_DOCS, null);
+    }
+    
+    @Test
+    public void testDocumentOrderWithoutConfig () throws Exception {
+        // Search results are known to be in document order even when Saxon is not configured by Lux,
+        // so they are retrieved lazily, and not sorted
+        Compiler compiler = new Compiler(new Processor(false), index.indexer.getConfiguration());
+        assertFalse (compiler.getProcessor().getUnderlyingConfiguration() instanceof Config);
+        Evaluator eval = new Evaluator(compiler, index.searcher, null);
+        XdmResultSet results = eval.evaluate("exists(collection()//SPEECH[string-length(SPEAKER) > 3])");
+        assertEquals ("true", results.iterator().next().toString());
+        assertEquals (1, eval.getQueryStats().docCount);
+        results = eval.evaluate("collection()//SPEECH/SPEAKER");
+        Iterator<XdmItem> iter = results.iterator();
+        assertEquals ("BERNARDO", iter.next().getStringValue());
+        assertTrue (eval.getDocReader().getCacheMisses() < totalDocs);
+    }
+    
     @Test
     public void testPathOrder () throws Exception {
         // Make sure that the Optimizer doesn't incorrectly assert 
@@ -502,6 +533,114 @@ public class SearchTest extends BaseSearchTest {
             "test:function()", null, 1);
     }
     
+    @Test
+    public void testLazyResults () throws Exception {
+        // results are evaluated only as they are retrieved
+        Evaluator eval = index.makeEvaluator();
+        XdmResultSet results = eval.evaluate("//SCENE");
+        Iterator<XdmItem> iter = results.iterator();
+        assertTrue (iter.hasNext());
+        assertEquals ("SCENE", ((XdmNode) iter.next()).getNodeName().getLocalName());
+        assertEquals (1, eval.getQueryStats().docCount);
+        // retrieving the size completes the evaluation
+        int sceneCount = Integer.parseInt(index.makeEvaluator().evaluate("count(//SCENE)").iterator().next().getStringValue());
+        assertEquals (sceneCount, results.size());
+        assertTrue (eval.getQueryStats().docCount > 1);
+        // results may be iterated repeatedly
+        int count = 0;
+        for (iter = results.iterator(); iter.hasNext(); iter.next()) {
+            ++count;
+        }
+        assertEquals (sceneCount, count);
+    }
+    
+    @Test
+    public void testInterleavedResults () throws Exception {
+        // each result set keeps the errors of its own evaluation
+        Evaluator eval = index.makeEvaluator();
+        XdmResultSet first = eval.evaluate("(1, error(xs:QName('local:first'), 'first error'))");
+        XdmResultSet second = eval.evaluate("(1, error(xs:QName('local:second'), 'second error'))");
+        assertEquals (1, second.getErrors().size());
+        assertEquals ("second error", second.getErrors().get(0).getMessage());
+        assertEquals (1, first.getErrors().size());
+        assertEquals ("first error", first.getErrors().get(0).getMessage());
+    }
+
+    @Test
+    public void testReadAhead () throws Exception {
+        // sorted documents are read in batches, starting with a single document, and doubling in size
+        Evaluator eval = index.makeEvaluator();
+        Iterator<XdmItem> iter = eval.evaluate("lux:search('*:*', (), 'lux_uri')").iterator();
+        iter.next();
+        assertEquals (1, eval.getDocReader().getCacheMisses());
+        iter.next();
+        iter.next();
+        assertEquals (3, eval.getDocReader().getCacheMisses());
+        iter.next();
+        assertEquals (7, eval.getDocReader().getCacheMisses());
+        assertEquals (4, eval.getQueryStats().docCount);
+        // unsorted documents are read one at a time
+        eval = index.makeEvaluator();
+        iter = eval.evaluate("collection()").iterator();
+        iter.next();
+        iter.next();
+        iter.next();
+        assertEquals (3, eval.getDocReader().getCacheMisses());
+        // sorted results are returned in sort order, although they are read in docID order
+        XdmResultSet results = index.makeEvaluator().evaluate("lux:search('*:*', (), 'lux_uri descending')/base-uri()");
+        assertTrue (results.getErrors().isEmpty());
+        assertTrue (results.size() > SearchResultIterator.MAX_READ_AHEAD);
+        String last = null;
+        for (XdmItem item : results) {
+            String uri = item.getStringValue();
+            assertTrue (last == null || uri.compareTo(last) < 0);
+            last = uri;
+        }
+    }
+    
+    @Test
+    public void testEvalOptimized () throws Exception {
+        // a query evaluated by lux:eval is optimized only on request.
+        // The unoptimized collection() is resolved by the last Evaluator created with the Compiler, so use a
+        // Compiler of our own, since the other tests run concurrently
+        Compiler compiler = new Compiler(index.indexer.getConfiguration());
+        Evaluator eval = new Evaluator(compiler, index.searcher, null);
+        XdmResultSet results = eval.evaluate("lux:eval('count(collection()//SCENE)')");
+        String sceneCount = results.iterator().next().getStringValue();
+        int docCount = eval.getQueryStats().docCount;
+        eval = new Evaluator(compiler, index.searcher, null);
+        results = eval.evaluate("lux:eval('count(collection()//SCENE)', (), true())");
+        assertEquals (sceneCount, results.iterator().next().getStringValue());
+        assertTrue (eval.getQueryStats().docCount < docCount);
+    }
+    
+    @Test
+    public void testQueryStats () throws Exception {
+        // use a Compiler of our own, so the query isn't found in the cache of compiled queries
+        Compiler compiler = new Compiler(index.indexer.getConfiguration());
+        Evaluator eval = new Evaluator(compiler, index.searcher, null);
+        XdmResultSet results = eval.evaluate("collection()//SCENE[contains(., 'philosophy')]/TITLE/string()");
+        assertTrue (results.size() > 0);
+        QueryStats stats = eval.getQueryStats();
+        assertTrue (stats.compileTime > 0);
+        assertTrue (stats.translateTime > 0);
+        assertTrue (stats.optimizeTime > 0);
+        assertTrue (stats.recompileTime > 0);
+        assertTrue (stats.evaluationTime > 0);
+        assertTrue (stats.searchTime > 0);
+        assertTrue (stats.docCacheMisses > 0);
+        assertTrue (stats.fetchTime > 0);
+        assertTrue (stats.buildTime > 0);
+        assertEquals (0, stats.queryCacheHits);
+        assertNotNull (stats.optimizedQuery);
+        long compileTime = stats.compileTime;
+        // the second time, the compiled query is cached
+        eval.evaluate("collection()//SCENE[contains(., 'philosophy')]/TITLE/string()").size();
+        stats = eval.getQueryStats();
+        assertEquals (1, stats.queryCacheHits);
+        assertEquals (compileTime, stats.compileTime);
+    }
+    
     @Test
     public void testFlworPath() throws Exception {
         // test that a let clause that doesn't match any data doesn't prevent the
@@ -0,0 +1,120 @@
+package lux;
+
+import static lux.index.IndexConfiguration.*;
+import static org.junit.Assert.*;
+
+import lux.index.XmlIndexer;
+import lux.search.LuxSearcher;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests sharing of parsed documents across queries using a {@link SharedDocCache}.
+ */
+public class SharedDocCacheTest {
+
+    private static final String QUERY = "count(//LINE[.='Holla! Bernardo!'])";
+
+    private static IndexTestSupport index;
+
+    @BeforeClass
+    public static void setup () throws Exception {
+        index = new IndexTestSupport();
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        index.close();
+    }
+
+    @Before
+    public void resetCache () {
+        index.compiler.setDocCache(null);
+    }
+
+    @Test
+    public void testNoSharedCache () throws Exception {
+        assertEquals (5, evaluate(QUERY).getDocReader().getCacheMisses());
+        assertEquals (5, evaluate(QUERY).getDocReader().getCacheMisses());
+    }
+
+    @Test
+    public void testSharedAcrossQueries () throws Exception {
+        SharedDocCache cache = new SharedDocCache();
+        index.compiler.setDocCache(cache);
+        Evaluator eval = evaluate(QUERY);
+        assertEquals (5, eval.getDocReader().getCacheMisses());
+        assertEquals (0, eval.getDocReader().getCacheHits());
+        assertEquals (5, cache.size());
+        assertTrue (cache.getBytes() > 0);
+
+        eval = evaluate(QUERY);
+        assertEquals (0, eval.getDocReader().getCacheMisses());
+        assertEquals (5, eval.getDocReader().getCacheHits());
+        assertEquals (5, cache.size());
+    }
+
+    @Test
+    public void testEvictBySize () throws Exception {
+        SharedDocCache cache = new SharedDocCache(Long.MAX_VALUE);
+        index.compiler.setDocCache(cache);
+        evaluate(QUERY);
+        long bytes = cache.getBytes();
+        assertEquals (5, cache.size());
+
+        // not quite enough room for all of the documents
+        cache = new SharedDocCache(bytes - 1);
+        index.compiler.setDocCache(cache);
+        evaluate(QUERY);
+        assertTrue (cache.size() < 5);
+        assertTrue (cache.size() > 0);
+        assertTrue (cache.getEvictions() > 0);
+        assertTrue (cache.getBytes() <= cache.getMaxBytes());
+        assertEquals (5 - cache.size(), cache.getEvictions());
+    }
+
+    @Test
+    public void testClear () throws Exception {
+        XmlIndexer indexer = new XmlIndexer(INDEX_QNAMES | STORE_DOCUMENT | BUILD_DOCUMENT);
+        RAMDirectory dir = new RAMDirectory();
+        IndexWriter indexWriter = indexer.newIndexWriter(dir);
+        indexer.indexDocument(indexWriter, "/doc1", "<doc>1</doc>");
+        indexer.indexDocument(indexWriter, "/doc2", "<doc>2</doc>");
+        indexWriter.close();
+        DirectoryReader reader = DirectoryReader.open(dir);
+        SharedDocCache cache = new SharedDocCache();
+        Compiler compiler = new Compiler(indexer.getConfiguration());
+        compiler.setDocCache(cache);
+        Evaluator eval = new Evaluator(compiler, new LuxSearcher(reader), null);
+        assertEquals ("1 2", eval.evaluate("string-join(collection()/doc, ' ')").iterator().next().toString());
+        assertEquals (2, cache.size());
+        cache.clear();
+        assertEquals (0, cache.size());
+        assertEquals (0, cache.getBytes());
+        // documents cached after clearing the cache are still dropped when their segment is closed
+        eval = new Evaluator(compiler, new LuxSearcher(reader), null);
+        assertEquals ("1 2", eval.evaluate("string-join(collection()/doc, ' ')").iterator().next().toString());
+        assertEquals (2, cache.size());
+        reader.close();
+        assertEquals (0, cache.size());
+    }
+
+    private Evaluator evaluate (String query) throws Exception {
+        Evaluator eval = index.makeEvaluator();
+        XdmResultSet results = eval.evaluate(query);
+        assertTrue (results.getErrors().isEmpty());
+        assertEquals ("5", results.iterator().next().toString());
+        return eval;
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
@@ -10,16 +10,20 @@ import java.net.URL;
 import lux.Compiler;
 import lux.Evaluator;
 import lux.QueryContext;
+import lux.QueryStats;
 import lux.XdmResultSet;
 import lux.exception.LuxException;
 import lux.index.IndexConfiguration;
 import lux.index.XmlIndexer;
+import lux.index.field.FieldDefinition.Type;
+import lux.index.field.XPathField;
 import lux.xml.QName;
 import net.sf.saxon.s9api.XQueryExecutable;
 import net.sf.saxon.s9api.XdmAtomicValue;
 import net.sf.saxon.s9api.XdmValue;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.lucene.document.Field.Store;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -103,6 +107,49 @@ public class CompilerTest {
         assertQuery ("1", "variable-shadowing.xqy");
     }
     
+    @Test
+    public void testQueryCache () throws Exception {
+        String query = "count(//SCENE)";
+        XQueryExecutable cq = compiler.compile(query);
+        assertSame (cq, compiler.compile(query));
+        assertEquals (1, compiler.getQueryCache().getHits());
+        assertEquals (1, compiler.getQueryCache().getMisses());
+        assertEquals (1, compiler.getQueryCache().size());
+        // a different base uri
+        assertNotSame (cq, compiler.compile(query, null, new URI("http://localhost/")));
+        // a different search strategy
+        compiler.setSearchStrategy(Compiler.SearchStrategy.NONE);
+        assertNotSame (cq, compiler.compile(query));
+        compiler.setSearchStrategy(Compiler.SearchStrategy.LUX_SEARCH);
+        assertSame (cq, compiler.compile(query));
+        // a change to the index configuration
+        compiler.getIndexConfiguration().addField(new XPathField<String>("title", "/descendant::TITLE[1]", null, Store.NO, Type.STRING));
+        assertNotSame (cq, compiler.compile(query));
+        // disable caching
+        compiler.setQueryCacheSize(0);
+        assertNull (compiler.getQueryCache());
+        assertNotSame (compiler.compile(query), compiler.compile(query));
+    }
+    
+    @Test
+    public void testOptimizedText () throws Exception {
+        String query = "count(//SCENE)";
+        QueryStats stats = new QueryStats();
+        compiler.compile(query, null, null, stats);
+        String text = stats.optimizedQuery;
+        assertEquals (compiler.optimize(query).toString(), text);
+        // the text is not re-serialized when the compiled query is retrieved from the cache
+        QueryStats cachedStats = new QueryStats();
+        compiler.compile(query, null, null, cachedStats);
+        assertSame (text, cachedStats.optimizedQuery);
+        // the optimized query is recorded per compilation, not on the shared compiler
+        assertSame (text, stats.optimizedQuery);
+        compiler.setSearchStrategy(Compiler.SearchStrategy.NONE);
+        QueryStats unoptimizedStats = new QueryStats();
+        compiler.compile(query, null, null, unoptimizedStats);
+        assertNull (unoptimizedStats.optimizedQuery);
+    }
+
     private void assertQuery (String result, String queryFileName) throws IOException, LuxException, URISyntaxException {
         XdmResultSet resultSet = evalQuery(queryFileName);
         if (resultSet.getErrors().size() > 0) {
@@ -123,7 +170,6 @@ public class CompilerTest {
         String query = IOUtils.toString(url.openStream(), "utf-8");
         URI uri = url.toURI();
         XQueryExecutable cq = compiler.compile(query, null, uri);
-        // System.err.println (compiler.getLastOptimized());
         return cq;
     }
     
@@ -0,0 +1,38 @@
+package lux.functions;
+
+import static org.junit.Assert.*;
+import lux.CompilationCache;
+
+import org.junit.Test;
+
+public class EvalTest extends XQueryTest {
+    
+    @Test
+    public void testEval () throws Exception {
+        assertXQuery ("2", "lux:eval('1 + 1')");
+        assertXQuery ("3", "lux:eval('declare variable $x external; $x + 1', ('x', 2))");
+        assertXQuery ("3", "lux:eval('declare variable $x external; $x + 1', ('x', 2), true())");
+    }
+    
+    @Test
+    public void testEvalCache () throws Exception {
+        CompilationCache<?,?> cache = evaluator.getCompiler().getQueryCache();
+        long misses = cache.getMisses();
+        // the evaluated query is compiled only once
+        assertXQuery ("10", "sum(for $i in 1 to 4 return lux:eval('declare variable $i external; $i', ('i', $i)))");
+        assertEquals (misses + 2, cache.getMisses());
+        // optimized and unoptimized queries are cached separately
+        assertXQuery ("10", "sum(for $i in 1 to 4 return lux:eval('declare variable $i external; $i', ('i', $i), true()))");
+        assertEquals (misses + 4, cache.getMisses());
+    }
+    
+    @Test
+    public void testEvalError () throws Exception {
+        assertXQuery (null, "lux:eval('1 +')", "Unexpected token \"<eof>\" in path expression");
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
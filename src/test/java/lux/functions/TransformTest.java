@@ -1,12 +1,22 @@
 package lux.functions;
 
+import static lux.index.IndexConfiguration.INDEX_QNAMES;
+import static lux.index.IndexConfiguration.STORE_DOCUMENT;
 import static org.junit.Assert.assertEquals;
+import lux.CompilationCache;
+import lux.Compiler;
+import lux.Evaluator;
 import lux.QueryContext;
 import lux.XdmResultSet;
+import lux.index.XmlIndexer;
+import lux.search.LuxSearcher;
 import lux.xml.QName;
 import net.sf.saxon.s9api.XdmAtomicValue;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.RAMDirectory;
 import org.junit.Test;
 
 public class TransformTest extends XQueryTest {
@@ -41,4 +51,60 @@ public class TransformTest extends XQueryTest {
         assertEquals ("got an unexpected error", 0, results.getErrors().size());
         assertEquals ("undefined", results.iterator().next().toString());
     }
+    
+    @Test
+    public void testTransformCache () throws Exception {
+        CompilationCache<?,?> cache = evaluator.getCompiler().getXsltCache();
+        long hits = cache.getHits();
+        long misses = cache.getMisses();
+        // the stylesheet is constructed for each call, but compiled only once
+        assertXQuery ("2 3 4 5 6", "string-join(for $i in 1 to 5 return string(lux:transform(" +
+                "<xsl:stylesheet xmlns:xsl='http://www.w3.org/1999/XSL/Transform' version='2.0'>" +
+                "<xsl:template match='test'><xsl:value-of select='{$i * 0 + 1} + .' /></xsl:template></xsl:stylesheet>, " +
+                "<test>{$i}</test>)), ' ')");
+        assertEquals (misses + 1, cache.getMisses());
+        assertEquals (hits + 4, cache.getHits());
+        // a different stylesheet
+        assertXQuery ("3", "string(lux:transform(" +
+                "<xsl:stylesheet xmlns:xsl='http://www.w3.org/1999/XSL/Transform' version='2.0'>" +
+                "<xsl:template match='test'><xsl:value-of select='2 + .' /></xsl:template></xsl:stylesheet>, " +
+                "<test>1</test>))");
+        assertEquals (misses + 2, cache.getMisses());
+    }
+
+    @Test
+    public void testTransformCacheDocument () throws Exception {
+        CompilationCache<?,?> cache = evaluator.getCompiler().getXsltCache();
+        long hits = cache.getHits();
+        long misses = cache.getMisses();
+        // the stylesheet is loaded once, and is found in the cache by its identity
+        String uri = TransformTest.class.getResource("transform-increment.xsl").toString();
+        assertXQuery ("2 3 4", "string-join(for $i in 1 to 3 return string(lux:transform(doc('" + uri + "'), " +
+                "<test>{$i}</test>)), ' ')");
+        assertEquals (misses + 1, cache.getMisses());
+        assertEquals (hits + 2, cache.getHits());
+    }
+
+    @Test
+    public void testTransformCacheIndexed () throws Exception {
+        XmlIndexer indexer = new XmlIndexer (INDEX_QNAMES|STORE_DOCUMENT);
+        Compiler compiler = new Compiler (indexer.getConfiguration());
+        RAMDirectory dir = new RAMDirectory();
+        IndexWriter indexWriter = indexer.newIndexWriter(dir);
+        String stylesheet = "<xsl:stylesheet xmlns:xsl='http://www.w3.org/1999/XSL/Transform' version='2.0'>" +
+                "<xsl:template match='test'><xsl:value-of select='%d + .' /></xsl:template></xsl:stylesheet>";
+        for (int i = 1; i <= 2; i++) {
+            // the updated stylesheet is stored with the same docID as the one it replaces
+            indexWriter.deleteAll();
+            indexer.indexDocument(indexWriter, "/increment.xsl", String.format(stylesheet, i));
+            indexWriter.commit();
+            LuxSearcher searcher = new LuxSearcher (DirectoryReader.open(dir));
+            Evaluator eval = new Evaluator (compiler, searcher, null);
+            XdmResultSet results = eval.evaluate("string(lux:transform(doc('/increment.xsl'), <test>1</test>))");
+            assertEquals (results.getErrors().toString(), 0, results.getErrors().size());
+            assertEquals (String.valueOf(i + 1), results.iterator().next().toString());
+            searcher.close();
+        }
+        indexWriter.close();
+    }
 }
@@ -0,0 +1,107 @@
+package lux.index;
+
+import static lux.index.IndexConfiguration.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.Test;
+
+/**
+ * Tests concurrent indexing with {@link BulkIndexer}.
+ */
+public class BulkIndexerTest {
+
+    private static final int DOC_COUNT = 200;
+
+    @Test
+    public void testBulkIndex () throws Exception {
+        XmlIndexer indexer = new XmlIndexer (INDEX_QNAMES | INDEX_PATHS | STORE_DOCUMENT);
+        RAMDirectory dir = new RAMDirectory();
+        IndexWriter indexWriter = indexer.newIndexWriter(dir);
+        final Map<String,Exception> errors = Collections.synchronizedMap(new HashMap<String, Exception>());
+        // a small queue, so that submission blocks
+        BulkIndexer bulk = new BulkIndexer (indexer.getConfiguration(), indexWriter, 4, 2);
+        bulk.setErrorListener(new BulkIndexer.ErrorListener() {
+            @Override
+            public void error(String uri, Exception e) {
+                errors.put(uri, e);
+            }
+        });
+        for (int i = 0; i < DOC_COUNT; i++) {
+            String xml = "<doc n='" + i + "'><title>" + i + "</title></doc>";
+            if (i % 2 == 0) {
+                bulk.add("/doc" + i, xml);
+            } else {
+                bulk.add("/doc" + i, xml.getBytes("utf-8"));
+            }
+        }
+        bulk.add("/malformed", "<doc>");
+        bulk.addZip(new ZipInputStream(new ByteArrayInputStream(makeZip())));
+        bulk.finish();
+        indexWriter.close();
+
+        assertEquals (DOC_COUNT + 2, bulk.getDocumentCount());
+        assertEquals (1, bulk.getFailureCount());
+        assertEquals (1, errors.size());
+        assertTrue (errors.containsKey("/malformed"));
+        assertTrue (bulk.getByteCount() > 0);
+
+        DirectoryReader reader = DirectoryReader.open(dir);
+        try {
+            assertEquals (DOC_COUNT + 2, reader.numDocs());
+            IndexSearcher searcher = new IndexSearcher(reader);
+            String uriField = indexer.getConfiguration().getFieldName(FieldName.URI);
+            assertEquals (1, searcher.search(new TermQuery(new Term(uriField, "/doc17")), 1).totalHits);
+            assertEquals (1, searcher.search(new TermQuery(new Term(uriField, "/zip/a.xml")), 1).totalHits);
+            assertEquals (0, searcher.search(new TermQuery(new Term(uriField, "/zip/readme.txt")), 1).totalHits);
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test(expected=IllegalStateException.class)
+    public void testAddAfterFinish () throws Exception {
+        XmlIndexer indexer = new XmlIndexer (INDEX_QNAMES);
+        IndexWriter indexWriter = indexer.newIndexWriter(new RAMDirectory());
+        try {
+            BulkIndexer bulk = new BulkIndexer (indexer.getConfiguration(), indexWriter, 1);
+            bulk.finish();
+            bulk.add("/doc", "<doc/>");
+        } finally {
+            indexWriter.close();
+        }
+    }
+
+    private static byte[] makeZip () throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream zip = new ZipOutputStream(bytes);
+        zip.putNextEntry(new ZipEntry("zip/"));
+        zip.putNextEntry(new ZipEntry("zip/a.xml"));
+        zip.write("<a>a</a>".getBytes("utf-8"));
+        zip.putNextEntry(new ZipEntry("zip/b.xml"));
+        zip.write("<b>b</b>".getBytes("utf-8"));
+        zip.putNextEntry(new ZipEntry("zip/readme.txt"));
+        zip.write("not xml".getBytes("utf-8"));
+        zip.close();
+        return bytes.toByteArray();
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
@@ -0,0 +1,64 @@
+package lux.index;
+
+import static lux.index.IndexConfiguration.*;
+import static org.junit.Assert.*;
+
+import java.io.StringReader;
+
+import org.junit.Test;
+
+/**
+ * Tests checkout, reset and reuse of indexers in an {@link XmlIndexerPool}.
+ */
+public class XmlIndexerPoolTest {
+
+    @Test
+    public void testReuse () throws Exception {
+        XmlIndexerPool pool = new XmlIndexerPool(new IndexConfiguration(INDEX_PATHS | STORE_DOCUMENT | BUILD_DOCUMENT), 2);
+        assertEquals (2, pool.getMaxSize());
+        XmlIndexer indexer = pool.checkout();
+        assertSame (pool.getConfiguration(), indexer.getConfiguration());
+        indexer.index(new StringReader("<doc>1</doc>"), "/doc1");
+        assertEquals ("/doc1", indexer.getURI());
+        assertEquals ("1", indexer.getXdmNode().getStringValue());
+        pool.release(indexer);
+        // the returned indexer is reset and reused
+        assertNull (indexer.getURI());
+        assertEquals (1, pool.size());
+        assertSame (indexer, pool.checkout());
+        indexer.index(new StringReader("<doc>2</doc>"), "/doc2");
+        assertEquals ("2", indexer.getXdmNode().getStringValue());
+        assertEquals (1, pool.getCreated());
+        assertEquals (0, pool.size());
+    }
+
+    @Test
+    public void testBounded () throws Exception {
+        XmlIndexerPool pool = new XmlIndexerPool(new IndexConfiguration(INDEX_PATHS), 2);
+        XmlIndexer[] indexers = new XmlIndexer[3];
+        for (int i = 0; i < indexers.length; i++) {
+            indexers[i] = pool.checkout();
+        }
+        assertEquals (3, pool.getCreated());
+        for (XmlIndexer indexer : indexers) {
+            pool.release(indexer);
+        }
+        // the extra indexer is dropped
+        assertEquals (2, pool.size());
+        pool.checkout();
+        pool.checkout();
+        pool.checkout();
+        assertEquals (4, pool.getCreated());
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testForeignIndexer () {
+        XmlIndexerPool pool = new XmlIndexerPool(new IndexConfiguration(INDEX_PATHS), 2);
+        pool.release(new XmlIndexer(INDEX_PATHS));
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
@@ -0,0 +1,136 @@
+package lux.search;
+
+import static lux.index.IndexConfiguration.*;
+import static org.junit.Assert.*;
+
+import java.util.Iterator;
+
+import lux.Compiler;
+import lux.Evaluator;
+import lux.QueryContext;
+import lux.XdmResultSet;
+import lux.index.FieldName;
+import lux.index.XmlIndexer;
+import net.sf.saxon.s9api.XdmItem;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.WildcardQuery;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests the enforcement of {@link Deadline}s by searches and query evaluation.
+ */
+public class DeadlineTest {
+
+    private static final int SEGMENTS = 4;
+    private static final int DOCS_PER_SEGMENT = 25;
+    private static final int TOTAL = SEGMENTS * DOCS_PER_SEGMENT;
+
+    private static XmlIndexer indexer;
+    private static LuxSearcher searcher;
+    private static String uriFieldName;
+
+    @BeforeClass
+    public static void setup () throws Exception {
+        indexer = new XmlIndexer(INDEX_QNAMES | STORE_DOCUMENT | BUILD_DOCUMENT);
+        uriFieldName = indexer.getConfiguration().getFieldName(FieldName.URI);
+        RAMDirectory dir = new RAMDirectory();
+        IndexWriter indexWriter = indexer.newIndexWriter(dir);
+        int n = 0;
+        for (int i = 0; i < SEGMENTS; i++) {
+            for (int j = 0; j < DOCS_PER_SEGMENT; j++, n++) {
+                indexer.indexDocument(indexWriter, String.format("/doc%03d", n), "<doc>" + n + "</doc>");
+            }
+            indexWriter.commit();
+        }
+        indexWriter.close();
+        searcher = new LuxSearcher(DirectoryReader.open(dir));
+    }
+
+    @AfterClass
+    public static void tearDown () throws Exception {
+        searcher.close();
+    }
+
+    @Test
+    public void testDeadline () throws Exception {
+        Deadline deadline = new Deadline(0);
+        assertFalse (deadline.isExpired());
+        deadline = new Deadline(1);
+        Thread.sleep(5);
+        // not enforced until checked
+        assertFalse (deadline.wasEnforced());
+        assertTrue (deadline.isExpired());
+        assertTrue (deadline.wasEnforced());
+        deadline = new Deadline(60000);
+        deadline.cancel();
+        assertTrue (deadline.isExpired());
+        assertTrue (deadline.isCancelled());
+    }
+
+    @Test
+    public void testSearch () throws Exception {
+        Deadline deadline = new Deadline(0);
+        WildcardQuery query = new WildcardQuery(new Term(uriFieldName, "/doc*"));
+        assertEquals (TOTAL, searcher.count(query, deadline));
+        deadline.cancel();
+        assertEquals (0, searcher.count(query, deadline));
+        // sorted results end when the deadline expires
+        Sort sort = new Sort(new SortField(uriFieldName, SortField.Type.STRING));
+        assertEquals (DocIdSetIterator.NO_MORE_DOCS, searcher.search(query, sort, deadline).nextDoc());
+        assertTrue (searcher.search(query, sort, null).nextDoc() != DocIdSetIterator.NO_MORE_DOCS);
+        // partial results are not cached
+        SearchResultCache cache = new SearchResultCache();
+        assertNull (cache.search(searcher, new MatchAllDocsQuery(), null, null, deadline));
+        assertEquals (0, cache.size());
+    }
+
+    @Test
+    public void testCancel () throws Exception {
+        Evaluator eval = new Evaluator(new Compiler(indexer.getConfiguration()), searcher, null);
+        XdmResultSet results = eval.evaluate("collection()/doc/string()");
+        Iterator<XdmItem> iter = results.iterator();
+        assertEquals ("0", iter.next().getStringValue());
+        assertEquals ("1", iter.next().getStringValue());
+        assertFalse (results.isPartial());
+        eval.cancel();
+        // the search stops, and the results are partial
+        assertTrue (results.size() < TOTAL);
+        assertTrue (results.getErrors().isEmpty());
+        assertTrue (results.isPartial());
+        // each evaluation has its own deadline
+        results = eval.evaluate("count(collection()/doc)");
+        assertEquals (String.valueOf(TOTAL), results.iterator().next().getStringValue());
+        assertFalse (results.isPartial());
+    }
+
+    @Test
+    public void testTimeAllowed () throws Exception {
+        Evaluator eval = new Evaluator(new Compiler(indexer.getConfiguration()), searcher, null);
+        QueryContext context = new QueryContext();
+        context.setTimeAllowed(1);
+        XdmResultSet results = eval.evaluate(
+                "for $doc in collection() return sum(for $i in 1 to 100000 return $i mod 7) + number($doc)", context);
+        assertTrue (results.getErrors().isEmpty());
+        assertTrue (results.isPartial());
+        assertTrue (results.size() < TOTAL);
+        // documents can't be retrieved once the deadline has expired
+        results = eval.evaluate ("sum(for $i in 1 to 100000 return $i mod 7), doc('/doc050')", context);
+        assertFalse (results.getErrors().isEmpty());
+        assertTrue (results.getErrors().get(0).getMessage(), results.getErrors().get(0).getMessage().contains("time limit exceeded"));
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
@@ -0,0 +1,228 @@
+package lux.search;
+
+import static lux.index.IndexConfiguration.*;
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import lux.index.FieldName;
+import lux.index.XmlIndexer;
+import lux.index.field.FieldDefinition.Type;
+import lux.index.field.XPathField;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.WildcardQuery;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests the iterators returned by {@link LuxSearcher} against an index with several segments.
+ */
+public class LuxSearcherTest {
+
+    private static final int SEGMENTS = 4;
+    private static final int DOCS_PER_SEGMENT = 25;
+
+    private static XmlIndexer indexer;
+    private static LuxSearcher searcher;
+    private static String uriFieldName;
+
+    @BeforeClass
+    public static void setup () throws Exception {
+        indexer = new XmlIndexer(INDEX_QNAMES | STORE_DOCUMENT | BUILD_DOCUMENT);
+        uriFieldName = indexer.getConfiguration().getFieldName(FieldName.URI);
+        // only some of the documents have a title
+        indexer.getConfiguration().addField(new XPathField<String>("title", "/doc/@title", null, Store.NO, Type.STRING));
+        RAMDirectory dir = new RAMDirectory();
+        IndexWriter indexWriter = indexer.newIndexWriter(dir);
+        int n = 0;
+        for (int i = 0; i < SEGMENTS; i++) {
+            for (int j = 0; j < DOCS_PER_SEGMENT; j++, n++) {
+                String title = (n % 3 == 0) ? String.format(" title='t%03d'", (n * 7) % 100) : "";
+                indexer.indexDocument(indexWriter, String.format("/doc%03d", n), "<doc" + title + ">" + n + "</doc>");
+            }
+            indexWriter.commit();
+        }
+        indexWriter.close();
+        searcher = new LuxSearcher(DirectoryReader.open(dir));
+        assertEquals (SEGMENTS, searcher.getIndexReader().leaves().size());
+    }
+
+    @AfterClass
+    public static void tearDown () throws Exception {
+        searcher.close();
+    }
+
+    @Test
+    public void testUnorderedLeaves () throws Exception {
+        assertLeaves (searcher.search(new MatchAllDocsQuery()));
+    }
+
+    @Test
+    public void testOrderedLeaves () throws Exception {
+        assertLeaves (searcher.searchOrdered(new MatchAllDocsQuery()));
+    }
+
+    @Test
+    public void testSortedLeaves () throws Exception {
+        // reverse order, so every hit comes from a different leaf than the previous one at segment boundaries
+        Sort sort = new Sort(new SortField(uriFieldName, SortField.Type.STRING, true));
+        assertLeaves (searcher.search(new MatchAllDocsQuery(), sort));
+    }
+
+    @Test
+    public void testSortedBatches () throws Exception {
+        Sort sort = new Sort(new SortField(uriFieldName, SortField.Type.STRING, true));
+        // all docs have the same (missing) value for this field, so they are ordered by docID
+        Sort ties = new Sort(new SortField("no-such-field", SortField.Type.STRING));
+        int[] expected = collect (searcher.search(new MatchAllDocsQuery(), sort));
+        int[] expectedTies = collect (searcher.search(new MatchAllDocsQuery(), ties));
+        assertEquals (SEGMENTS * DOCS_PER_SEGMENT, expected.length);
+        for (int i = 1; i < expectedTies.length; i++) {
+            assertTrue (expectedTies[i] > expectedTies[i-1]);
+        }
+        try {
+            for (int batchSize : new int[] { 1, 7, DOCS_PER_SEGMENT, SEGMENTS * DOCS_PER_SEGMENT }) {
+                searcher.setBatchSize(batchSize);
+                assertArrayEquals (expected, collect (searcher.search(new MatchAllDocsQuery(), sort)));
+                assertArrayEquals (expectedTies, collect (searcher.search(new MatchAllDocsQuery(), ties)));
+            }
+        } finally {
+            searcher.setBatchSize(LuxSearcher.DEFAULT_BATCH_SIZE);
+        }
+    }
+
+    @Test
+    public void testSortedBatchesMissingValues () throws Exception {
+        // Lucene can't search after a hit with a missing sort value
+        for (boolean reverse : new boolean[] { false, true }) {
+            Sort sort = new Sort(new SortField("title", SortField.Type.STRING, reverse));
+            int[] expected = collect (searcher.search(new MatchAllDocsQuery(), sort));
+            assertEquals (SEGMENTS * DOCS_PER_SEGMENT, expected.length);
+            try {
+                for (int batchSize : new int[] { 1, 7, 40 }) {
+                    searcher.setBatchSize(batchSize);
+                    assertArrayEquals (expected, collect (searcher.search(new MatchAllDocsQuery(), sort)));
+                }
+            } finally {
+                searcher.setBatchSize(LuxSearcher.DEFAULT_BATCH_SIZE);
+            }
+        }
+    }
+
+    @Test
+    public void testSkip () throws Exception {
+        int total = SEGMENTS * DOCS_PER_SEGMENT;
+        Sort[] sorts = new Sort[] {
+                null,
+                new Sort(new SortField(uriFieldName, SortField.Type.STRING, true)),
+                new Sort(new SortField("title", SortField.Type.STRING, false)),
+                new Sort(new SortField("title", SortField.Type.STRING, true))
+        };
+        try {
+            for (Sort sort : sorts) {
+                int[] expected = collect (search(sort));
+                for (int batchSize : new int[] { 1, 7, 40 }) {
+                    searcher.setBatchSize(batchSize);
+                    for (int n : new int[] { 1, 6, 33, total - 1 }) {
+                        LeafDocIdSetIterator iter = search(sort);
+                        assertEquals (n, iter.skip(n));
+                        assertEquals (expected[n - 1], iter.docID());
+                        assertSame (expected[n - 1] + " " + sort, iter.getLeaf(), leafFor(iter.docID()));
+                        int[] rest = collect (iter);
+                        assertEquals (total - n, rest.length);
+                        for (int i = 0; i < rest.length; i++) {
+                            assertEquals (expected[n + i], rest[i]);
+                        }
+                    }
+                    // skip twice, then past the end
+                    LeafDocIdSetIterator iter = search(sort);
+                    assertEquals (10, iter.skip(10));
+                    assertEquals (10, iter.skip(10));
+                    assertEquals (expected[19], iter.docID());
+                    assertEquals (total - 20, iter.skip(total));
+                    assertEquals (DocIdSetIterator.NO_MORE_DOCS, iter.docID());
+                    assertEquals (0, iter.skip(1));
+                }
+            }
+        } finally {
+            searcher.setBatchSize(LuxSearcher.DEFAULT_BATCH_SIZE);
+        }
+    }
+
+    @Test
+    public void testCount () throws Exception {
+        assertEquals (SEGMENTS * DOCS_PER_SEGMENT, searcher.count(new MatchAllDocsQuery()));
+        assertEquals (1, searcher.count(new TermQuery(new Term(uriFieldName, "/doc042"))));
+        assertEquals (0, searcher.count(new TermQuery(new Term(uriFieldName, "/doc-none"))));
+        BooleanQuery titled = new BooleanQuery();
+        titled.add(new WildcardQuery(new Term("title", "t*")), Occur.MUST);
+        assertEquals (collect(searcher.search(titled)).length, searcher.count(titled));
+        assertEquals ((SEGMENTS * DOCS_PER_SEGMENT + 2) / 3, searcher.count(titled));
+    }
+
+    private LeafDocIdSetIterator search (Sort sort) throws Exception {
+        if (sort == null) {
+            return searcher.searchOrdered(new MatchAllDocsQuery());
+        }
+        return searcher.search(new MatchAllDocsQuery(), sort);
+    }
+
+    private AtomicReaderContext leafFor (int docID) {
+        List<AtomicReaderContext> leaves = searcher.getIndexReader().leaves();
+        return leaves.get(ReaderUtil.subIndex(docID, leaves));
+    }
+
+    private int[] collect (DocIdSetIterator iter) throws Exception {
+        int[] docs = new int[SEGMENTS * DOCS_PER_SEGMENT + 1];
+        int count = 0;
+        int docID;
+        while ((docID = iter.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+            docs[count++] = docID;
+        }
+        assertEquals (DocIdSetIterator.NO_MORE_DOCS, iter.nextDoc());
+        int[] result = new int[count];
+        System.arraycopy(docs, 0, result, 0, count);
+        return result;
+    }
+
+    private void assertLeaves (LeafDocIdSetIterator iter) throws Exception {
+        List<AtomicReaderContext> leaves = searcher.getIndexReader().leaves();
+        assertNull (iter.getLeaf());
+        int count = 0;
+        int docID;
+        while ((docID = iter.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+            assertEquals (docID, iter.docID());
+            AtomicReaderContext leaf = iter.getLeaf();
+            assertSame (leaves.get(ReaderUtil.subIndex(docID, leaves)), leaf);
+            // the document read from the leaf is the same as the one read from the top-level reader
+            Document fromLeaf = leaf.reader().document(docID - leaf.docBase);
+            Document fromTop = searcher.doc(docID);
+            assertEquals (fromTop.get(uriFieldName), fromLeaf.get(uriFieldName));
+            ++count;
+        }
+        assertEquals (DocIdSetIterator.NO_MORE_DOCS, iter.docID());
+        assertNull (iter.getLeaf());
+        assertEquals (SEGMENTS * DOCS_PER_SEGMENT, count);
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
@@ -0,0 +1,220 @@
+package lux.search;
+
+import static lux.index.IndexConfiguration.*;
+import static org.junit.Assert.*;
+
+import lux.Compiler;
+import lux.Evaluator;
+import lux.XdmResultSet;
+import lux.index.FieldName;
+import lux.index.XmlIndexer;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.WildcardQuery;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests the caching of search results across searches with a {@link SearchResultCache}.
+ */
+public class SearchResultCacheTest {
+
+    private static final int SEGMENTS = 4;
+    private static final int DOCS_PER_SEGMENT = 25;
+    private static final int TOTAL = SEGMENTS * DOCS_PER_SEGMENT;
+
+    private static XmlIndexer indexer;
+    private static RAMDirectory dir;
+    private static LuxSearcher searcher;
+    private static String uriFieldName;
+
+    @BeforeClass
+    public static void setup () throws Exception {
+        indexer = new XmlIndexer(INDEX_QNAMES | STORE_DOCUMENT | BUILD_DOCUMENT);
+        uriFieldName = indexer.getConfiguration().getFieldName(FieldName.URI);
+        dir = new RAMDirectory();
+        IndexWriter indexWriter = indexer.newIndexWriter(dir);
+        int n = 0;
+        for (int i = 0; i < SEGMENTS; i++) {
+            for (int j = 0; j < DOCS_PER_SEGMENT; j++, n++) {
+                indexer.indexDocument(indexWriter, String.format("/doc%03d", n), "<doc>" + n + "</doc>");
+            }
+            indexWriter.commit();
+        }
+        indexWriter.close();
+        searcher = new LuxSearcher(DirectoryReader.open(dir));
+    }
+
+    @AfterClass
+    public static void tearDown () throws Exception {
+        searcher.close();
+    }
+
+    @Test
+    public void testCachedResults () throws Exception {
+        SearchResultCache cache = new SearchResultCache();
+        Sort sort = new Sort(new SortField(uriFieldName, SortField.Type.STRING, true));
+        // dense results are cached as a bitset, sparse ones as an array
+        Query[] queries = new Query[] {
+                new MatchAllDocsQuery(), new TermQuery(new Term(uriFieldName, "/doc042")),
+                new WildcardQuery(new Term(uriFieldName, "/doc00*"))
+        };
+        for (Query query : queries) {
+            assertSameResults (searcher.searchOrdered(query), cache.search(searcher, query, null, null));
+            assertSameResults (searcher.search(query, sort), cache.search(searcher, query, sort, "lux:uri descending"));
+        }
+        assertEquals (0, cache.getHits());
+        assertEquals (6, cache.getMisses());
+        assertEquals (6, cache.size());
+        for (Query query : queries) {
+            assertSameResults (searcher.searchOrdered(query), cache.search(searcher, query, null, null));
+            assertSameResults (searcher.search(query, sort), cache.search(searcher, query, sort, "lux:uri descending"));
+        }
+        assertEquals (6, cache.getHits());
+        assertEquals (6, cache.size());
+        assertTrue (cache.getBytes() > 0);
+    }
+
+    @Test
+    public void testSkip () throws Exception {
+        SearchResultCache cache = new SearchResultCache();
+        Sort sort = new Sort(new SortField(uriFieldName, SortField.Type.STRING, true));
+        for (Sort s : new Sort[] { null, sort }) {
+            for (int n : new int[] { 1, 6, 33, TOTAL - 1 }) {
+                LeafDocIdSetIterator expected = s == null ? searcher.searchOrdered(new MatchAllDocsQuery()) :
+                    searcher.search(new MatchAllDocsQuery(), s);
+                LeafDocIdSetIterator iter = cache.search(searcher, new MatchAllDocsQuery(), s, s == null ? null : "sort");
+                assertEquals (n, expected.skip(n));
+                assertEquals (n, iter.skip(n));
+                assertEquals (expected.docID(), iter.docID());
+                assertSame (expected.getLeaf(), iter.getLeaf());
+                assertSameResults (expected, iter);
+            }
+            LeafDocIdSetIterator iter = cache.search(searcher, new MatchAllDocsQuery(), s, s == null ? null : "sort");
+            assertEquals (TOTAL, iter.skip(TOTAL + 1));
+            assertEquals (DocIdSetIterator.NO_MORE_DOCS, iter.docID());
+        }
+    }
+
+    @Test
+    public void testTooManySortedResults () throws Exception {
+        SearchResultCache cache = new SearchResultCache(SearchResultCache.DEFAULT_MAX_BYTES, TOTAL - 1);
+        Sort sort = new Sort(new SortField(uriFieldName, SortField.Type.STRING));
+        assertNull (cache.search(searcher, new MatchAllDocsQuery(), sort, "lux:uri"));
+        // the query is remembered as uncacheable
+        assertNull (cache.search(searcher, new MatchAllDocsQuery(), sort, "lux:uri"));
+        assertEquals (1, cache.getHits());
+        assertNotNull (cache.search(searcher, new WildcardQuery(new Term(uriFieldName, "/doc00*")), sort, "lux:uri"));
+    }
+
+    @Test
+    public void testDeadline () throws Exception {
+        SearchResultCache cache = new SearchResultCache();
+        Sort sort = new Sort(new SortField(uriFieldName, SortField.Type.STRING));
+        for (Sort s : new Sort[] { null, sort }) {
+            // the deadline expires after the search has started
+            Deadline deadline = new Deadline(0) {
+                private int checks;
+                @Override
+                public boolean isExpired () {
+                    return ++checks > 1;
+                }
+            };
+            assertNull (cache.search(searcher, new MatchAllDocsQuery(), s, s == null ? null : "lux:uri", deadline));
+        }
+        // results that were cut short are not cached
+        assertEquals (0, cache.size());
+        assertNotNull (cache.search(searcher, new MatchAllDocsQuery(), sort, "lux:uri", new Deadline(60000)));
+        assertEquals (1, cache.size());
+    }
+
+    @Test
+    public void testEvictBySize () throws Exception {
+        SearchResultCache cache = new SearchResultCache(Long.MAX_VALUE, TOTAL);
+        cache.search(searcher, new TermQuery(new Term(uriFieldName, "/doc001")), null, null);
+        long bytes = cache.getBytes();
+        cache = new SearchResultCache(bytes * 2, TOTAL);
+        for (int i = 0; i < 3; i++) {
+            cache.search(searcher, new TermQuery(new Term(uriFieldName, String.format("/doc%03d", i))), null, null);
+        }
+        assertEquals (2, cache.size());
+        assertEquals (1, cache.getEvictions());
+        // the least-recently used entry was evicted
+        cache.search(searcher, new TermQuery(new Term(uriFieldName, "/doc002")), null, null);
+        assertEquals (1, cache.getHits());
+        cache.search(searcher, new TermQuery(new Term(uriFieldName, "/doc000")), null, null);
+        assertEquals (1, cache.getHits());
+    }
+
+    @Test
+    public void testDropOnClose () throws Exception {
+        SearchResultCache cache = new SearchResultCache();
+        LuxSearcher other = new LuxSearcher(DirectoryReader.open(dir));
+        cache.search(searcher, new MatchAllDocsQuery(), null, null);
+        cache.search(other, new MatchAllDocsQuery(), null, null);
+        // results are not shared across readers
+        assertEquals (0, cache.getHits());
+        assertEquals (2, cache.size());
+        other.close();
+        assertEquals (1, cache.size());
+        cache.search(searcher, new MatchAllDocsQuery(), null, null);
+        assertEquals (1, cache.getHits());
+    }
+
+    @Test
+    public void testEvaluator () throws Exception {
+        Compiler compiler = new Compiler(indexer.getConfiguration());
+        SearchResultCache cache = new SearchResultCache();
+        compiler.setResultCache(cache);
+        String query = "for $doc in subsequence(collection(), %d, 10) return string($doc)";
+        assertEquals ("10 11 12 13 14 15 16 17 18 19", evaluate (compiler, String.format(query, 11)));
+        assertEquals ("20 21 22 23 24 25 26 27 28 29", evaluate (compiler, String.format(query, 21)));
+        assertEquals (1, cache.size());
+        assertEquals (1, cache.getHits());
+        String sorted = "for $doc in collection() order by lux:field-values('" + uriFieldName + "', $doc) descending return string($doc)";
+        assertEquals ("99 98 97", evaluate (compiler, "subsequence(" + sorted + ", 1, 3)"));
+        assertEquals ("96 95 94", evaluate (compiler, "subsequence(" + sorted + ", 4, 3)"));
+        assertEquals (2, cache.size());
+        assertEquals (2, cache.getHits());
+    }
+
+    private String evaluate (Compiler compiler, String query) {
+        Evaluator eval = new Evaluator(compiler, searcher, null);
+        XdmResultSet results = eval.evaluate(query);
+        assertTrue (results.getErrors().toString(), results.getErrors().isEmpty());
+        StringBuilder buf = new StringBuilder();
+        for (Object item : results) {
+            if (buf.length() > 0) {
+                buf.append(' ');
+            }
+            buf.append(item.toString());
+        }
+        return buf.toString();
+    }
+
+    private void assertSameResults (LeafDocIdSetIterator expected, LeafDocIdSetIterator actual) throws Exception {
+        assertNotNull (actual);
+        int docID;
+        while ((docID = expected.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+            assertEquals (docID, actual.nextDoc());
+            assertSame (expected.getLeaf(), actual.getLeaf());
+        }
+        assertEquals (DocIdSetIterator.NO_MORE_DOCS, actual.nextDoc());
+        assertNull (actual.getLeaf());
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
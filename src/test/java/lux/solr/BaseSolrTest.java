@@ -18,7 +18,7 @@ import org.junit.BeforeClass;
 public abstract class BaseSolrTest {
 
     protected static SolrServer solr;
-    private static CoreContainer coreContainer;
+    protected static CoreContainer coreContainer;
     
     public final String SOLR_QUERY_TYPE = "/xquery";
 
@@ -1,14 +1,25 @@
 package lux.solr;
 
+import static org.junit.Assert.*;
 
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Collection;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.solr.common.SolrException;
 import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.request.LocalSolrQueryRequest;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.SolrRequestInfo;
+import org.apache.solr.response.SolrQueryResponse;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
@@ -68,15 +79,22 @@ public class LuxSolrTest extends BaseSolrTest {
     }
     
     @Test public void testFirstPage () throws Exception {
-        // returns only the page including the first 10 results
-        assertXPathSearchCount (10, 100, "document", "doc", "(/)[doc]");
+        // returns only the page including the first 10 results; results are evaluated lazily,
+        // so only the documents needed to fill the page, and to look ahead for an error, are retrieved
+        assertXPathSearchCount (10, 11, "document", "doc", "(/)[doc]");
         
-        assertXPathSearchCount (10, 100, "element", "doc", "(//doc)[position() > 10]");
+        assertXPathSearchCount (10, 21, "element", "doc", "(//doc)[position() > 10]");
+    }
+    
+    @Test public void testErrorAfterPage () throws Exception {
+        // an error raised once the page is full is reported
+        assertXPathSearchError ("late error", "(1 to 10, error(xs:QName('local:late'), 'late error'))");
     }
     
     @Test public void testPaging () throws Exception {
         // make the searcher page past the first 10 documents to find 10 xpath matches
-        assertXPathSearchCount (10, 100, "element", "doc", "//doc[title[number(.) < 95]]");
+        // (the titles of the first 6 documents are >= 95)
+        assertXPathSearchCount (10, 17, "element", "doc", "//doc[title[number(.) < 95]]");
     }
     
     /**
@@ -111,6 +129,13 @@ public class LuxSolrTest extends BaseSolrTest {
         assertXPathSearchCount (1, 102, "xs:string", "102", "count(collection())");  
     }
     
+    @Test public void testCount () throws Exception {
+        assertXPathSearchCount (1, 100, "xs:string", "100", "count(//doc)");
+        // the second time, the count is retrieved from Solr's filter cache
+        assertXPathSearchCount (1, 100, "xs:string", "100", "count(//doc)");
+        assertXPathSearchCount (1, 1, "xs:string", "1", "lux:count('<title:100')");
+    }
+    
     @Test public void testQueryError () throws Exception {
         assertXPathSearchError("Prefix lux_elt_name_ms has not been declared; Line#: 1; Column#: 22\n", "lux_elt_name_ms:config");
     }
@@ -120,6 +145,106 @@ public class LuxSolrTest extends BaseSolrTest {
         assertXPathSearchError("Unexpected token name \"bad\" beyond end of query; Line#: 1; Column#: 4\n", "hey bad boy");
     }
     
+    @Test
+    public void testStreaming () throws Exception {
+        assertEquals ("<results><title id=\"1\">100</title><title id=\"2\">99</title></results>", 
+                writeStreamed ("//title[@id < 10]", 1, 2));
+        assertEquals ("<title id=\"3\">98</title>", writeStreamed ("//title[@id < 10]", 3, 1));
+        assertEquals ("<results>98 97</results>", writeStreamed ("string-join(//title[@id = (3, 4)], ' ')", 1, -1));
+        assertEquals ("", writeStreamed ("()", 1, -1));
+        // an error raised after the first results have been written is reported inline
+        String result = writeStreamed ("(<a/>, <b/>, error(xs:QName('lux:test'), 'failure'))", 1, -1);
+        assertTrue (result, result.startsWith("<results><a/><b/><html>"));
+        assertTrue (result, result.contains("failure"));
+        // an error raised before anything is written fails the request
+        try {
+            writeStreamed ("error(xs:QName('lux:test'), 'failure')", 1, -1);
+            fail ("expected an exception");
+        } catch (SolrException e) {
+            assertTrue (e.getMessage(), e.getMessage().contains("failure"));
+        }
+    }
+    
+    @Test
+    public void testStreamingPartialResults () throws Exception {
+        // results cut short by the time allowed are flagged as partial
+        String result = writeStreamed ("for $i in 1 to count(collection()) * 1000000 return $i", 1, -1, CommonParams.TIME_ALLOWED, "1");
+        assertTrue (result, result.endsWith("<?lux-partial-results?>"));
+        result = writeStreamed ("//title[@id < 10]", 1, 2, CommonParams.TIME_ALLOWED, "100000");
+        assertFalse (result, result.contains("lux-partial-results"));
+        // the query statistics follow the results when debugging is requested
+        result = writeStreamed ("//title[@id < 10]", 1, 2, CommonParams.DEBUG_QUERY, "true");
+        assertTrue (result, result.startsWith("<results><title id=\"1\">100</title><title id=\"2\">99</title></results><?lux-query-stats"));
+        assertTrue (result, result.contains("doc-count: "));
+        assertTrue (result, result.endsWith("?>"));
+    }
+    
+    @Test
+    public void testDebugQueryStats () throws Exception {
+        SolrCore core = coreContainer.getCore("");
+        ModifiableSolrParams params = new ModifiableSolrParams();
+        params.set(CommonParams.Q, "//doc[title = '90']/title/string()");
+        params.set(CommonParams.DEBUG_QUERY, true);
+        SolrQueryRequest req = new LocalSolrQueryRequest(core, params);
+        SolrQueryResponse rsp = new SolrQueryResponse();
+        SolrRequestInfo.setRequestInfo(new SolrRequestInfo(req, rsp));
+        try {
+            core.execute(core.getRequestHandler(SOLR_QUERY_TYPE), req, rsp);
+            NamedList<?> debug = (NamedList<?>) rsp.getValues().get("debug");
+            assertNotNull (debug);
+            NamedList<?> stats = (NamedList<?>) debug.get("lux");
+            assertNotNull (stats);
+            for (String phase : new String[] { "compile-ms", "translate-ms", "optimize-ms", "recompile-ms", 
+                    "evaluate-ms", "search-ms", "response-ms" }) {
+                assertTrue (phase, ((Double) stats.get(phase)) > 0);
+            }
+            // the documents may have been cached by earlier queries
+            int misses = (Integer) stats.get("doc-cache-misses");
+            assertEquals (stats.get("doc-count"), (Integer) stats.get("doc-cache-hits") + misses);
+            assertEquals (misses > 0, ((Double) stats.get("fetch-ms")) > 0);
+            assertNotNull (stats.get("optimized-query"));
+            assertNotNull (debug.get("timing"));
+        } finally {
+            SolrRequestInfo.clearRequestInfo();
+            req.close();
+            core.close();
+        }
+    }
+    
+    private String writeStreamed (String query, int start, int rows, String ... extraParams) throws Exception {
+        SolrCore core = coreContainer.getCore("");
+        ModifiableSolrParams params = new ModifiableSolrParams();
+        for (int i = 0; i < extraParams.length; i += 2) {
+            params.set(extraParams[i], extraParams[i + 1]);
+        }
+        params.set(CommonParams.Q, query);
+        params.set(CommonParams.WT, "lux");
+        params.set(CommonParams.START, start);
+        params.set(CommonParams.ROWS, rows);
+        params.set(XQueryComponent.LUX_STREAM, true);
+        params.set("lux.content-type", "text/xml");
+        SolrQueryRequest req = new LocalSolrQueryRequest(core, params);
+        SolrQueryResponse rsp = new SolrQueryResponse();
+        SolrRequestInfo.setRequestInfo(new SolrRequestInfo(req, rsp));
+        try {
+            core.execute(core.getRequestHandler(SOLR_QUERY_TYPE), req, rsp);
+            // errors may also be raised when the query is evaluated, before there are any results
+            Object results = rsp.getValues().get("xpath-results");
+            assertTrue (String.valueOf(results), results == null || results instanceof XdmResultStream);
+            StringWriter out = new StringWriter();
+            try {
+                core.getQueryResponseWriter(req).write(out, req, rsp);
+            } finally {
+                assertTrue (results == null || ((XdmResultStream) results).isClosed());
+            }
+            return out.toString().replaceAll("<\\?xml[^>]*>", "");
+        } finally {
+            SolrRequestInfo.clearRequestInfo();
+            req.close();
+            core.close();
+        }
+    }
+    
     static void addSolrDocFromFile(String path, Collection<SolrInputDocument> docs) throws FileNotFoundException, IOException {
         SolrInputDocument doc = new SolrInputDocument(); 
         doc.addField (URI, path);
@@ -0,0 +1,91 @@
+package lux.xml;
+
+import static lux.index.IndexConfiguration.*;
+import static org.junit.Assert.*;
+
+import java.io.StringReader;
+
+import javax.xml.transform.stream.StreamSource;
+
+import lux.Evaluator;
+import lux.IndexTestSupport;
+import lux.XdmResultSet;
+import lux.index.FieldName;
+import lux.index.XmlIndexer;
+import net.sf.saxon.s9api.DocumentBuilder;
+import net.sf.saxon.s9api.XdmItem;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.tree.tiny.TinyDocumentImpl;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.junit.Test;
+
+/**
+ * Tests the {@link TinyBinary} document encoding, and the storage of documents in that format.
+ */
+public class TinyBinaryTest {
+
+    private static final String XML = "<!--c--><a:x xmlns:a='urn:a' xmlns:b='urn:b' b:at='1' at='&amp;2'><?pi data?>" +
+            "<b:y>t&lt;ext é</b:y><y xmlns='urn:c' xmlns:a='urn:a2'><a:z/><a:z/></y>  <!--k--> </a:x>";
+
+    @Test
+    public void testRoundTrip () throws Exception {
+        Processor processor = new Processor(false);
+        DocumentBuilder builder = processor.newDocumentBuilder();
+        XdmNode doc = builder.build(new StreamSource(new StringReader(XML)));
+        byte[] bytes = TinyBinary.encode(doc.getUnderlyingNode());
+        assertTrue (TinyBinary.isTinyBinary(bytes, 0, bytes.length));
+        assertFalse (TinyBinary.isTinyBinary(XML.getBytes("utf-8"), 0, XML.length()));
+
+        // decode from the middle of a buffer
+        byte[] buffer = new byte[bytes.length + 10];
+        System.arraycopy(bytes, 0, buffer, 3, bytes.length);
+        TinyDocumentImpl copy = new TinyBinary(buffer, 3, bytes.length).build(processor.getUnderlyingConfiguration(), "lux:/test");
+        assertEquals ("lux:/test", copy.getBaseURI());
+        assertEquals (doc.toString(), new XdmNode(copy).toString());
+        assertEquals (doc.getUnderlyingNode().getStringValue(), copy.getStringValue());
+    }
+
+    @Test
+    public void testStoreDocuments () throws Exception {
+        IndexTestSupport text = new IndexTestSupport(new String[] { "lux/hamlet.xml" },
+                new XmlIndexer (INDEX_QNAMES|INDEX_PATHS|INDEX_FULLTEXT|STORE_DOCUMENT), new RAMDirectory());
+        XmlIndexer binaryIndexer = new XmlIndexer (INDEX_QNAMES|INDEX_PATHS|INDEX_FULLTEXT|STORE_DOCUMENT|STORE_TINY_BINARY);
+        IndexTestSupport binary = new IndexTestSupport(new String[] { "lux/hamlet.xml" }, binaryIndexer, new RAMDirectory());
+        try {
+            String query = "for $doc in subsequence(collection(), 1, 20) return ($doc, base-uri($doc))";
+            String expected = evaluate (text, query);
+            assertTrue (expected.length() > 0);
+            assertEquals (expected, evaluate (binary, query));
+            assertEquals (evaluate (text, "count(//LINE)"), evaluate (binary, "count(//LINE)"));
+            // the documents were stored in binary form
+            String xmlFieldName = binaryIndexer.getConfiguration().getFieldName(FieldName.XML_STORE);
+            Document doc = binary.makeEvaluator().getSearcher().doc(0);
+            assertNull (doc.get(xmlFieldName));
+            BytesRef stored = doc.getBinaryValue(xmlFieldName);
+            assertTrue (TinyBinary.isTinyBinary(stored.bytes, stored.offset, stored.length));
+        } finally {
+            text.close();
+            binary.close();
+        }
+    }
+
+    private String evaluate (IndexTestSupport index, String query) throws Exception {
+        Evaluator eval = index.makeEvaluator();
+        XdmResultSet results = eval.evaluate(query);
+        assertTrue (results.getErrors().toString(), results.getErrors().isEmpty());
+        StringBuilder buf = new StringBuilder();
+        for (XdmItem item : results) {
+            buf.append(item.toString()).append('\n');
+        }
+        return buf.toString();
+    }
+
+}
+
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this file,
+ * You can obtain one at http://mozilla.org/MPL/2.0/. */
@@ -0,0 +1,5 @@
+<xsl:stylesheet xmlns:xsl="http://www.w3.org/1999/XSL/Transform" version="2.0">
+  <xsl:template match="test">
+    <xsl:value-of select=". + 1" />
+  </xsl:template>
+</xsl:stylesheet>